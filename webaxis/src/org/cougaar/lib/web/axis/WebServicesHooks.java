@@ -0,0 +1,309 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 1997-2004 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+
+package org.cougaar.lib.web.axis;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.axis.MessageContext;
+import org.apache.axis.transport.http.HTTPConstants;
+
+/**
+ * A JVM-wide registry of the per-node (or per-agent) objects that
+ * our Axis "hook" classes forward to, e.g. the
+ * {@link org.cougaar.lib.web.axis.mts.SOAPMTHook}.
+ * <p>
+ * Axis creates the hook classes named in a WSDD, so a hook can't
+ * be given a pointer to its Cougaar component.  The original hooks
+ * held a single static instance, where the last registered node
+ * won, which prevented running several nodes in one JVM.  Here
+ * each component registers its hook object under its agent name
+ * and servlet ports, and each request is routed by its URL:
+ * <ul>
+ *   <li>a "/$<i>name</i>/..." path, which is Cougaar's standard
+ *       agent path, selects the hook of that agent, e.g. if
+ *       several nodes share a web server.  A hook registered for
+ *       the request's scheme, e.g. "https", is preferred, so a
+ *       node's "http" and "https" hooks don't replace each
+ *       other.</li>
+ *   <li>otherwise the request's server port selects the hook of
+ *       the node that owns that port</li>
+ *   <li>otherwise, e.g. if the request came through a proxy that
+ *       changed the port, the {@link #nodeKey} hook is used if all
+ *       of them belong to the same node</li>
+ * </ul>
+ * If a service has a single hook, e.g. one node per JVM, then it
+ * is always used.
+ * <p>
+ * Each lookup is a few hash lookups without locking, since the
+ * registry is copied on every (rare) change.
+ */
+public final class WebServicesHooks {
+
+  // map from service name to Hooks, replaced on every change and
+  // otherwise read-only
+  private static volatile Map services = new HashMap();
+
+  private static final Object lock = new Object();
+
+  private WebServicesHooks() {}
+
+  /** @return the registry key for an agent's "/$name" path */
+  public static Object agentKey(String agent) {
+    return agent;
+  }
+
+  /**
+   * @param scheme the request scheme, e.g. "http"
+   * @return the registry key for an agent's "/$name" path that
+   *   is received with the given scheme
+   */
+  public static Object agentKey(String agent, String scheme) {
+    return new Key(Key.AGENT, agent, scheme);
+  }
+
+  /**
+   * @param scheme the scheme that the node's hook receives, which
+   *   tells apart the hooks of a node's protocols
+   * @return the registry key for a node-level hook, which is used
+   *   if the URL selects no other hook and all node-level hooks
+   *   belong to the same node
+   */
+  public static Object nodeKey(String node, String scheme) {
+    return new Key(Key.NODE, node, scheme);
+  }
+
+  /** @return the registry key for a servlet port */
+  public static Object portKey(int port) {
+    return new Integer(port);
+  }
+
+  /**
+   * Register a hook object for a service.
+   *
+   * @param service the service name, e.g. the WSDD service name
+   * @param keys the {@link #agentKey}, {@link #portKey} and
+   *   {@link #nodeKey} keys
+   *   that select the hook, which replace any prior mappings
+   * @param hook the object that the Axis hook forwards to
+   */
+  public static void register(String service, Object[] keys, Object hook) {
+    synchronized (lock) {
+      Hooks h = (Hooks) services.get(service);
+      Map m = (h == null ? new HashMap() : new HashMap(h.byKey));
+      for (int i = 0; i < keys.length; i++) {
+        m.put(keys[i], hook);
+      }
+      setHooks(service, m);
+    }
+  }
+
+  /** Remove all keys of a hook added by {@link #register}. */
+  public static void unregister(String service, Object hook) {
+    synchronized (lock) {
+      Hooks h = (Hooks) services.get(service);
+      if (h == null || !h.byKey.containsValue(hook)) {
+        return;
+      }
+      Map m = new HashMap(h.byKey);
+      m.values().removeAll(Collections.singleton(hook));
+      setHooks(service, m);
+    }
+  }
+
+  // guarded by "lock"
+  private static void setHooks(String service, Map m) {
+    Map s = new HashMap(services);
+    if (m.isEmpty()) {
+      s.remove(service);
+    } else {
+      s.put(service, new Hooks(m));
+    }
+    services = s;
+  }
+
+  /**
+   * @return the hook for the current Axis request, or null if
+   * none is registered
+   */
+  public static Object find(String service) {
+    Hooks h = (Hooks) services.get(service);
+    if (h == null || h.sole != null) {
+      return (h == null ? null : h.sole);
+    }
+    MessageContext mc = MessageContext.getCurrentContext();
+    Object req =
+      (mc == null ? null :
+       mc.getProperty(HTTPConstants.MC_HTTP_SERVLETREQUEST));
+    if (!(req instanceof HttpServletRequest)) {
+      return h.getNode(null);
+    }
+    return find(h, (HttpServletRequest) req);
+  }
+
+  /** @return the hook for a servlet request, or null */
+  public static Object find(String service, HttpServletRequest req) {
+    Hooks h = (Hooks) services.get(service);
+    if (h == null || h.sole != null) {
+      return (h == null ? null : h.sole);
+    }
+    return find(h, req);
+  }
+
+  /**
+   * @param uri the request URI, e.g. "/$NodeA/axis/services"
+   * @param port the request's server port
+   * @return the hook for a request, or null
+   */
+  public static Object find(String service, String uri, int port) {
+    return find(service, uri, port, null);
+  }
+
+  /**
+   * @param scheme the request's scheme, e.g. "https", or null
+   * @return the hook for a request, or null
+   */
+  public static Object find(
+      String service, String uri, int port, String scheme) {
+    Hooks h = (Hooks) services.get(service);
+    if (h == null || h.sole != null) {
+      return (h == null ? null : h.sole);
+    }
+    return find(h, uri, port, scheme);
+  }
+
+  private static Object find(Hooks h, HttpServletRequest req) {
+    return find(
+        h, req.getRequestURI(), req.getServerPort(), req.getScheme());
+  }
+
+  private static Object find(
+      Hooks h, String uri, int port, String scheme) {
+    if (uri != null && uri.startsWith("/$")) {
+      int end = uri.indexOf('/', 2);
+      String name = uri.substring(2, (end < 0 ? uri.length() : end));
+      Object o =
+        (scheme == null ? null : h.byKey.get(agentKey(name, scheme)));
+      if (o == null) {
+        o = h.byKey.get(agentKey(name));
+      }
+      if (o != null) {
+        return o;
+      }
+    }
+    Object o = h.byKey.get(portKey(port));
+    return (o == null ? h.getNode(scheme) : o);
+  }
+
+  /** A qualified {@link #agentKey} or a {@link #nodeKey}. */
+  private static final class Key {
+    public static final int AGENT = 0;
+    public static final int NODE = 1;
+    public final int type;
+    public final String name;
+    public final String scheme;
+    public Key(int type, String name, String scheme) {
+      this.type = type;
+      this.name = name;
+      this.scheme = scheme;
+      if (name == null || scheme == null) {
+        throw new IllegalArgumentException("null name or scheme");
+      }
+    }
+    public int hashCode() {
+      return 31 * (31 * type + name.hashCode()) + scheme.hashCode();
+    }
+    public boolean equals(Object o) {
+      if (o == this) {
+        return true;
+      }
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key k = (Key) o;
+      return
+        type == k.type && name.equals(k.name) && scheme.equals(k.scheme);
+    }
+    public String toString() {
+      return (type == NODE ? "node " : "agent ")+name+" "+scheme;
+    }
+  }
+
+  private static final class Hooks {
+    public final Map byKey;
+    // the only hook, or null if there are several
+    public final Object sole;
+    // map from scheme to nodeKey hook if they all belong to the
+    // same node, otherwise empty
+    public final Map nodes;
+    public Hooks(Map byKey) {
+      this.byKey = byKey;
+      Object o = null;
+      for (Iterator iter = byKey.values().iterator(); iter.hasNext(); ) {
+        Object x = iter.next();
+        if (o != null && o != x) {
+          o = null;
+          break;
+        }
+        o = x;
+      }
+      this.sole = o;
+      String name = null;
+      Map m = new HashMap();
+      for (Iterator iter = byKey.entrySet().iterator(); iter.hasNext(); ) {
+        Map.Entry me = (Map.Entry) iter.next();
+        Object k = me.getKey();
+        if (!(k instanceof Key) || ((Key) k).type != Key.NODE) {
+          continue;
+        }
+        if (name != null && !name.equals(((Key) k).name)) {
+          m.clear();
+          break;
+        }
+        name = ((Key) k).name;
+        m.put(((Key) k).scheme, me.getValue());
+      }
+      this.nodes = m;
+    }
+    /**
+     * @param scheme the request's scheme, or null if not known
+     * @return the node's hook for the scheme, otherwise the node's
+     *   only hook, or null
+     */
+    public Object getNode(String scheme) {
+      Object o = (scheme == null ? null : nodes.get(scheme));
+      if (o == null && nodes.size() == 1) {
+        o = nodes.values().iterator().next();
+      }
+      return o;
+    }
+  }
+}
@@ -0,0 +1,125 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 1997-2004 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+
+package org.cougaar.lib.web.axis;
+
+import org.cougaar.lib.web.axis.mts.SOAPBenchmark;
+
+/**
+ * A command-line benchmark of the {@link WebServicesHooks} request
+ * routing with many nodes in one JVM.
+ * <p>
+ * For each node count, every node registers a hook under its node
+ * name and port, as the SOAPLinkProtocol does, and each iteration
+ * routes one request to the next node, either by its port or by
+ * its "/$name" path.  The "static" case is the cost of the
+ * original single static hook, for comparison.
+ * <p>
+ * To run:<pre>
+ *   ant -f custom-build.xml benchmark
+ * </pre>
+ * or:<pre>
+ *   CP="$CIP/lib/webaxis.jar:$CIP/sys/axis_1_2_beta.jar:$CIP/sys/servlet.jar"
+ *   CL="org.cougaar.lib.web.axis.WebServicesHooksBenchmark"
+ *   java -classpath $CP $CL [-nodes=1,16,...] [-warmup=N]
+ *     [-iterations=N]
+ * </pre>
+ */
+public class WebServicesHooksBenchmark {
+
+  private static final int[] NODES = {1, 16, 256};
+
+  private static final String SERVICE = "benchmark";
+
+  private static final int BASE_PORT = 8800;
+
+  private static volatile Object staticHook = new Object();
+
+  public static void main(String[] args) throws Exception {
+    int[] nodes = SOAPBenchmark.getInts(args, "nodes", NODES);
+    int warmup = SOAPBenchmark.getInt(args, "warmup", 200000);
+    int iterations = SOAPBenchmark.getInt(args, "iterations", 5000000);
+
+    SOAPBenchmark.run(
+        "static", warmup, iterations,
+        new SOAPBenchmark.Task() {
+          public void run() {
+            if (staticHook == null) {
+              throw new IllegalStateException();
+            }
+          }
+        });
+
+    for (int i = 0; i < nodes.length; i++) {
+      final int n = nodes[i];
+      final Object[] hooks = new Object[n];
+      final String[] paths = new String[n];
+      for (int j = 0; j < n; j++) {
+        hooks[j] = new Object();
+        paths[j] = "/$Node"+j+"/axis/services";
+        WebServicesHooks.register(
+            SERVICE,
+            new Object[] {
+              WebServicesHooks.agentKey("Node"+j),
+              WebServicesHooks.portKey(BASE_PORT + j),
+            },
+            hooks[j]);
+      }
+
+      SOAPBenchmark.run(
+          "route(port, nodes="+n+")", warmup, iterations,
+          new SOAPBenchmark.Task() {
+            private int next;
+            public void run() {
+              int j = next;
+              next = (j + 1 == n ? 0 : j + 1);
+              Object o = WebServicesHooks.find(
+                  SERVICE, "/axis/services", BASE_PORT + j);
+              if (o != hooks[j]) {
+                throw new IllegalStateException("Misrouted to "+o);
+              }
+            }
+          });
+      SOAPBenchmark.run(
+          "route(path, nodes="+n+")", warmup, iterations,
+          new SOAPBenchmark.Task() {
+            private int next;
+            public void run() {
+              int j = next;
+              next = (j + 1 == n ? 0 : j + 1);
+              Object o = WebServicesHooks.find(SERVICE, paths[j], 0);
+              if (o != hooks[j]) {
+                throw new IllegalStateException("Misrouted to "+o);
+              }
+            }
+          });
+
+      for (int j = 0; j < n; j++) {
+        WebServicesHooks.unregister(SERVICE, hooks[j]);
+      }
+    }
+  }
+}
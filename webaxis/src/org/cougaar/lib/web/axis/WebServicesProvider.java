@@ -34,6 +34,7 @@ import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
 import java.security.Principal;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
 
@@ -85,6 +86,13 @@ import org.w3c.dom.Document;
  *   $CIP/webtomcat/data/webapps/ROOT/WEB-INF/server-config.wsdd
  *   $CIP/webtomcat/data/webapps/ROOT/WEB-INF/attachments
  * </pre> 
+ * <p>
+ * Clients that don't need SOAP can register a servlet for a
+ * non-XML content type with {@link #setContentHandler}.  POSTs of
+ * that content type to "/axis/services" bypass the Axis engine
+ * and are passed directly to that servlet.  A per-node servlet
+ * can be registered with {@link #addContentHandler}, which routes
+ * each POST through the {@link WebServicesHooks}.
  */
 public final class WebServicesProvider
 extends GenericStateModelAdapter
@@ -95,6 +103,10 @@ implements Component
 
   private static final String ATTR_AXIS_ENGINE = "AxisEngine";
 
+  // map from content type to Servlet, or to the WebServicesHooks
+  // service name of routed handlers, guarded by "contentHandlers"
+  private static final Map contentHandlers = new HashMap();
+
   private ServiceBroker sb;
   private ServiceBroker rootsb;
 
@@ -148,6 +160,12 @@ implements Component
       public void service(
           ServletRequest req, ServletResponse res
           ) throws ServletException, IOException {
+        // check for a non-SOAP handler
+        Servlet handler = getContentHandler(req);
+        if (handler != null) {
+          handler.service(req, res);
+          return;
+        }
         // create a request proxy to replace Cougaar's empty
         // content-path with Axis's expected "/axis" content-path.
         // This proxy also makes room for future enhancements. 
@@ -216,6 +234,81 @@ implements Component
     }
   }
 
+  /**
+   * Register a servlet to handle POSTs of the given content type,
+   * bypassing the Axis engine.
+   *
+   * @param contentType the MIME type, without parameters
+   * @param servlet the handler, or null to remove the handler
+   */
+  public static void setContentHandler(
+      String contentType, Servlet servlet) {
+    synchronized (contentHandlers) {
+      if (servlet == null) {
+        contentHandlers.remove(contentType.toLowerCase());
+      } else {
+        contentHandlers.put(contentType.toLowerCase(), servlet);
+      }
+    }
+  }
+
+  /**
+   * Register a servlet to handle POSTs of the given content type
+   * that {@link WebServicesHooks} routes to the given keys, e.g. to
+   * our node.
+   *
+   * @param contentType the MIME type, without parameters
+   * @param keys the WebServicesHooks keys
+   * @param servlet the handler
+   */
+  public static void addContentHandler(
+      String contentType, Object[] keys, Servlet servlet) {
+    String service = getContentService(contentType);
+    WebServicesHooks.register(service, keys, servlet);
+    synchronized (contentHandlers) {
+      contentHandlers.put(contentType.toLowerCase(), service);
+    }
+  }
+
+  /** Remove a servlet added by {@link #addContentHandler}. */
+  public static void removeContentHandler(
+      String contentType, Servlet servlet) {
+    WebServicesHooks.unregister(getContentService(contentType), servlet);
+  }
+
+  private static String getContentService(String contentType) {
+    return "content-type:"+contentType.toLowerCase();
+  }
+
+  private static Servlet getContentHandler(ServletRequest req) {
+    if (!(req instanceof HttpServletRequest) ||
+        !"POST".equals(((HttpServletRequest) req).getMethod())) {
+      return null;
+    }
+    String contentType = req.getContentType();
+    if (contentType == null) {
+      return null;
+    }
+    int sep = contentType.indexOf(';');
+    if (sep >= 0) {
+      contentType = contentType.substring(0, sep);
+    }
+    contentType = contentType.trim().toLowerCase();
+    Object o;
+    synchronized (contentHandlers) {
+      if (contentHandlers.isEmpty()) {
+        return null;
+      }
+      o = contentHandlers.get(contentType);
+    }
+    if (o instanceof String) {
+      // routed to the hooks
+      return (Servlet)
+        WebServicesHooks.find((String) o, (HttpServletRequest) req);
+    }
+    return (Servlet) o;
+  }
+
   /**
    * After AxisServlet init, get the Axis engine from the config.
    */
@@ -0,0 +1,119 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 1997-2004 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+
+package org.cougaar.lib.web.axis.blackboardCount;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.cougaar.lib.web.axis.mts.SOAPBenchmark;
+
+/**
+ * A command-line microbenchmark of the {@link BlackboardCountPlugin}
+ * result encoding: the plugin's "createClassCountMap" and the
+ * {@link ResultMap} entry conversions called by the SOAP bean
+ * serializer and deserializer.
+ * <p>
+ * Each case is run for every size, where "createClassCountMap"
+ * counts that many objects drawn from a fixed set of classes and
+ * the ResultMap cases convert a map of that many distinct
+ * classnames, which is the worst case of a large blackboard.
+ * <p>
+ * To run:<pre>
+ *   ant -f custom-build.xml benchmark
+ * </pre>
+ * or:<pre>
+ *   CP="$CIP/lib/webaxis.jar:$CIP/lib/core.jar:$CIP/lib/util.jar"
+ *   CL="org.cougaar.lib.web.axis.blackboardCount.BlackboardCountBenchmark"
+ *   java -classpath $CP $CL [-sizes=100,10000,...] [-warmup=N]
+ *     [-iterations=N]
+ * </pre>
+ */
+public class BlackboardCountBenchmark {
+
+  private static final int[] SIZES = {100, 10000, 100000};
+
+  // total objects to process per case, which sets the iteration
+  // count unless "-iterations" is specified
+  private static final int OBJECTS_PER_CASE = 50000000;
+
+  // sample blackboard object types
+  private static final Object[] SAMPLES = {
+    "s", new Integer(1), new Long(2), new Double(3.0),
+    new ArrayList(), new HashMap(), new StringBuffer(),
+    new Object(), new int[0], Boolean.TRUE,
+  };
+
+  public static void main(String[] args) throws Exception {
+    int[] sizes = SOAPBenchmark.getInts(args, "sizes", SIZES);
+    int warmup = SOAPBenchmark.getInt(args, "warmup", -1);
+    int iterations = SOAPBenchmark.getInt(args, "iterations", -1);
+
+    for (int i = 0; i < sizes.length; i++) {
+      int size = sizes[i];
+      int n =
+        (iterations > 0 ? iterations :
+         Math.max(20, OBJECTS_PER_CASE / size));
+      int w = (warmup >= 0 ? warmup : Math.max(10, n / 5));
+      String suffix = "("+size+")";
+
+      final Collection c = new ArrayList(size);
+      for (int j = 0; j < size; j++) {
+        c.add(SAMPLES[j % SAMPLES.length]);
+      }
+      Map m = new HashMap(size);
+      for (int j = 0; j < size; j++) {
+        m.put("org.cougaar.Test"+j, new Integer(j));
+      }
+      final ResultMap rm = new ResultMap(m);
+      final ResultEntry[] entries = rm.getEntries();
+
+      SOAPBenchmark.run(
+          "createClassCountMap"+suffix, w, n,
+          new SOAPBenchmark.Task() {
+            public void run() {
+              BlackboardCountPlugin.createClassCountMap(c);
+            }
+          });
+      SOAPBenchmark.run(
+          "ResultMap.getEntries"+suffix, w, n,
+          new SOAPBenchmark.Task() {
+            public void run() {
+              rm.getEntries();
+            }
+          });
+      SOAPBenchmark.run(
+          "ResultMap.setEntries"+suffix, w, n,
+          new SOAPBenchmark.Task() {
+            public void run() {
+              new ResultMap().setEntries(entries);
+            }
+          });
+    }
+  }
+}
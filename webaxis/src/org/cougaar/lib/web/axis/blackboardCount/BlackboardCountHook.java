@@ -26,23 +26,34 @@
 
 package org.cougaar.lib.web.axis.blackboardCount;
 
+import org.cougaar.lib.web.axis.WebServicesHooks;
+
 /**
  * A {@link BlackboardCount} implementation that forwards all requests
- * to a static {@link BlackboardCount} instance.
+ * to the {@link BlackboardCount} registered by the requested agent.
  *
  * @see org.cougaar.lib.web.axis.mts.SOAPMTHook notes on why
  * this "hook" is necessary
  */
 public class BlackboardCountHook implements BlackboardCount {
 
-  private static BlackboardCount bc;
+  /** Our {@link WebServicesHooks} service name. */
+  static final String SERVICE = "urn:Cougaar-blackboard-count";
 
-  // package-protected so only my plugin can call this:
-  static void setStatic(BlackboardCount x) {
-    bc = x;
+  // package-protected so only my plugin can call these:
+  static void register(Object[] keys, BlackboardCount x) {
+    WebServicesHooks.register(SERVICE, keys, x);
+  }
+  static void unregister(BlackboardCount x) {
+    WebServicesHooks.unregister(SERVICE, x);
   }
 
   public ResultMap getBlackboardCount(String classFilter) {
+    BlackboardCount bc = (BlackboardCount) WebServicesHooks.find(SERVICE);
+    if (bc == null) {
+      throw new IllegalStateException(
+          "No BlackboardCount registered for this request");
+    }
     return bc.getBlackboardCount(classFilter);
   }
 }
@@ -27,9 +27,11 @@
 package org.cougaar.lib.web.axis.blackboardCount;
 
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 import javax.xml.parsers.DocumentBuilder;
@@ -41,12 +43,15 @@ import org.cougaar.core.blackboard.BlackboardClient;
 import org.cougaar.core.component.Component;
 import org.cougaar.core.component.ServiceBroker;
 import org.cougaar.core.service.BlackboardService;
+import org.cougaar.core.service.AgentIdentificationService;
 import org.cougaar.core.service.BlackboardQueryService;
 import org.cougaar.core.service.LoggingService;
+import org.cougaar.core.service.ServletService;
 import org.cougaar.core.service.UIDService;
 import org.cougaar.core.service.WebServicesService;
 import org.cougaar.core.util.UID;
 import org.cougaar.core.util.UniqueObject;
+import org.cougaar.lib.web.axis.WebServicesHooks;
 
 /**
  * This component advertises the SOAP "BlackboardCount" and
@@ -63,12 +68,12 @@ import org.cougaar.core.util.UniqueObject;
  * Use the {@link BlackboardCountClient} to invoke this plugin's
  * SOAP service from a command-line client. 
  * <p>
- * Note that only one instance of this plugin can be loaded per
- * JVM, since the {@link WebServicesService} is static and our
- * {@link BlackboardCountHook} is static.  To work around this,
- * a developer could maintain a Map in the "hook" and require
- * the SOAP caller to specify the agent name, or advertise separate
- * SOAP paths with separate "hook" implementations.
+ * Several instances of this plugin can be loaded per JVM, e.g.
+ * one per node, since our {@link BlackboardCountHook} routes each
+ * request through the {@link WebServicesHooks}.  A request to
+ * "/$<i>agent</i>/axis/services" is answered by the plugin in that
+ * agent, otherwise by the plugin in the node that owns the
+ * request's port.
  */
 public class BlackboardCountPlugin
   extends GenericStateModelAdapter
@@ -152,11 +157,11 @@ public class BlackboardCountPlugin
     // an empty blackboard
     createBlackboardTestObjects();
 
-    // set a pointer to our plugin.
+    // register a pointer to our plugin.
     //
     // this allows Axis to call "new BlackboardCountHook()" yet still
     // have the method calls invoke our plugin instance's methods.
-    BlackboardCountHook.setStatic(this);
+    BlackboardCountHook.register(getHookKeys(), this);
 
     // tell Axis to process the WSDD.
     //
@@ -183,6 +188,34 @@ public class BlackboardCountPlugin
         "  }");
   }
 
+  public void unload() {
+    BlackboardCountHook.unregister(this);
+    super.unload();
+  }
+
+  /** @return our agent's name and servlet ports */
+  private Object[] getHookKeys() {
+    List l = new ArrayList();
+    AgentIdentificationService ais = (AgentIdentificationService)
+      sb.getService(this, AgentIdentificationService.class, null);
+    if (ais != null) {
+      l.add(WebServicesHooks.agentKey(ais.getName()));
+      sb.releaseService(this, AgentIdentificationService.class, ais);
+    }
+    ServletService ss = (ServletService)
+      sb.getService(this, ServletService.class, null);
+    if (ss != null) {
+      if (ss.getHttpPort() > 0) {
+        l.add(WebServicesHooks.portKey(ss.getHttpPort()));
+      }
+      if (ss.getHttpsPort() > 0) {
+        l.add(WebServicesHooks.portKey(ss.getHttpsPort()));
+      }
+      sb.releaseService(this, ServletService.class, ss);
+    }
+    return l.toArray();
+  }
+
   public ResultMap getBlackboardCount(String s) {
     String classFilter = (s == null ? "*" : s.trim());
 
@@ -233,7 +266,7 @@ public class BlackboardCountPlugin
   }
 
   /** convert objects to "class -&gt; int" table */
-  private Map createClassCountMap(Collection c) {
+  static Map createClassCountMap(Collection c) {
     int n = (c == null ? 0 : c.size());
     Map ret = new HashMap(n);
     if (n > 0) {
@@ -0,0 +1,158 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 1997-2004 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+
+package org.cougaar.lib.web.axis.mts;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Sends serialized messages as raw HTTP POSTs of our
+ * {@link #CONTENT_TYPE}, which the target node's
+ * {@link org.cougaar.lib.web.axis.WebServicesProvider} passes
+ * directly to its {@link SOAPLinkProtocol} without any SOAP/XML
+ * processing.
+ * <p>
+ * The response body is the serialized result object.  If the
+ * target doesn't support our content type, which we detect by a
+ * response of any other content type, then we return null so the
+ * caller can fall back to SOAP.
+ */
+final class BinaryHTTPSender {
+
+  /** The MIME type of binary requests and responses */
+  public static final String CONTENT_TYPE = "application/x-cougaar-mts";
+
+  // optional keep-alive connections
+  private final HTTPConnectionPool pool;
+  private final int timeout;
+
+  /**
+   * @param pool optional keep-alive pool, or null to use
+   *   HttpURLConnection
+   * @param timeout read timeout in milliseconds, or zero for
+   *   forever
+   */
+  public BinaryHTTPSender(HTTPConnectionPool pool, int timeout) {
+    this.pool = pool;
+    this.timeout = timeout;
+  }
+
+  /**
+   * Post the serialized message.
+   *
+   * @return the deserialized response, or null if the target
+   *   doesn't accept binary messages
+   */
+  public Object send(URL url, SOAPMessageBuffer buf) throws Exception {
+    if (pool != null) {
+      return sendPooled(url, buf);
+    }
+    HttpURLConnection c = (HttpURLConnection) url.openConnection();
+    c.setDoOutput(true);
+    c.setUseCaches(false);
+    c.setRequestMethod("POST");
+    c.setRequestProperty("Content-Type", CONTENT_TYPE);
+    c.setFixedLengthStreamingMode(buf.size());
+    if (timeout > 0) {
+      c.setReadTimeout(timeout);
+    }
+    OutputStream out = c.getOutputStream();
+    buf.writeTo(out);
+    out.close();
+    int statusCode = c.getResponseCode();
+    if (isResult(statusCode) && isBinary(c.getContentType())) {
+      return readObject(
+          new BufferedInputStream(
+            statusCode == HttpURLConnection.HTTP_OK ?
+            c.getInputStream() :
+            c.getErrorStream()));
+    }
+    InputStream in =
+      (statusCode < 400 ? c.getInputStream() : c.getErrorStream());
+    if (in != null) {
+      // drain for the JDK's keep-alive cache
+      byte[] b = new byte[1024];
+      while (in.read(b) >= 0) {
+      }
+      in.close();
+    }
+    return null;
+  }
+
+  private Object sendPooled(URL url, SOAPMessageBuffer buf) throws Exception {
+    HTTPConnectionPool.Connection c;
+    for (int attempt = 0; ; attempt++) {
+      c = pool.take(url, timeout);
+      try {
+        c.writeRequest(url, CONTENT_TYPE, buf.size(), null);
+        buf.writeTo(c.getOutputStream());
+        c.readResponse(timeout);
+        break;
+      } catch (IOException ioe) {
+        pool.discard(c);
+        if (attempt > 0 || !c.isReused() || c.hasResponse()) {
+          throw ioe;
+        }
+        // stale keep-alive connection, retry
+      }
+    }
+    int statusCode = c.getStatusCode();
+    String contentType = c.getContentType();
+    byte[] body = c.getBody();
+    pool.release(c);
+    if (!isResult(statusCode) || !isBinary(contentType)) {
+      return null;
+    }
+    return readObject(new ByteArrayInputStream(body));
+  }
+
+  /** @return true if the response body holds our result */
+  private static boolean isResult(int statusCode) {
+    // a full receiver replies 503 with a busy result
+    return
+      statusCode == HttpURLConnection.HTTP_OK ||
+      statusCode == HttpURLConnection.HTTP_UNAVAILABLE;
+  }
+
+  private static boolean isBinary(String contentType) {
+    return
+      contentType != null &&
+      contentType.toLowerCase().startsWith(CONTENT_TYPE);
+  }
+
+  private static Object readObject(InputStream in) throws Exception {
+    // usually serialized, or an inline SOAPAck
+    Object obj = SOAPSerialization.readObject(in, null);
+    in.close();
+    return obj;
+  }
+}
@@ -0,0 +1,590 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 1997-2004 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+
+package org.cougaar.lib.web.axis.mts;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.axis.components.net.BooleanHolder;
+import org.apache.axis.components.net.DefaultSocketFactory;
+import org.apache.axis.components.net.SocketFactory;
+import org.apache.axis.components.net.SocketFactoryFactory;
+
+/**
+ * A bounded pool of persistent HTTP/1.1 "keep-alive" connections,
+ * keyed by destination (protocol, host, and port).
+ * <p>
+ * Axis's default HTTPSender opens a new socket per message, plus
+ * a full SSL handshake for "https", which is a large part of the
+ * SOAP send time.  This pool lets the {@link KeepAliveHTTPSender}
+ * reuse connections across messages.
+ * <p>
+ * At most <i>maxPerDestination</i> connections, idle or in use,
+ * are opened per destination; additional senders wait for a
+ * connection to be released.  Connections that have been idle
+ * longer than <i>idleTimeout</i> milliseconds are closed the next
+ * time the pool is used.
+ * <p>
+ * An "https" connection is opened by the Axis secure socket
+ * factory, as Axis's HTTPSender does, so it uses the SSL
+ * configuration (e.g. the node's keystores) that was set up for
+ * Axis.
+ */
+final class HTTPConnectionPool {
+
+  private final int maxPerDestination;
+  private final long idleTimeout;
+  private final int connectTimeout;
+
+  // map from destination key to Entry, guarded by "this"
+  private final Map entries = new HashMap();
+
+  private long lastSweep;
+  private boolean closed;
+
+  public HTTPConnectionPool(
+      int maxPerDestination, long idleTimeout, int connectTimeout) {
+    this.maxPerDestination = maxPerDestination;
+    this.idleTimeout = idleTimeout;
+    this.connectTimeout = connectTimeout;
+    if (maxPerDestination <= 0) {
+      throw new IllegalArgumentException(
+          "Invalid maxPerDestination: "+maxPerDestination);
+    }
+  }
+
+  /**
+   * Take an open connection to the URL's destination, waiting up
+   * to <i>timeout</i> milliseconds (zero for forever) if the
+   * destination is at its connection limit.
+   */
+  public Connection take(URL url, long timeout) throws IOException {
+    String key = getKey(url);
+    long now = System.currentTimeMillis();
+    long deadline = (timeout > 0 ? now + timeout : Long.MAX_VALUE);
+    synchronized (this) {
+      if (closed) {
+        throw new IOException("Connection pool is closed");
+      }
+      sweep(now);
+      while (true) {
+        // look up the entry on every pass, since "closed" and "sweep"
+        // remove unused entries while we wait
+        Entry e = (Entry) entries.get(key);
+        if (e == null) {
+          e = new Entry();
+          entries.put(key, e);
+        }
+        int n = e.idle.size();
+        if (n > 0) {
+          // most-recently used, which is the least likely to have
+          // been closed by the server
+          Connection c = (Connection) e.idle.remove(n - 1);
+          c.reused = true;
+          return c;
+        }
+        if (e.open < maxPerDestination) {
+          e.open++;
+          break;
+        }
+        long wait = deadline - System.currentTimeMillis();
+        if (wait <= 0) {
+          throw new InterruptedIOException(
+              "Timeout waiting for a connection to "+key);
+        }
+        try {
+          wait(wait);
+        } catch (InterruptedException ie) {
+          throw new InterruptedIOException(
+              "Interrupted waiting for a connection to "+key);
+        }
+        if (closed) {
+          throw new IOException("Connection pool is closed");
+        }
+      }
+    }
+    // connect outside the lock
+    try {
+      return new Connection(key, url, connectTimeout);
+    } catch (IOException ioe) {
+      closed(key);
+      throw ioe;
+    } catch (RuntimeException re) {
+      closed(key);
+      throw re;
+    }
+  }
+
+  /**
+   * Return a connection obtained by {@link #take}, which will be
+   * closed if the server didn't agree to keep it alive.
+   */
+  public void release(Connection c) {
+    if (!c.isKeepAlive()) {
+      discard(c);
+      return;
+    }
+    synchronized (this) {
+      Entry e = (Entry) entries.get(c.key);
+      if (!closed && e != null) {
+        c.lastUsed = System.currentTimeMillis();
+        e.idle.add(c);
+        notifyAll();
+        return;
+      }
+    }
+    discard(c);
+  }
+
+  /** Close a connection obtained by {@link #take}. */
+  public void discard(Connection c) {
+    c.close();
+    closed(c.key);
+  }
+
+  /** Close all idle connections and reject future "take"s. */
+  public void close() {
+    List l = new ArrayList();
+    synchronized (this) {
+      closed = true;
+      for (Iterator iter = entries.values().iterator();
+          iter.hasNext();
+          ) {
+        Entry e = (Entry) iter.next();
+        l.addAll(e.idle);
+        e.idle.clear();
+      }
+      entries.clear();
+      notifyAll();
+    }
+    for (int i = 0; i < l.size(); i++) {
+      ((Connection) l.get(i)).close();
+    }
+  }
+
+  private synchronized void closed(String key) {
+    Entry e = (Entry) entries.get(key);
+    if (e != null) {
+      e.open--;
+      if (e.open <= 0 && e.idle.isEmpty()) {
+        entries.remove(key);
+      }
+    }
+    notifyAll();
+  }
+
+  // close idle connections, guarded by "this"
+  private void sweep(long now) {
+    if (now - lastSweep < (idleTimeout >> 1)) {
+      return;
+    }
+    lastSweep = now;
+    for (Iterator iter = entries.values().iterator(); iter.hasNext(); ) {
+      Entry e = (Entry) iter.next();
+      for (Iterator i2 = e.idle.iterator(); i2.hasNext(); ) {
+        Connection c = (Connection) i2.next();
+        if (now - c.lastUsed >= idleTimeout) {
+          i2.remove();
+          e.open--;
+          // socket close doesn't block
+          c.close();
+        }
+      }
+      if (e.open <= 0 && e.idle.isEmpty()) {
+        iter.remove();
+      }
+    }
+  }
+
+  private static String getKey(URL url) {
+    String protocol = url.getProtocol();
+    int port = url.getPort();
+    if (port < 0) {
+      port = url.getDefaultPort();
+    }
+    return protocol+"://"+url.getHost()+":"+port;
+  }
+
+  private static final class Entry {
+    // number of open connections, idle or in use
+    public int open;
+    // idle connections, ordered by release time
+    public final List idle = new ArrayList();
+  }
+
+  /**
+   * An open HTTP connection, which supports a single
+   * request/response exchange at a time.
+   */
+  static final class Connection {
+
+    private final String key;
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+
+    private boolean reused;
+    private long lastUsed;
+
+    // response state
+    private boolean responded;
+    private boolean keepAlive;
+    private int statusCode;
+    private String statusMessage;
+    private String contentType;
+    private String contentLocation;
+    private byte[] body;
+
+    private Connection(
+        String key, URL url, int connectTimeout) throws IOException {
+      this.key = key;
+      String host = url.getHost();
+      int port = url.getPort();
+      if (port < 0) {
+        port = url.getDefaultPort();
+      }
+      Socket s = null;
+      try {
+        if ("https".equals(url.getProtocol())) {
+          s = createSecureSocket(host, port, connectTimeout);
+        } else {
+          s = new Socket();
+          s.connect(new InetSocketAddress(host, port), connectTimeout);
+        }
+        s.setTcpNoDelay(true);
+        s.setKeepAlive(true);
+        this.in = new BufferedInputStream(s.getInputStream());
+        this.out = new BufferedOutputStream(s.getOutputStream());
+      } catch (IOException e) {
+        closeSocket(s);
+        throw e;
+      } catch (RuntimeException e) {
+        closeSocket(s);
+        throw e;
+      }
+      this.socket = s;
+    }
+
+    /**
+     * @return a connected socket from the Axis secure socket
+     * factory, which also tunnels through a configured proxy
+     */
+    private static Socket createSecureSocket(
+        String host, int port, int connectTimeout) throws IOException {
+      Hashtable attrs = new Hashtable();
+      if (connectTimeout > 0) {
+        attrs.put(
+            DefaultSocketFactory.CONNECT_TIMEOUT,
+            Integer.toString(connectTimeout));
+      }
+      SocketFactory sf = SocketFactoryFactory.getFactory("https", attrs);
+      if (sf == null) {
+        throw new IOException("No secure socket factory");
+      }
+      try {
+        return sf.create(
+            host, port, new StringBuffer(), new BooleanHolder(false));
+      } catch (IOException e) {
+        throw e;
+      } catch (RuntimeException e) {
+        throw e;
+      } catch (Exception e) {
+        IOException ioe =
+          new IOException("Unable to connect to "+host+":"+port);
+        ioe.initCause(e);
+        throw ioe;
+      }
+    }
+
+    private static void closeSocket(Socket s) {
+      if (s == null) {
+        return;
+      }
+      try {
+        s.close();
+      } catch (IOException e) {
+        // ignore
+      }
+    }
+
+    /** @return true if this connection was used by a prior exchange */
+    public boolean isReused() {
+      return reused;
+    }
+
+    /**
+     * @return true if any response bytes were read, which means
+     * the server received the request.
+     */
+    public boolean hasResponse() {
+      return responded;
+    }
+
+    public boolean isKeepAlive() {
+      return keepAlive;
+    }
+    public int getStatusCode() {
+      return statusCode;
+    }
+    public String getStatusMessage() {
+      return statusMessage;
+    }
+    public String getContentType() {
+      return contentType;
+    }
+    public String getContentLocation() {
+      return contentLocation;
+    }
+    public byte[] getBody() {
+      return body;
+    }
+
+    /**
+     * Write the request line and headers, after which the caller
+     * must write exactly <i>contentLength</i> bytes to the
+     * {@link #getOutputStream} then call {@link #readResponse}.
+     *
+     * @param headers optional extra "name, value" header pairs
+     */
+    public void writeRequest(
+        URL url,
+        String contentType,
+        long contentLength,
+        String[] headers) throws IOException {
+      responded = false;
+      keepAlive = false;
+      body = null;
+
+      String path = url.getFile();
+      if (path == null || path.length() == 0) {
+        path = "/";
+      }
+      int port = url.getPort();
+      StringBuffer buf = new StringBuffer();
+      buf.append("POST ").append(path).append(" HTTP/1.1\r\n");
+      buf.append("Host: ").append(url.getHost());
+      if (port >= 0) {
+        buf.append(':').append(port);
+      }
+      buf.append("\r\n");
+      buf.append("Content-Type: ").append(contentType).append("\r\n");
+      buf.append("Content-Length: ").append(contentLength).append("\r\n");
+      buf.append("Connection: keep-alive\r\n");
+      for (int i = 0; headers != null && i < headers.length; i += 2) {
+        buf.append(headers[i]).append(": ");
+        buf.append(headers[i+1]).append("\r\n");
+      }
+      buf.append("\r\n");
+      out.write(buf.toString().getBytes("ISO-8859-1"));
+    }
+
+    public OutputStream getOutputStream() {
+      return out;
+    }
+
+    /**
+     * Flush the request and read the response status, headers,
+     * and body.
+     *
+     * @param timeout socket read timeout in milliseconds, or zero
+     *   for forever.
+     */
+    public void readResponse(int timeout) throws IOException {
+      out.flush();
+      socket.setSoTimeout(timeout);
+
+      String statusLine = readLine(true);
+      responded = true;
+      // e.g. "HTTP/1.1 200 OK"
+      int i = statusLine.indexOf(' ');
+      if (!statusLine.startsWith("HTTP/") || i < 0) {
+        throw new IOException("Invalid HTTP status: "+statusLine);
+      }
+      String version = statusLine.substring(0, i);
+      int j = statusLine.indexOf(' ', i+1);
+      String code = 
+        (j < 0 ? statusLine.substring(i+1) :
+         statusLine.substring(i+1, j));
+      try {
+        statusCode = Integer.parseInt(code.trim());
+      } catch (NumberFormatException nfe) {
+        throw new IOException("Invalid HTTP status: "+statusLine);
+      }
+      statusMessage = (j < 0 ? "" : statusLine.substring(j+1));
+
+      boolean http11 = "HTTP/1.1".equals(version);
+      String connection = null;
+      long contentLength = -1;
+      boolean chunked = false;
+      contentType = null;
+      contentLocation = null;
+      while (true) {
+        String line = readLine(false);
+        if (line.length() == 0) {
+          break;
+        }
+        int sep = line.indexOf(':');
+        if (sep <= 0) {
+          continue;
+        }
+        String name = line.substring(0, sep).trim();
+        String value = line.substring(sep+1).trim();
+        if (name.equalsIgnoreCase("Content-Length")) {
+          try {
+            contentLength = Long.parseLong(value);
+          } catch (NumberFormatException nfe) {
+            throw new IOException("Invalid Content-Length: "+value);
+          }
+        } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+          chunked = value.equalsIgnoreCase("chunked");
+        } else if (name.equalsIgnoreCase("Connection")) {
+          connection = value;
+        } else if (name.equalsIgnoreCase("Content-Type")) {
+          contentType = value;
+        } else if (name.equalsIgnoreCase("Content-Location")) {
+          contentLocation = value;
+        }
+      }
+
+      boolean canReuse =
+        (connection == null ? http11 :
+         connection.equalsIgnoreCase("keep-alive") ||
+         (http11 && !connection.equalsIgnoreCase("close")));
+
+      if (chunked) {
+        body = readChunked();
+      } else if (contentLength >= 0) {
+        body = readFully(contentLength);
+      } else {
+        // read until the server closes the socket
+        body = readFully(-1);
+        canReuse = false;
+      }
+      keepAlive = canReuse;
+    }
+
+    public void close() {
+      try {
+        socket.close();
+      } catch (IOException ioe) {
+        // ignore
+      }
+    }
+
+    private byte[] readChunked() throws IOException {
+      ByteArrayOutputStream bos = new ByteArrayOutputStream();
+      while (true) {
+        String line = readLine(false);
+        int semi = line.indexOf(';');
+        if (semi >= 0) {
+          line = line.substring(0, semi);
+        }
+        int size;
+        try {
+          size = Integer.parseInt(line.trim(), 16);
+        } catch (NumberFormatException nfe) {
+          throw new IOException("Invalid chunk size: "+line);
+        }
+        if (size == 0) {
+          // skip trailers
+          while (readLine(false).length() > 0) {
+          }
+          break;
+        }
+        copy(size, bos);
+        readLine(false);
+      }
+      return bos.toByteArray();
+    }
+
+    private byte[] readFully(long length) throws IOException {
+      if (length > Integer.MAX_VALUE) {
+        throw new IOException("Response too large: "+length);
+      }
+      ByteArrayOutputStream bos =
+        new ByteArrayOutputStream(length < 0 ? 1024 : (int) length);
+      copy(length, bos);
+      return bos.toByteArray();
+    }
+
+    // copy "length" bytes, or until EOF if negative
+    private void copy(long length, OutputStream os) throws IOException {
+      byte[] buf = new byte[4096];
+      long remaining = length;
+      while (length < 0 || remaining > 0) {
+        int len = (int)
+          (length < 0 ? buf.length : Math.min(buf.length, remaining));
+        int n = in.read(buf, 0, len);
+        if (n < 0) {
+          if (length < 0) {
+            break;
+          }
+          throw new EOFException(
+              "Connection closed with "+remaining+" bytes unread");
+        }
+        os.write(buf, 0, n);
+        remaining -= n;
+      }
+    }
+
+    private String readLine(boolean first) throws IOException {
+      StringBuffer buf = new StringBuffer();
+      while (true) {
+        int ch = in.read();
+        if (ch < 0) {
+          if (first && buf.length() == 0) {
+            // the server closed an idle connection
+            throw new EOFException("Connection closed");
+          }
+          throw new EOFException("Connection closed in header");
+        }
+        if (ch == '\n') {
+          break;
+        }
+        if (ch != '\r') {
+          buf.append((char) ch);
+        }
+      }
+      return buf.toString();
+    }
+  }
+}
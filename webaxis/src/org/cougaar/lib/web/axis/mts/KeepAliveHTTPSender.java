@@ -0,0 +1,141 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 1997-2004 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+
+package org.cougaar.lib.web.axis.mts;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URL;
+
+import org.apache.axis.AxisFault;
+import org.apache.axis.Message;
+import org.apache.axis.MessageContext;
+import org.apache.axis.handlers.BasicHandler;
+import org.apache.axis.transport.http.HTTPConstants;
+
+/**
+ * An Axis transport {@link org.apache.axis.Handler} that sends
+ * SOAP requests over pooled keep-alive connections from an
+ * {@link HTTPConnectionPool}.
+ * <p>
+ * This replaces Axis's default HTTPSender, which opens a new
+ * socket per call.  If a reused connection turns out to have been
+ * closed by the server before any response was read, the request
+ * is retried once on a new connection.
+ * <p>
+ * The HTTP round-trip time is saved in the MessageContext's
+ * {@link #HTTP_TIME_PROPERTY}.
+ */
+final class KeepAliveHTTPSender extends BasicHandler {
+
+  /** The nanoseconds spent in HTTP I/O, as a Long */
+  static final String HTTP_TIME_PROPERTY =
+    "org.cougaar.lib.web.axis.mts.httpTime";
+
+  private final HTTPConnectionPool pool;
+
+  public KeepAliveHTTPSender(HTTPConnectionPool pool) {
+    this.pool = pool;
+    if (pool == null) {
+      throw new IllegalArgumentException("null pool");
+    }
+  }
+
+  public void invoke(MessageContext msgContext) throws AxisFault {
+    try {
+      send(msgContext);
+    } catch (AxisFault af) {
+      throw af;
+    } catch (Exception e) {
+      throw AxisFault.makeFault(e);
+    }
+  }
+
+  private void send(MessageContext msgContext) throws Exception {
+    URL url = new URL(msgContext.getStrProp(MessageContext.TRANS_URL));
+    Message reqMessage = msgContext.getRequestMessage();
+    String contentType =
+      reqMessage.getContentType(msgContext.getSOAPConstants());
+    long contentLength = reqMessage.getContentLength();
+    String action =
+      (msgContext.useSOAPAction() ?
+       msgContext.getSOAPActionURI() :
+       null);
+    String[] headers = new String[] {
+      HTTPConstants.HEADER_SOAP_ACTION,
+      "\""+(action == null ? "" : action)+"\"",
+    };
+    int timeout = msgContext.getTimeout();
+
+    long start = System.nanoTime();
+    HTTPConnectionPool.Connection c;
+    for (int attempt = 0; ; attempt++) {
+      c = pool.take(url, timeout);
+      try {
+        c.writeRequest(url, contentType, contentLength, headers);
+        reqMessage.writeTo(c.getOutputStream());
+        c.readResponse(timeout);
+        break;
+      } catch (IOException ioe) {
+        pool.discard(c);
+        if (attempt > 0 || !c.isReused() || c.hasResponse()) {
+          throw ioe;
+        }
+        // stale keep-alive connection, retry
+      }
+    }
+
+    int statusCode = c.getStatusCode();
+    String statusMessage = c.getStatusMessage();
+    String responseType = c.getContentType();
+    String responseLocation = c.getContentLocation();
+    byte[] body = c.getBody();
+    pool.release(c);
+
+    msgContext.setProperty(
+        HTTP_TIME_PROPERTY, new Long(System.nanoTime() - start));
+
+    msgContext.setProperty(
+        HTTPConstants.MC_HTTP_STATUS_CODE, new Integer(statusCode));
+    msgContext.setProperty(
+        HTTPConstants.MC_HTTP_STATUS_MESSAGE, statusMessage);
+
+    if ((statusCode < 200 || statusCode > 299) &&
+        (statusCode < 500 || statusCode > 599 ||
+         responseType == null ||
+         responseType.indexOf("xml") < 0)) {
+      // not a SOAP fault, as in HTTPSender
+      throw new AxisFault(
+          "HTTP", "("+statusCode+")"+statusMessage, null, null);
+    }
+
+    Message outMsg = new Message(
+        new ByteArrayInputStream(body), false,
+        responseType, responseLocation);
+    outMsg.setMessageType(Message.RESPONSE);
+    msgContext.setResponseMessage(outMsg);
+  }
+}
@@ -0,0 +1,171 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 1997-2004 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+
+package org.cougaar.lib.web.axis.mts;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.cougaar.core.mts.MessageAttributes;
+import org.cougaar.core.mts.SimpleMessageAttributes;
+
+/**
+ * A compact acknowledgement of a delivered {@link SOAPLinkProtocol}
+ * message, which replaces the usual serialized
+ * {@link MessageAttributes} in the common case.
+ * <p>
+ * A sender asks for compact replies by setting the
+ * {@link #REQUEST_ATTRIBUTE} on the message, which the receiver
+ * removes before delivery.  If the delivery result is an
+ * attributes object that only holds the delivery status, then the
+ * reply is just the status code, and the sender rebuilds the same
+ * attributes.  Any other result, e.g. one with attributes set by
+ * the receiver's MTS, or an exception, is sent in full.
+ * <p>
+ * An inline reply starts with the {@link #MAGIC} byte, followed
+ * by the code and, for a status other than "delivered", the
+ * status string.  Within a batch reply the ack is serialized as
+ * an object.
+ */
+final class SOAPAck implements Serializable {
+
+  /** Header byte, distinct from the other stream headers */
+  static final int MAGIC = 0x5D;
+
+  /** The message attribute that asks for a compact reply */
+  static final String REQUEST_ATTRIBUTE =
+    "org.cougaar.lib.web.axis.mts.CompactAck";
+
+  // codes
+  private static final int DELIVERED_CODE = 2;
+  private static final int STATUS_CODE = 3;
+
+  /** A plain "delivered" status, e.g. for a queued message */
+  static final SOAPAck DELIVERED =
+    new SOAPAck(
+        DELIVERED_CODE, MessageAttributes.DELIVERY_STATUS_DELIVERED);
+
+  // the maximum number of cached status templates
+  private static final int MAX_TEMPLATES = 32;
+
+  // map from status String to the attributes string of a new
+  // attributes object that only holds that status, guarded by
+  // "TEMPLATES"
+  private static final Map TEMPLATES = new HashMap();
+
+  private final int code;
+  private final String status;
+
+  private SOAPAck(int code, String status) {
+    this.code = code;
+    this.status = status;
+  }
+
+  /**
+   * @return the ack for a delivery result if it only holds a
+   *   delivery status, otherwise the result
+   */
+  static Object compact(Object result) {
+    if (!(result instanceof MessageAttributes)) {
+      return result;
+    }
+    MessageAttributes attrs = (MessageAttributes) result;
+    Object status = attrs.getAttribute(MessageAttributes.DELIVERY_ATTRIBUTE);
+    if (!(status instanceof String)) {
+      return result;
+    }
+    // MessageAttributes can't be listed, so compare its summary
+    // with that of a new attributes object with the same status
+    String template = getTemplate((String) status);
+    if (template == null ||
+        !template.equals(attrs.getAttributesAsString())) {
+      return result;
+    }
+    return
+      (MessageAttributes.DELIVERY_STATUS_DELIVERED.equals(status) ?
+       DELIVERED :
+       new SOAPAck(STATUS_CODE, (String) status));
+  }
+
+  /** Read an inline reply, after the header byte. */
+  static SOAPAck read(InputStream in) throws IOException {
+    DataInputStream dis = new DataInputStream(in);
+    int code = dis.read();
+    switch (code) {
+      case DELIVERED_CODE:
+        return DELIVERED;
+      case STATUS_CODE:
+        return new SOAPAck(STATUS_CODE, dis.readUTF());
+      default:
+        throw new IOException("Invalid ack code: "+code);
+    }
+  }
+
+  /** @return the inline reply bytes */
+  byte[] toByteArray() throws IOException {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream(16);
+    DataOutputStream dos = new DataOutputStream(bos);
+    dos.write(MAGIC);
+    dos.write(code);
+    if (code == STATUS_CODE) {
+      dos.writeUTF(status);
+    }
+    dos.close();
+    return bos.toByteArray();
+  }
+
+  /** @return the receiver's delivery result */
+  MessageAttributes toAttributes() {
+    return createAttributes(status);
+  }
+
+  private static MessageAttributes createAttributes(String status) {
+    MessageAttributes attrs = new SimpleMessageAttributes();
+    attrs.setAttribute(MessageAttributes.DELIVERY_ATTRIBUTE, status);
+    return attrs;
+  }
+
+  private static String getTemplate(String status) {
+    synchronized (TEMPLATES) {
+      String t = (String) TEMPLATES.get(status);
+      if (t == null && TEMPLATES.size() < MAX_TEMPLATES) {
+        t = createAttributes(status).getAttributesAsString();
+        TEMPLATES.put(status, t);
+      }
+      return t;
+    }
+  }
+
+  public String toString() {
+    return "(ack "+status+")";
+  }
+}
@@ -0,0 +1,119 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 1997-2004 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+
+package org.cougaar.lib.web.axis.mts;
+
+import org.cougaar.core.mts.MessageAttributes;
+import org.cougaar.core.mts.SimpleMessageAttributes;
+
+/**
+ * A command-line benchmark of {@link SOAPLinkProtocol} reply
+ * sizes and decode times, with and without {@link SOAPAck}
+ * compact replies.
+ * <p>
+ * The "delivered" case is a result that only holds the delivery
+ * status, the "forwarded" case is a result that only holds another
+ * status, and the "changed" case is a result with an extra
+ * attribute, which is always sent in full.
+ * For each case the reply bytes and their base64 size in the SOAP
+ * envelope are printed, followed by the receiver's encode and the
+ * sender's decode throughput.
+ * <p>
+ * To run:<pre>
+ *   CP="$CIP/lib/webaxis.jar:$CIP/lib/core.jar:$CIP/lib/util.jar:$CIP/lib/bootstrap.jar:$CIP/sys/axis_1_2_beta.jar:..."
+ *   CL="org.cougaar.lib.web.axis.mts.SOAPAckBenchmark"
+ *   java -classpath $CP $CL [-warmup=N] [-iterations=N]
+ * </pre>
+ */
+public class SOAPAckBenchmark {
+
+  private static final String[] CASES = {"delivered", "forwarded", "changed"};
+
+  public static void main(String[] args) throws Exception {
+    int warmup = SOAPBenchmark.getInt(args, "warmup", 20000);
+    int iterations = SOAPBenchmark.getInt(args, "iterations", 200000);
+
+    for (int i = 0; i < CASES.length; i++) {
+      final Object result = createResult(CASES[i]);
+      for (int j = 0; j < 2; j++) {
+        final boolean compact = (j == 1);
+        String suffix = "("+CASES[i]+", "+(compact ? "compact" : "full")+")";
+        final byte[] bytes = encode(result, compact);
+        System.out.println(
+            "reply"+suffix+" bytes="+bytes.length+
+            " base64="+(4*((bytes.length + 2) / 3)));
+        SOAPBenchmark.run(
+            "encode"+suffix, warmup, iterations,
+            new SOAPBenchmark.Task() {
+              public void run() throws Exception {
+                encode(result, compact);
+              }
+            });
+        SOAPBenchmark.run(
+            "decode"+suffix, warmup, iterations,
+            new SOAPBenchmark.Task() {
+              public void run() throws Exception {
+                decode(bytes);
+              }
+            });
+      }
+    }
+  }
+
+  private static Object createResult(String name) {
+    MessageAttributes attrs = new SimpleMessageAttributes();
+    attrs.setAttribute(
+        MessageAttributes.DELIVERY_ATTRIBUTE,
+        ("forwarded".equals(name) ?
+         MessageAttributes.DELIVERY_STATUS_STORE_AND_FORWARD :
+         MessageAttributes.DELIVERY_STATUS_DELIVERED));
+    if ("changed".equals(name)) {
+      attrs.setAttribute("ReceiverIncarnation", new Long(1));
+    }
+    return attrs;
+  }
+
+  /** Encode a reply as the receiving SOAPLinkProtocol does. */
+  private static byte[] encode(
+      Object result, boolean compact) throws Exception {
+    Object o = (compact ? SOAPAck.compact(result) : result);
+    if (o instanceof SOAPAck) {
+      return new SOAPData(((SOAPAck) o).toByteArray()).getBytes();
+    }
+    return new SOAPData(o).getBytes();
+  }
+
+  /** Decode a reply as the sending SOAPDestinationLink does. */
+  private static Object decode(byte[] bytes) throws Exception {
+    SOAPData data = new SOAPData();
+    data.setBytes(bytes);
+    Object o = data.toObject();
+    if (o instanceof SOAPAck) {
+      o = ((SOAPAck) o).toAttributes();
+    }
+    return o;
+  }
+}
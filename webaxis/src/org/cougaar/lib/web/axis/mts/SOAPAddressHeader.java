@@ -0,0 +1,163 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 1997-2004 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+
+package org.cougaar.lib.web.axis.mts;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.cougaar.core.mts.Message;
+import org.cougaar.core.mts.MessageAddress;
+import org.cougaar.mts.base.AttributedMessage;
+import org.cougaar.mts.base.MisdeliveredMessageException;
+
+/**
+ * A small header that a {@link SOAPLinkProtocol} sender writes in
+ * front of a serialized, and possibly compressed, message, which
+ * lets the receiver reject a misdelivered message and queue a
+ * message for delivery before it decodes the message.
+ * <p>
+ * The header is the {@link #MAGIC} byte, a flags byte, and the
+ * originator, target and {@link SOAPSendWindow} sequence tag as
+ * UTF strings, where an empty tag means none.  A receiver that
+ * doesn't look at the header skips it in
+ * {@link SOAPCompression#decompress}.
+ */
+final class SOAPAddressHeader {
+
+  /** Header byte, distinct from the other stream headers */
+  static final int MAGIC = 0x5E;
+
+  /**
+   * Flag set if the message refers to the sender's class cache
+   * session, so it must be decoded in the order it was received.
+   */
+  static final int CLASS_CACHE = 1;
+
+  private final int flags;
+  private final MessageAddress originator;
+  private final MessageAddress target;
+  private final String tag;
+
+  private SOAPAddressHeader(
+      int flags, MessageAddress originator, MessageAddress target,
+      String tag) {
+    this.flags = flags;
+    this.originator = originator;
+    this.target = target;
+    this.tag = tag;
+  }
+
+  /** Write the header of a message. */
+  static void write(
+      OutputStream os, AttributedMessage message,
+      int flags) throws IOException {
+    Object tag = message.getAttribute(SOAPSendWindow.SEQUENCE_ATTRIBUTE);
+    DataOutputStream dos = new DataOutputStream(os);
+    dos.write(MAGIC);
+    dos.write(flags);
+    dos.writeUTF(message.getOriginator().toAddress());
+    dos.writeUTF(message.getTarget().toAddress());
+    dos.writeUTF(tag instanceof String ? (String) tag : "");
+    dos.flush();
+  }
+
+  /**
+   * Read the header at the start of a stream.
+   *
+   * @param in a stream that supports "mark"
+   * @return the header, or null if the stream doesn't start with
+   *   a header, in which case the stream is unchanged
+   */
+  static SOAPAddressHeader read(InputStream in) throws IOException {
+    in.mark(1);
+    if (in.read() != MAGIC) {
+      in.reset();
+      return null;
+    }
+    return readFields(in);
+  }
+
+  /** Read the header after its {@link #MAGIC} byte. */
+  static SOAPAddressHeader readFields(InputStream in) throws IOException {
+    DataInputStream dis = new DataInputStream(in);
+    int flags = dis.read();
+    if (flags < 0) {
+      throw new IOException("Truncated address header");
+    }
+    MessageAddress originator =
+      MessageAddress.getMessageAddress(dis.readUTF());
+    MessageAddress target =
+      MessageAddress.getMessageAddress(dis.readUTF());
+    String tag = dis.readUTF();
+    return new SOAPAddressHeader(
+        flags, originator, target, (tag.length() == 0 ? null : tag));
+  }
+
+  /** @return true if the message must be decoded in order */
+  boolean usesClassCache() {
+    return (flags & CLASS_CACHE) != 0;
+  }
+
+  MessageAddress getOriginator() {
+    return originator;
+  }
+
+  MessageAddress getTarget() {
+    return target;
+  }
+
+  /** @return the sequence tag, or null if none */
+  String getTag() {
+    return tag;
+  }
+
+  /**
+   * @return the result for a message whose target isn't on our
+   *   node, which we report without decoding the message
+   */
+  MisdeliveredMessageException misdelivered() {
+    return new MisdeliveredMessageException(
+        new AttributedMessage(new Addressee(originator, target)));
+  }
+
+  public String toString() {
+    return
+      "(header from="+originator+" to="+target+
+      (tag == null ? "" : " tag="+tag)+
+      (usesClassCache() ? " cc" : "")+")";
+  }
+
+  /** Stands in for the undecoded message in a misdelivery. */
+  private static final class Addressee extends Message {
+    public Addressee(MessageAddress originator, MessageAddress target) {
+      super(originator, target);
+    }
+  }
+}
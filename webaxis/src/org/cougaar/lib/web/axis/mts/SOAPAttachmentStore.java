@@ -0,0 +1,238 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 1997-2004 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+
+package org.cougaar.lib.web.axis.mts;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import javax.activation.DataHandler;
+import javax.activation.DataSource;
+import javax.activation.FileDataSource;
+
+import org.apache.axis.attachments.ManagedMemoryDataSource;
+
+/**
+ * Reads received {@link SOAPLinkProtocol} attachments, keeping
+ * small attachments on the heap and memory-mapping large ones.
+ * <p>
+ * Axis buffers each received attachment in memory or, if it is
+ * larger than Axis's cache limit, in a temporary file.  The
+ * original code always reopened the temporary file with an
+ * unbuffered stream and left the file for Axis's periodic cleanup.
+ * Here an in-memory attachment is read directly, a spooled
+ * attachment up to <i>heapLimit</i> bytes is read into a single
+ * heap buffer, and a larger one is memory-mapped.  The temporary
+ * file is deleted as soon as the object has been read.
+ * <p>
+ * The byte and attachment counters are cumulative.
+ */
+final class SOAPAttachmentStore {
+
+  private final int heapLimit;
+
+  // guarded by "this"
+  private long heapCount;
+  private long heapBytes;
+  private long spilledCount;
+  private long spilledBytes;
+
+  public SOAPAttachmentStore(int heapLimit) {
+    this.heapLimit = heapLimit;
+  }
+
+  /** Read the serialized object in the attachment. */
+  public Object readObject(DataHandler dh) throws Exception {
+    return readObject(dh, null);
+  }
+
+  /**
+   * Read the serialized object in the attachment, which may be
+   * encoded with a {@link SOAPClassCache} session.
+   */
+  public Object readObject(
+      DataHandler dh, SOAPClassCache.Receiver receiver) throws Exception {
+    DataSource ds = dh.getDataSource();
+    File f;
+    if (ds instanceof ManagedMemoryDataSource) {
+      f = ((ManagedMemoryDataSource) ds).getDiskCacheFile();
+    } else if (ds instanceof FileDataSource) {
+      f = ((FileDataSource) ds).getFile();
+    } else {
+      f = null;
+    }
+    try {
+      if (f == null) {
+        return readFromHeap(ds, receiver);
+      } else {
+        return readFromFile(f, receiver);
+      }
+    } finally {
+      delete(ds, f);
+    }
+  }
+
+  /**
+   * Delete Axis's temporary file of an attachment that we read
+   * without {@link #readObject}.
+   */
+  public void delete(DataHandler dh) {
+    DataSource ds = dh.getDataSource();
+    delete(ds, (ds instanceof FileDataSource ?
+          ((FileDataSource) ds).getFile() : null));
+  }
+
+  public synchronized long getHeapCount() {
+    return heapCount;
+  }
+  public synchronized long getHeapBytes() {
+    return heapBytes;
+  }
+  public synchronized long getSpilledCount() {
+    return spilledCount;
+  }
+  public synchronized long getSpilledBytes() {
+    return spilledBytes;
+  }
+
+  public synchronized String toString() {
+    return
+      "(attachments heap="+heapCount+"/"+heapBytes+"b"+
+      " spilled="+spilledCount+"/"+spilledBytes+"b)";
+  }
+
+  private Object readFromHeap(
+      DataSource ds, SOAPClassCache.Receiver receiver) throws Exception {
+    CountingInputStream cis =
+      new CountingInputStream(
+          new BufferedInputStream(ds.getInputStream()));
+    Object obj = readObject(cis, receiver);
+    synchronized (this) {
+      heapCount++;
+      heapBytes += cis.count;
+    }
+    return obj;
+  }
+
+  private Object readFromFile(
+      File f, SOAPClassCache.Receiver receiver) throws Exception {
+    RandomAccessFile raf = new RandomAccessFile(f, "r");
+    try {
+      long length = raf.length();
+      InputStream is;
+      if (length <= heapLimit) {
+        byte[] buf = new byte[(int) length];
+        raf.readFully(buf);
+        is = new ByteArrayInputStream(buf);
+        synchronized (this) {
+          heapCount++;
+          heapBytes += length;
+        }
+      } else {
+        FileChannel fc = raf.getChannel();
+        ByteBuffer bb = fc.map(FileChannel.MapMode.READ_ONLY, 0, length);
+        is = new ByteBufferInputStream(bb);
+        synchronized (this) {
+          spilledCount++;
+          spilledBytes += length;
+        }
+      }
+      return readObject(is, receiver);
+    } finally {
+      raf.close();
+    }
+  }
+
+  private static Object readObject(
+      InputStream is, SOAPClassCache.Receiver receiver) throws Exception {
+    return SOAPSerialization.readObject(
+        SOAPCompression.decompress(is), receiver);
+  }
+
+  private static void delete(DataSource ds, File f) {
+    if (ds instanceof ManagedMemoryDataSource) {
+      ((ManagedMemoryDataSource) ds).delete();
+    } else if (f != null) {
+      f.delete();
+    }
+  }
+
+  private static final class CountingInputStream extends InputStream {
+    private final InputStream in;
+    public long count;
+    public CountingInputStream(InputStream in) {
+      this.in = in;
+    }
+    public int read() throws IOException {
+      int ret = in.read();
+      if (ret >= 0) {
+        count++;
+      }
+      return ret;
+    }
+    public int read(byte[] b, int off, int len) throws IOException {
+      int ret = in.read(b, off, len);
+      if (ret > 0) {
+        count += ret;
+      }
+      return ret;
+    }
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+
+  /** An InputStream view of a (mapped) ByteBuffer. */
+  static final class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer bb;
+    public ByteBufferInputStream(ByteBuffer bb) {
+      this.bb = bb;
+    }
+    public int read() {
+      return (bb.hasRemaining() ? (bb.get() & 0xff) : -1);
+    }
+    public int read(byte[] b, int off, int len) {
+      int n = bb.remaining();
+      if (n <= 0) {
+        return -1;
+      }
+      if (len > n) {
+        len = n;
+      }
+      bb.get(b, off, len);
+      return len;
+    }
+    public int available() {
+      return bb.remaining();
+    }
+  }
+}
@@ -0,0 +1,158 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 1997-2004 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+
+package org.cougaar.lib.web.axis.mts;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * A minimal timing harness shared by the {@link SOAPLinkProtocol}
+ * and blackboardCount command-line benchmarks.
+ * <p>
+ * Each {@link Task} is run for a number of warm-up iterations,
+ * to let the JIT settle, then timed.  The per-operation
+ * allocation is measured with the JVM's per-thread allocation
+ * counter if the JVM supports it.
+ */
+public final class SOAPBenchmark {
+
+  private SOAPBenchmark() {}
+
+  /** A benchmark body. */
+  public interface Task {
+    void run() throws Exception;
+  }
+
+  /** The result of a {@link #run}. */
+  public static final class Result {
+    public final String name;
+    public final int iterations;
+    public final long nanos;
+    public final long allocatedBytes;
+    public Result(
+        String name, int iterations, long nanos, long allocatedBytes) {
+      this.name = name;
+      this.iterations = iterations;
+      this.nanos = nanos;
+      this.allocatedBytes = allocatedBytes;
+    }
+    public double nanosPerOp() {
+      return ((double) nanos) / iterations;
+    }
+    /** @return bytes per op, or -1 if not supported */
+    public double bytesPerOp() {
+      return
+        (allocatedBytes < 0 ? -1 :
+         ((double) allocatedBytes) / iterations);
+    }
+    public double opsPerSecond() {
+      return (nanos <= 0 ? 0 : iterations * 1e9 / nanos);
+    }
+    public String toString() {
+      double bytesPerOp = bytesPerOp();
+      return
+        name+
+        " iterations="+iterations+
+        " ns/op="+((long) nanosPerOp())+
+        " ops/s="+((long) opsPerSecond())+
+        " bytes/op="+((long) bytesPerOp)+
+        " alloc_MB/s="+
+        (bytesPerOp < 0 ? -1 :
+         (long) (bytesPerOp * opsPerSecond() / (1<<20)));
+    }
+  }
+
+  /** Run a task, print and return the result. */
+  public static Result run(
+      String name, int warmup, int iterations,
+      Task task) throws Exception {
+    for (int i = 0; i < warmup; i++) {
+      task.run();
+    }
+    long allocStart = allocatedBytes();
+    long start = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      task.run();
+    }
+    long nanos = System.nanoTime() - start;
+    long allocEnd = allocatedBytes();
+    Result r = new Result(
+        name, iterations, nanos,
+        (allocStart < 0 || allocEnd < 0 ? -1 : allocEnd - allocStart));
+    System.out.println(r);
+    return r;
+  }
+
+  /**
+   * @return the bytes allocated by the current thread, or -1 if
+   * the JVM doesn't support allocation counting
+   */
+  public static long allocatedBytes() {
+    ThreadMXBean tmx = ManagementFactory.getThreadMXBean();
+    if (!(tmx instanceof com.sun.management.ThreadMXBean)) {
+      return -1;
+    }
+    try {
+      return ((com.sun.management.ThreadMXBean) tmx)
+        .getThreadAllocatedBytes(Thread.currentThread().getId());
+    } catch (UnsupportedOperationException e) {
+      return -1;
+    }
+  }
+
+  /** Parse an integer "-name=value" argument. */
+  public static int getInt(String[] args, String name, int deflt) {
+    String s = getString(args, name, null);
+    return (s == null ? deflt : Integer.parseInt(s));
+  }
+
+  /** Parse a "-name=value" argument. */
+  public static String getString(
+      String[] args, String name, String deflt) {
+    String prefix = "-"+name+"=";
+    for (int i = 0; args != null && i < args.length; i++) {
+      if (args[i].startsWith(prefix)) {
+        return args[i].substring(prefix.length());
+      }
+    }
+    return deflt;
+  }
+
+  /** Parse a comma-separated integer "-name=a,b,c" argument. */
+  public static int[] getInts(String[] args, String name, int[] deflt) {
+    String s = getString(args, name, null);
+    if (s == null) {
+      return deflt;
+    }
+    String[] a = s.split(",");
+    int[] ret = new int[a.length];
+    for (int i = 0; i < a.length; i++) {
+      ret[i] = Integer.parseInt(a[i].trim());
+    }
+    return ret;
+  }
+}
@@ -0,0 +1,223 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 1997-2004 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+
+package org.cougaar.lib.web.axis.mts;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.activation.DataHandler;
+import javax.xml.namespace.QName;
+import javax.xml.rpc.ParameterMode;
+import javax.xml.rpc.ServiceException;
+
+import org.apache.axis.MessageContext;
+import org.apache.axis.client.Call;
+import org.apache.axis.client.Service;
+import org.apache.axis.encoding.ser.BeanDeserializerFactory;
+import org.apache.axis.encoding.ser.BeanSerializerFactory;
+import org.apache.axis.encoding.ser.JAFDataHandlerDeserializerFactory;
+import org.apache.axis.encoding.ser.JAFDataHandlerSerializerFactory;
+
+/**
+ * A per-destination pool of pre-configured Axis {@link Call}s
+ * for the {@link SOAPLinkProtocol}.
+ * <p>
+ * Creating a Call and registering our SOAPData and DataHandler
+ * type mappings is a significant part of the per-message send
+ * cost, so we configure each Call once and reuse it.  There is a
+ * separate pool per {@link SOAPMT} operation.
+ * <p>
+ * An Axis Call is not thread-safe, so each sender takes a Call
+ * from the pool for the duration of its "invoke" and returns it
+ * when finished.  If the pool is empty then a new Call is
+ * created, and at most <i>maxIdle</i> Calls are kept per
+ * operation.
+ */
+final class SOAPCallPool {
+
+  /** Our SOAP namespace, as registered in our WSDD. */
+  static final String MTS_NAMESPACE = "urn:Cougaar-MTS";
+
+  static final QName DATA_QNAME =
+    new QName("urn:BeanService", "SOAPData");
+  static final QName DATA_HANDLER_QNAME =
+    new QName(MTS_NAMESPACE, "DataHandler");
+
+  /** Operation for {@link SOAPMT#rerouteMessage}. */
+  static final int SMALL_MESSAGE = 0;
+  /** Operation for {@link SOAPMT#rerouteMessageAsAttachment}. */
+  static final int BIG_MESSAGE = 1;
+  /** Operation for {@link SOAPMT#rerouteMessages}. */
+  static final int MESSAGE_BATCH = 2;
+  /** Operation for {@link SOAPMT#rerouteMessageOneWay}. */
+  static final int ONE_WAY_MESSAGE = 3;
+  /** Operation for {@link SOAPMT#rerouteMessageChunk}. */
+  static final int MESSAGE_CHUNK = 4;
+  /** Operation for {@link SOAPMT#getMessageAddress}. */
+  static final int GET_MESSAGE_ADDRESS = 5;
+
+  // operation names and parameter names, indexed by operation,
+  // where a null parameter name means no parameter
+  private static final String[] OPERATIONS = {
+    "rerouteMessage",
+    "rerouteMessageAsAttachment",
+    "rerouteMessages",
+    "rerouteMessageOneWay",
+    "rerouteMessageChunk",
+    "getMessageAddress",
+  };
+  private static final String[] PARAMETERS = {
+    "small_message",
+    "big_message",
+    "messages",
+    "small_message",
+    "chunk",
+    null,
+  };
+
+  private final Service service;
+  private final int maxIdle;
+
+  // lists of idle Calls, indexed by operation, guarded by "this"
+  private final List[] idle = new List[OPERATIONS.length];
+
+  // the endpoint of all pooled Calls, guarded by "this"
+  private URL url;
+
+  public SOAPCallPool(Service service, int maxIdle) {
+    this.service = service;
+    this.maxIdle = maxIdle;
+    if (service == null) {
+      throw new IllegalArgumentException("null service");
+    }
+    for (int i = 0; i < idle.length; i++) {
+      idle[i] = new ArrayList();
+    }
+  }
+
+  /**
+   * Take a configured Call from the pool, or create a new one if
+   * the pool is empty.
+   *
+   * @param url the target endpoint, which if changed will flush
+   *   all idle Calls
+   * @param operation the operation, e.g. {@link #SMALL_MESSAGE}
+   */
+  public Call take(URL url, int operation) {
+    synchronized (this) {
+      if (!url.equals(this.url)) {
+        // new endpoint, e.g. the remote node moved
+        clearIdle();
+        this.url = url;
+      }
+      List l = idle[operation];
+      int n = l.size();
+      if (n > 0) {
+        return (Call) l.remove(n - 1);
+      }
+    }
+    return createCall(url, operation);
+  }
+
+  /**
+   * Return a Call that was obtained by {@link #take}.
+   * <p>
+   * Calls that failed with an exception should still be released,
+   * since Axis resets the Call state on every "invoke".
+   */
+  public void release(Call call, int operation) {
+    // drop the request and response messages, otherwise an idle
+    // Call would pin the last (possibly huge) message in memory
+    MessageContext mc = call.getMessageContext();
+    if (mc != null) {
+      mc.setRequestMessage(null);
+      mc.setResponseMessage(null);
+    }
+    synchronized (this) {
+      if (!call.getTargetEndpointAddress().equals(
+            (url == null ? null : url.toString()))) {
+        // stale endpoint
+        return;
+      }
+      List l = idle[operation];
+      if (l.size() < maxIdle) {
+        l.add(call);
+      }
+    }
+  }
+
+  /** Discard all idle Calls. */
+  public synchronized void clear() {
+    clearIdle();
+    url = null;
+  }
+
+  private void clearIdle() {
+    for (int i = 0; i < idle.length; i++) {
+      idle[i].clear();
+    }
+  }
+
+  private Call createCall(URL url, int operation) {
+    Call call;
+    try {
+      call = (Call) service.createCall();
+    } catch (ServiceException se) {
+      throw new RuntimeException("Unable to create SOAP call", se);
+    }
+
+    // register type mappings
+    boolean isAttachment =
+      (operation == BIG_MESSAGE || operation == MESSAGE_CHUNK);
+    Class cl = SOAPData.class;
+    QName qn = DATA_QNAME;
+    call.registerTypeMapping(cl, qn,
+        new BeanSerializerFactory(cl, qn),
+        new BeanDeserializerFactory(cl, qn));
+    if (isAttachment) {
+      cl = DataHandler.class;
+      qn = DATA_HANDLER_QNAME;
+      call.registerTypeMapping(cl, qn,
+          JAFDataHandlerSerializerFactory.class,
+          JAFDataHandlerDeserializerFactory.class);
+    }
+    call.setTargetEndpointAddress(url);
+
+    call.setOperationName(
+        new QName(MTS_NAMESPACE, OPERATIONS[operation]));
+    if (PARAMETERS[operation] != null) {
+      call.addParameter(
+          PARAMETERS[operation],
+          (isAttachment ? DATA_HANDLER_QNAME : DATA_QNAME),
+          ParameterMode.IN);
+    }
+    call.setReturnType(DATA_QNAME);
+
+    return call;
+  }
+}
@@ -0,0 +1,96 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 1997-2004 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+
+package org.cougaar.lib.web.axis.mts;
+
+import java.net.URL;
+
+import org.apache.axis.client.Call;
+import org.apache.axis.client.Service;
+
+/**
+ * A command-line benchmark of the {@link SOAPCallPool}, comparing
+ * the per-message cost of configuring a new Axis {@link Call}
+ * against reusing a pooled Call.
+ * <p>
+ * No messages are sent, so this only measures the client-side
+ * setup that precedes every "call.invoke".
+ * <p>
+ * To run:<pre>
+ *   CP="$CIP/lib/webaxis.jar:$CIP/sys/axis_1_2_beta.jar:$CIP/sys/activation.jar:$CIP/sys/mail.jar"
+ *   CL="org.cougaar.lib.web.axis.mts.SOAPCallPoolBenchmark"
+ *   java -classpath $CP $CL [-warmup=N] [-iterations=N]
+ * </pre>
+ */
+public class SOAPCallPoolBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    int warmup = SOAPBenchmark.getInt(args, "warmup", 20000);
+    int iterations = SOAPBenchmark.getInt(args, "iterations", 100000);
+
+    final URL url = new URL("http://localhost:8800/axis/services");
+    final Service service = new Service();
+
+    // a pool that never keeps a Call, which matches the original
+    // create-per-message behavior
+    final SOAPCallPool noPool = new SOAPCallPool(service, 0);
+    final SOAPCallPool pool = new SOAPCallPool(service, 4);
+
+    SOAPBenchmark.Result[] r = new SOAPBenchmark.Result[4];
+    for (int i = 0; i < 2; i++) {
+      final int op =
+        (i == 1 ?
+         SOAPCallPool.BIG_MESSAGE :
+         SOAPCallPool.SMALL_MESSAGE);
+      String name = (i == 1 ? "attachment" : "small");
+      r[2*i] = SOAPBenchmark.run(
+          "createCall("+name+")", warmup, iterations,
+          new SOAPBenchmark.Task() {
+            public void run() {
+              Call call = noPool.take(url, op);
+              noPool.release(call, op);
+            }
+          });
+      r[2*i+1] = SOAPBenchmark.run(
+          "pooledCall("+name+")", warmup, iterations,
+          new SOAPBenchmark.Task() {
+            public void run() {
+              Call call = pool.take(url, op);
+              pool.release(call, op);
+            }
+          });
+    }
+
+    for (int i = 0; i < r.length; i += 2) {
+      System.out.println(
+          r[i+1].name+" saves "+
+          ((long) (r[i].nanosPerOp() - r[i+1].nanosPerOp()))+
+          " ns/op and "+
+          ((long) (r[i].bytesPerOp() - r[i+1].bytesPerOp()))+
+          " bytes/op");
+    }
+  }
+}
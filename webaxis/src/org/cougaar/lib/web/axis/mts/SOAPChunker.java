@@ -0,0 +1,560 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 1997-2004 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+
+package org.cougaar.lib.web.axis.mts;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.security.SecureRandom;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import javax.activation.DataHandler;
+import javax.activation.DataSource;
+
+import org.cougaar.core.service.ThreadService;
+
+/**
+ * Splits a huge serialized {@link SOAPLinkProtocol} message into
+ * fixed-size chunks, which the receiver reassembles in a bounded
+ * disk spool.
+ * <p>
+ * Each chunk is sent as its own attachment, so neither end parses
+ * or buffers the full message in a single SOAP call, and a failed
+ * call only costs one chunk.  The sender's {@link Transfer} sends
+ * its chunks over one or more concurrent calls.  Every chunk
+ * carries the transfer's id and layout, so the receiver's
+ * {@link Receiver} can start a transfer from any chunk, ignores
+ * duplicate chunks, and replies with the index of its first
+ * missing chunk.  After a transient failure the sender asks for
+ * that index and resumes from there, instead of resending the
+ * whole message.
+ * <p>
+ * The call that completes a transfer returns the delivery result
+ * of the reassembled message, which the receiver also remembers
+ * for a few recent transfers, in case that reply is lost.
+ */
+final class SOAPChunker {
+
+  /** Version byte of our chunk header. */
+  private static final int VERSION = 1;
+
+  // chunk index of a status request, which has no data
+  private static final int STATUS = -1;
+
+  // number of completed transfer results to remember
+  private static final int MAX_COMPLETED = 64;
+
+  private static final Random RANDOM = new SecureRandom();
+
+  private SOAPChunker() {}
+
+  /** The sending link's callback to send a chunk. */
+  interface Sender {
+    /**
+     * Send a chunk attachment.
+     *
+     * @return the remote result, which is an Integer index of the
+     *   first missing chunk until the transfer is complete
+     */
+    Object sendChunk(DataHandler chunk) throws Exception;
+  }
+
+  /** The receiver's callback to read a reassembled message. */
+  interface Reader {
+    /**
+     * Read and deliver the message in the spool file.
+     *
+     * @return the delivery result
+     */
+    Object read(File f) throws Exception;
+  }
+
+  /**
+   * The sending side of a chunked message, which may be resumed
+   * if a send fails.
+   */
+  static final class Transfer implements Runnable {
+
+    private final Object message;
+    private final SOAPMessageBuffer buf;
+    private final int chunkSize;
+    private final int chunks;
+    private final SOAPClassCache.Sender cc;
+    private final Object token;
+    private final String id;
+
+    // set for the duration of "send", guarded by "this"
+    private Sender sender;
+    private int next;
+    private int active;
+    private Object result;
+    private Exception failure;
+
+    /**
+     * @param message the message, which identifies a later resend
+     * @param buf the serialized message
+     * @param cc the class cache session that encoded the message,
+     *   or null
+     * @param token the class cache token, or null
+     */
+    public Transfer(
+        Object message, SOAPMessageBuffer buf, int chunkSize,
+        SOAPClassCache.Sender cc, Object token) {
+      this.message = message;
+      this.buf = buf;
+      this.chunkSize = chunkSize;
+      this.cc = cc;
+      this.token = token;
+      if (chunkSize <= 0) {
+        throw new IllegalArgumentException(
+            "Invalid chunk size: "+chunkSize);
+      }
+      this.chunks = (int) ((buf.size() + (long) chunkSize - 1) / chunkSize);
+      this.id =
+        Long.toString(System.currentTimeMillis(), 36)+"-"+
+        Long.toString(RANDOM.nextLong() & Long.MAX_VALUE, 36);
+    }
+
+    public Object getMessage() {
+      return message;
+    }
+    public int getLength() {
+      return buf.size();
+    }
+    public SOAPClassCache.Sender getClassCache() {
+      return cc;
+    }
+    public Object getToken() {
+      return token;
+    }
+
+    /**
+     * Send the chunks, resuming from the receiver's first missing
+     * chunk after a failure.
+     *
+     * @param threadService the pool of our extra senders
+     * @param parallel the maximum number of concurrent calls
+     * @param retries the maximum number of consecutive resumes
+     *   that make no progress
+     * @param resume true to first ask the receiver where to start,
+     *   e.g. if an earlier send failed
+     * @return the delivery result of the reassembled message
+     */
+    public Object send(
+        Sender sender, ThreadService threadService,
+        int parallel, int retries, boolean resume) throws Exception {
+      int failures = 0;
+      int lastStart = -1;
+      while (true) {
+        if (resume) {
+          // ask where to resume, which may also find that the
+          // receiver completed the transfer
+          Object o;
+          try {
+            o = sender.sendChunk(getChunk(STATUS));
+          } catch (Exception e) {
+            if (++failures > retries) {
+              throw e;
+            }
+            continue;
+          }
+          if (!(o instanceof Integer)) {
+            return o;
+          }
+          int start = ((Integer) o).intValue();
+          if (start > lastStart) {
+            // progress
+            failures = 0;
+          }
+          lastStart = start;
+          synchronized (this) {
+            next = start;
+          }
+        }
+        Exception e = sendAll(sender, threadService, parallel);
+        synchronized (this) {
+          if (result != null) {
+            return result;
+          }
+        }
+        if (++failures > retries) {
+          throw (e != null ? e :
+              new IOException("Receiver lacks chunks of "+this));
+        }
+        // failed, or all chunks sent and the receiver still lacks
+        // some of them, e.g. it restarted
+        resume = true;
+      }
+    }
+
+    // send the chunks from "next", return the first failure
+    private Exception sendAll(
+        Sender sender, ThreadService threadService, int parallel) {
+      int extra;
+      synchronized (this) {
+        this.sender = sender;
+        result = null;
+        failure = null;
+        extra = Math.min(parallel, chunks - next) - 1;
+        active = 1 + Math.max(extra, 0);
+      }
+      for (int i = 0; i < extra; i++) {
+        threadService.getThread(
+            this, this, "SOAP chunk send "+id,
+            ThreadService.WILL_BLOCK_LANE).start();
+      }
+      run();
+      synchronized (this) {
+        while (active > 0) {
+          try {
+            wait();
+          } catch (InterruptedException ie) {
+            return new InterruptedIOException(
+                "Interrupted waiting for SOAP chunk sends");
+          }
+        }
+        this.sender = null;
+        return failure;
+      }
+    }
+
+    /** Send chunks until none are left or a send fails. */
+    public void run() {
+      try {
+        while (true) {
+          int index;
+          Sender s;
+          synchronized (this) {
+            if (next >= chunks || result != null || failure != null) {
+              break;
+            }
+            index = next++;
+            s = sender;
+          }
+          Object o;
+          try {
+            o = s.sendChunk(getChunk(index));
+          } catch (Exception e) {
+            synchronized (this) {
+              if (failure == null) {
+                failure = e;
+              }
+            }
+            break;
+          }
+          if (!(o instanceof Integer)) {
+            synchronized (this) {
+              result = o;
+            }
+          }
+        }
+      } finally {
+        synchronized (this) {
+          active--;
+          notifyAll();
+        }
+      }
+    }
+
+    /** @return the attachment for the chunk, or a status request */
+    private DataHandler getChunk(int index) throws IOException {
+      ByteArrayOutputStream bos = new ByteArrayOutputStream();
+      DataOutputStream dos = new DataOutputStream(bos);
+      dos.writeByte(VERSION);
+      dos.writeUTF(id);
+      dos.writeLong(buf.size());
+      dos.writeInt(chunkSize);
+      dos.writeInt(index);
+      dos.close();
+      final byte[] header = bos.toByteArray();
+      final int off = (index < 0 ? 0 : index * chunkSize);
+      final int len = (index < 0 ? 0 : Math.min(chunkSize, buf.size() - off));
+      return new DataHandler(new DataSource() {
+        public String getContentType() {
+          return "application/octet-stream";
+        }
+        public InputStream getInputStream() {
+          return new SequenceInputStream(
+              new ByteArrayInputStream(header),
+              buf.getInputStream(off, len));
+        }
+        public String getName() {
+          return "chunk";
+        }
+        public OutputStream getOutputStream() throws IOException {
+          throw new IOException("read-only");
+        }
+      });
+    }
+
+    public String toString() {
+      return
+        "(chunk transfer id="+id+" length="+buf.size()+
+        " chunks="+chunks+")";
+    }
+  }
+
+  /**
+   * The receiving side, which reassembles all chunked messages sent
+   * to our node.
+   */
+  static final class Receiver {
+
+    private final File dir;
+    private final long spoolLimit;
+    private final long timeout;
+    private final long retryAfter;
+
+    // map from transfer id to Spool, guarded by "this"
+    private final Map transfers = new HashMap();
+    private long spooled;
+
+    // recent results by transfer id, guarded by "this"
+    private final Map completed =
+      new LinkedHashMap() {
+        protected boolean removeEldestEntry(Map.Entry eldest) {
+          return size() > MAX_COMPLETED;
+        }
+      };
+
+    /**
+     * @param dir the spool directory, or null for the default
+     *   temporary directory
+     * @param spoolLimit the maximum total length of the messages
+     *   being reassembled
+     * @param timeout the milliseconds after which an idle transfer
+     *   is dropped
+     * @param retryAfter the retry delay in milliseconds that we ask
+     *   of senders if the spool is full
+     */
+    public Receiver(
+        File dir, long spoolLimit, long timeout, long retryAfter) {
+      this.dir = dir;
+      this.spoolLimit = spoolLimit;
+      this.timeout = timeout;
+      this.retryAfter = retryAfter;
+    }
+
+    /**
+     * Receive a chunk or a status request.
+     *
+     * @return an Integer index of the first missing chunk, or the
+     *   result of the completed transfer, or a
+     *   {@link SOAPReceiveQueue.BusyException} if the spool is full
+     */
+    public Object receive(InputStream in, Reader reader) throws Exception {
+      DataInputStream dis = new DataInputStream(in);
+      int version = dis.readUnsignedByte();
+      if (version != VERSION) {
+        throw new IOException("Unsupported chunk version: "+version);
+      }
+      String id = dis.readUTF();
+      long length = dis.readLong();
+      int chunkSize = dis.readInt();
+      int index = dis.readInt();
+      if (length < 0 || chunkSize <= 0 ||
+          index < STATUS || (long) index * chunkSize >= Math.max(length, 1)) {
+        throw new IOException(
+            "Invalid chunk "+index+" of "+id+", length="+length+
+            ", chunkSize="+chunkSize);
+      }
+
+      Spool s;
+      synchronized (this) {
+        expire(System.currentTimeMillis());
+        Object o = completed.get(id);
+        if (o != null) {
+          // our reply was lost
+          return o;
+        }
+        s = (Spool) transfers.get(id);
+        if (s == null) {
+          if (index == STATUS) {
+            return new Integer(0);
+          }
+          if (spooled + length > spoolLimit) {
+            return new SOAPReceiveQueue.BusyException(retryAfter);
+          }
+          s = new Spool(
+              id, File.createTempFile("soapchunk", ".tmp", dir),
+              length, chunkSize);
+          transfers.put(id, s);
+          spooled += length;
+        }
+      }
+
+      if (s.length != length || s.chunkSize != chunkSize) {
+        throw new IOException(
+            "Chunk "+index+" doesn't match "+s+
+            ", length="+length+", chunkSize="+chunkSize);
+      }
+      if (!s.write(index, dis)) {
+        return new Integer(s.firstMissing());
+      }
+
+      // complete, which only one call sees.  The spool stays in our
+      // table while we read it, so late duplicates are ignored.
+      Object result = null;
+      try {
+        result = reader.read(s.file);
+      } finally {
+        s.file.delete();
+        synchronized (this) {
+          if (result != null) {
+            completed.put(id, result);
+          }
+          if (transfers.remove(id) == s) {
+            spooled -= length;
+          }
+        }
+      }
+      return result;
+    }
+
+    /** Drop all transfers, e.g. when unloaded. */
+    public void clear() {
+      synchronized (this) {
+        expire(Long.MAX_VALUE);
+      }
+    }
+
+    // guarded by "this"
+    private void expire(long now) {
+      for (Iterator iter = transfers.values().iterator(); iter.hasNext(); ) {
+        Spool s = (Spool) iter.next();
+        if (now - s.getLastTime() > timeout) {
+          iter.remove();
+          spooled -= s.length;
+          s.close();
+        }
+      }
+    }
+
+    public synchronized String toString() {
+      return
+        "(chunk spool transfers="+transfers.size()+
+        " spooled="+spooled+"b limit="+spoolLimit+"b)";
+    }
+  }
+
+  /** A partially received message in a spool file. */
+  private static final class Spool {
+
+    private final String id;
+    private final File file;
+    private final long length;
+    private final int chunkSize;
+    private final int chunks;
+
+    // guarded by "this"
+    private final RandomAccessFile raf;
+    private final BitSet received = new BitSet();
+    private int count;
+    private long lastTime;
+
+    public Spool(
+        String id, File file, long length,
+        int chunkSize) throws IOException {
+      this.id = id;
+      this.file = file;
+      this.length = length;
+      this.chunkSize = chunkSize;
+      this.chunks = (int) ((length + chunkSize - 1) / chunkSize);
+      this.raf = new RandomAccessFile(file, "rw");
+      this.lastTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Copy the chunk data into our file, unless it is a duplicate.
+     *
+     * @return true if this chunk completed the message
+     */
+    public synchronized boolean write(
+        int index, InputStream in) throws IOException {
+      lastTime = System.currentTimeMillis();
+      if (index < 0 || received.get(index) || count >= chunks) {
+        return false;
+      }
+      long off = (long) index * chunkSize;
+      int len = (int) Math.min(chunkSize, length - off);
+      raf.seek(off);
+      byte[] b = new byte[Math.min(len, 1<<16)];
+      for (int n = len; n > 0; ) {
+        int m = in.read(b, 0, Math.min(n, b.length));
+        if (m < 0) {
+          throw new EOFException(
+              "Chunk "+index+" of "+id+" is truncated");
+        }
+        raf.write(b, 0, m);
+        n -= m;
+      }
+      received.set(index);
+      if (++count < chunks) {
+        return false;
+      }
+      raf.close();
+      return true;
+    }
+
+    public synchronized int firstMissing() {
+      return received.nextClearBit(0);
+    }
+
+    public synchronized long getLastTime() {
+      return lastTime;
+    }
+
+    public synchronized void close() {
+      try {
+        raf.close();
+      } catch (IOException e) {
+        // ignore
+      }
+      file.delete();
+    }
+
+    public synchronized String toString() {
+      return
+        "(spool id="+id+" length="+length+
+        " received="+count+"/"+chunks+")";
+    }
+  }
+}
@@ -0,0 +1,234 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 1997-2004 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+
+package org.cougaar.lib.web.axis.mts;
+
+import java.io.IOException;
+
+import org.cougaar.core.service.LoggingService;
+import org.cougaar.core.service.ThreadService;
+import org.cougaar.core.thread.Schedulable;
+
+/**
+ * A circuit breaker for a single {@link SOAPLinkProtocol}
+ * destination link.
+ * <p>
+ * When a remote node is down, every send would otherwise wait for
+ * a full connect timeout before it fails, which stalls the MTS
+ * threads of all the messages queued for that node.  After
+ * <i>threshold</i> consecutive failed sends we "open" the circuit,
+ * which fails further sends immediately, and probe the target in
+ * the background with exponential backoff.  The first successful
+ * probe or send closes the circuit.
+ * <p>
+ * Only failures to reach the target count, so the link reports
+ * other results, e.g. a misdelivery or a full receive queue, as
+ * successes.
+ */
+final class SOAPCircuitBreaker implements Runnable {
+
+  /** The link's callback to probe the target. */
+  interface Prober {
+    /** Make a cheap call to the target, which throws if it fails. */
+    void probe() throws Exception;
+  }
+
+  private final String name;
+  private final Prober prober;
+  private final ThreadService threadService;
+  private final LoggingService logger;
+  private final int threshold;
+  private final long minRetry;
+  private final long maxRetry;
+
+  // guarded by "this"
+  private int failures;
+  private boolean open;
+  private long openTime;
+  private long retryDelay;
+  private long trips;
+  private long rejected;
+  private boolean stopped;
+  private Schedulable thread;
+
+  public SOAPCircuitBreaker(
+      String name,
+      Prober prober,
+      ThreadService threadService,
+      LoggingService logger,
+      int threshold,
+      long minRetry,
+      long maxRetry) {
+    this.name = name;
+    this.prober = prober;
+    this.threadService = threadService;
+    this.logger = logger;
+    this.threshold = threshold;
+    this.minRetry = minRetry;
+    this.maxRetry = maxRetry;
+    if (threshold <= 0) {
+      throw new IllegalArgumentException("Invalid threshold: "+threshold);
+    }
+  }
+
+  /** @return true if sends should fail fast */
+  public synchronized boolean isOpen() {
+    return open;
+  }
+
+  /**
+   * Check the circuit before a send.
+   *
+   * @throws OpenException if the circuit is open
+   */
+  public void check() throws OpenException {
+    synchronized (this) {
+      if (!open) {
+        return;
+      }
+      rejected++;
+    }
+    throw new OpenException("Circuit to "+name+" is open");
+  }
+
+  /** Record a send that reached the target. */
+  public void success() {
+    synchronized (this) {
+      failures = 0;
+      if (!open) {
+        return;
+      }
+      open = false;
+    }
+    if (logger.isInfoEnabled()) {
+      logger.info("Closed circuit to "+name+", send succeeded");
+    }
+  }
+
+  /** Record a send that failed to reach the target. */
+  public void failure(Exception e) {
+    synchronized (this) {
+      if (stopped || open || ++failures < threshold) {
+        return;
+      }
+      open = true;
+      openTime = System.currentTimeMillis();
+      trips++;
+      retryDelay = minRetry;
+      if (thread == null) {
+        thread = threadService.getThread(
+            this, this, "SOAP probe of "+name,
+            ThreadService.WILL_BLOCK_LANE);
+      }
+      thread.schedule(retryDelay);
+    }
+    if (logger.isWarnEnabled()) {
+      logger.warn(
+          "Opened circuit to "+name+" after "+threshold+
+          " failed sends, will probe in "+minRetry+" millis: "+e);
+    }
+  }
+
+  /** Close the circuit, e.g. because the target has a new address. */
+  public synchronized void reset() {
+    failures = 0;
+    open = false;
+  }
+
+  /**
+   * Cancel our probes, e.g. because our protocol is unloaded, and
+   * never open the circuit again.
+   */
+  public void stop() {
+    Schedulable t;
+    synchronized (this) {
+      stopped = true;
+      open = false;
+      t = thread;
+      thread = null;
+    }
+    if (t != null) {
+      t.cancelTimer();
+      t.cancel();
+    }
+  }
+
+  /** Probe the target while the circuit is open. */
+  public void run() {
+    synchronized (this) {
+      if (stopped || !open) {
+        return;
+      }
+    }
+    Exception failure = null;
+    long delay = 0;
+    try {
+      prober.probe();
+    } catch (Exception e) {
+      failure = e;
+    }
+    synchronized (this) {
+      if (stopped || !open) {
+        // a send or reset closed the circuit
+        return;
+      }
+      if (failure != null) {
+        retryDelay = Math.min(2*retryDelay, maxRetry);
+        delay = retryDelay;
+        thread.schedule(delay);
+      } else {
+        open = false;
+        failures = 0;
+      }
+    }
+    if (failure != null) {
+      if (logger.isDebugEnabled()) {
+        logger.debug(
+            "Probe of "+name+" failed, will retry in "+
+            delay+" millis: "+failure);
+      }
+    } else if (logger.isInfoEnabled()) {
+      logger.info("Closed circuit to "+name+", probe succeeded");
+    }
+  }
+
+  public synchronized String toString() {
+    return
+      "(circuit "+(open ? "open" : "closed")+
+      (open ?
+       " for="+(System.currentTimeMillis() - openTime)+"ms" :
+       " failures="+failures)+
+      " trips="+trips+
+      " rejected="+rejected+")";
+  }
+
+  /** A send that failed fast because the circuit is open. */
+  static final class OpenException extends IOException {
+    public OpenException(String s) {
+      super(s);
+    }
+  }
+}
@@ -0,0 +1,327 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 1997-2004 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+
+package org.cougaar.lib.web.axis.mts;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.io.Serializable;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * A per-link serialization session that sends each class
+ * descriptor once and then refers to it by a small integer id,
+ * instead of writing the full descriptor in every message.
+ * <p>
+ * The sending link has a {@link Sender} with a random session id,
+ * which is written in the header of each encoded message.  The
+ * receiving node keeps a {@link Receiver} table of descriptors per
+ * session id.  A message defines a descriptor by writing its id
+ * and the full descriptor, and the sender only refers to the id
+ * after a message that defined it was acknowledged, so the
+ * receiver must already have it regardless of the order in which
+ * concurrent messages arrive.
+ * <p>
+ * If the receiver has restarted, or has dropped the session, then
+ * it can't resolve a referenced id and throws a
+ * {@link ResyncException}, which is returned to the sender as a
+ * {@link #RESYNC} result.  The sender then starts a new session
+ * and resends with full descriptors.  A restarted sender always
+ * starts a new session.
+ */
+final class SOAPClassCache {
+
+  /** Header byte of encoded streams, distinct from 0xAC and 0x5A */
+  static final int MAGIC = 0x5C;
+
+  /** Result returned to a sender that must start a new session */
+  static final Resync RESYNC = new Resync();
+
+  // descriptor tags
+  private static final int UNCACHED = 0;
+  private static final int DEFINE = 1;
+  private static final int REFERENCE = 2;
+
+  private static final Random RANDOM = new SecureRandom();
+
+  private SOAPClassCache() {}
+
+  /**
+   * Read a plain or encoded object stream.
+   *
+   * @param receiver the descriptor tables for encoded streams, or
+   *   null if encoded streams are not accepted
+   */
+  static Object readObject(
+      InputStream in, Receiver receiver) throws Exception {
+    PushbackInputStream pis = new PushbackInputStream(in, 1);
+    int b = pis.read();
+    if (b == MAGIC) {
+      if (receiver == null) {
+        throw new IOException("Unexpected class cache stream");
+      }
+      return receiver.readObject(pis);
+    }
+    if (b >= 0) {
+      pis.unread(b);
+    }
+    ObjectInputStream ois = new ObjectInputStream(pis);
+    Object obj = ois.readObject();
+    ois.close();
+    return obj;
+  }
+
+  /** The receiver lacks a referenced descriptor. */
+  static final class ResyncException extends IOException {
+    public ResyncException(String s) {
+      super(s);
+    }
+  }
+
+  /** The {@link #RESYNC} result marker. */
+  static final class Resync implements Serializable {
+    private Object readResolve() {
+      return RESYNC;
+    }
+    public String toString() {
+      return "resync";
+    }
+  }
+
+  /** The sending side of a session, one per destination link. */
+  static final class Sender {
+
+    private final int maxClasses;
+
+    // guarded by "this"
+    private long sessionId;
+    private Map ids = new HashMap();
+    private List confirmed = new ArrayList();
+
+    /**
+     * @param maxClasses the maximum number of cached descriptors,
+     *   after which new classes are always sent in full
+     */
+    public Sender(int maxClasses) {
+      this.maxClasses = maxClasses;
+      reset();
+    }
+
+    /** Start a new session, e.g. after a resync or new target URI. */
+    public synchronized void reset() {
+      sessionId = RANDOM.nextLong();
+      ids = new HashMap();
+      confirmed = new ArrayList();
+    }
+
+    /** @return the number of cached descriptors */
+    public synchronized int size() {
+      return ids.size();
+    }
+
+    /**
+     * Write an object as an encoded stream.
+     *
+     * @return a token to pass to {@link #confirm} once the receiver
+     *   has acknowledged the message
+     */
+    public Object writeObject(OutputStream out, Object obj) throws IOException {
+      long sid;
+      synchronized (this) {
+        sid = sessionId;
+      }
+      out.write(MAGIC);
+      DataOutputStream dos = new DataOutputStream(out);
+      dos.writeLong(sid);
+      dos.flush();
+      Output oos = new Output(out, sid);
+      oos.writeObject(obj);
+      oos.close();
+      return oos;
+    }
+
+    /**
+     * The receiver has decoded the message written with this
+     * token, so we can refer to its defined descriptors.
+     */
+    public synchronized void confirm(Object token) {
+      Output oos = (Output) token;
+      if (oos.sid != sessionId) {
+        return;
+      }
+      for (int i = 0; i < oos.defined.size(); i++) {
+        int id = ((Integer) oos.defined.get(i)).intValue();
+        confirmed.set(id, Boolean.TRUE);
+      }
+    }
+
+    /**
+     * @return the id to write, or a negative value if not cached,
+     *   in which case "-(id+1)" is the id to define or
+     *   Integer.MIN_VALUE if the cache is full
+     */
+    private synchronized int lookup(long sid, Class cl) {
+      if (sid != sessionId || cl == null) {
+        return Integer.MIN_VALUE;
+      }
+      Integer i = (Integer) ids.get(cl);
+      if (i == null) {
+        if (ids.size() >= maxClasses) {
+          return Integer.MIN_VALUE;
+        }
+        i = new Integer(ids.size());
+        ids.put(cl, i);
+        confirmed.add(Boolean.FALSE);
+      }
+      int id = i.intValue();
+      return (confirmed.get(id) == Boolean.TRUE ? id : -(id+1));
+    }
+
+    private final class Output extends ObjectOutputStream {
+      private final long sid;
+      private final List defined = new ArrayList();
+      public Output(OutputStream out, long sid) throws IOException {
+        super(out);
+        this.sid = sid;
+      }
+      protected void writeClassDescriptor(
+          ObjectStreamClass desc) throws IOException {
+        int id = lookup(sid, desc.forClass());
+        if (id >= 0) {
+          write(REFERENCE);
+          writeInt(id);
+        } else if (id == Integer.MIN_VALUE) {
+          write(UNCACHED);
+          super.writeClassDescriptor(desc);
+        } else {
+          id = -(id+1);
+          write(DEFINE);
+          writeInt(id);
+          super.writeClassDescriptor(desc);
+          defined.add(new Integer(id));
+        }
+      }
+    }
+  }
+
+  /** The receiving side of all sessions to a node. */
+  static final class Receiver {
+
+    // map from Long session id to Table, in access order
+    private final Map sessions;
+
+    /**
+     * @param maxSessions the maximum number of sessions, after
+     *   which the least recently used session is dropped
+     */
+    public Receiver(final int maxSessions) {
+      sessions = new LinkedHashMap(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry eldest) {
+          return size() > maxSessions;
+        }
+      };
+    }
+
+    /** @return the number of sessions */
+    public synchronized int size() {
+      return sessions.size();
+    }
+
+    /** Read an encoded stream, after the header byte. */
+    public Object readObject(InputStream in) throws Exception {
+      DataInputStream dis = new DataInputStream(in);
+      Long sid = new Long(dis.readLong());
+      Table table;
+      synchronized (this) {
+        table = (Table) sessions.get(sid);
+        if (table == null) {
+          table = new Table();
+          sessions.put(sid, table);
+        }
+      }
+      Input ois = new Input(in, table);
+      Object obj = ois.readObject();
+      ois.close();
+      return obj;
+    }
+
+    private static final class Table {
+      // guarded by "this"
+      private final List descs = new ArrayList();
+      public synchronized void put(int id, ObjectStreamClass desc) {
+        while (descs.size() <= id) {
+          descs.add(null);
+        }
+        descs.set(id, desc);
+      }
+      public synchronized ObjectStreamClass get(int id) {
+        return (id < descs.size() ? (ObjectStreamClass) descs.get(id) : null);
+      }
+    }
+
+    private static final class Input extends ObjectInputStream {
+      private final Table table;
+      public Input(InputStream in, Table table) throws IOException {
+        super(in);
+        this.table = table;
+      }
+      protected ObjectStreamClass readClassDescriptor()
+        throws IOException, ClassNotFoundException {
+          int tag = read();
+          if (tag == UNCACHED) {
+            return super.readClassDescriptor();
+          }
+          int id = readInt();
+          if (tag == DEFINE) {
+            ObjectStreamClass desc = super.readClassDescriptor();
+            table.put(id, desc);
+            return desc;
+          }
+          if (tag != REFERENCE) {
+            throw new IOException("Invalid class cache tag: "+tag);
+          }
+          ObjectStreamClass desc = table.get(id);
+          if (desc == null) {
+            throw new ResyncException("Unknown class descriptor "+id);
+          }
+          return desc;
+        }
+    }
+  }
+}
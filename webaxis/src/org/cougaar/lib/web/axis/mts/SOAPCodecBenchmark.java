@@ -0,0 +1,194 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 1997-2004 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+
+package org.cougaar.lib.web.axis.mts;
+
+import java.io.ByteArrayInputStream;
+import java.io.Serializable;
+
+import org.cougaar.core.mts.Message;
+import org.cougaar.core.mts.MessageAddress;
+import org.cougaar.mts.base.AttributedMessage;
+
+/**
+ * A command-line benchmark that compares the
+ * {@link SOAPSerialization} codecs on {@link AttributedMessage}
+ * graphs, as sent by the SOAPDestinationLink.
+ * <p>
+ * The cases are Java serialization, Java serialization with a
+ * confirmed {@link SOAPClassCache} session, and every registered
+ * codec, including any listed in the
+ * "org.cougaar.lib.web.axis.mts.codecs" system property.  The
+ * graphs are a "relay" message with a few attributes and a small
+ * payload, plus "objects" and "bytes" payloads as in the
+ * {@link SOAPEncodeBenchmark}.  For each case the encoded size is
+ * printed, followed by the encode and decode throughput.
+ * <p>
+ * To run:<pre>
+ *   CP="$CIP/lib/webaxis.jar:$CIP/lib/core.jar:$CIP/lib/util.jar:$CIP/lib/bootstrap.jar:$CIP/sys/axis_1_2_beta.jar:..."
+ *   CL="org.cougaar.lib.web.axis.mts.SOAPCodecBenchmark"
+ *   java -classpath $CP $CL [-sizes=256,4096,...] [-warmup=N]
+ *     [-iterations=N]
+ * </pre>
+ */
+public class SOAPCodecBenchmark {
+
+  private static final int[] SIZES = {256, 4096, 65536};
+  private static final String[] GRAPHS = {"relay", "objects", "bytes"};
+
+  // total bytes to process per case, which sets the iteration
+  // count unless "-iterations" is specified
+  private static final int BYTES_PER_CASE = 64<<20;
+
+  private static final MessageAddress SOURCE =
+    MessageAddress.getMessageAddress("CodecSender");
+  private static final MessageAddress TARGET =
+    MessageAddress.getMessageAddress("CodecReceiver");
+
+  public static void main(String[] args) throws Exception {
+    int[] sizes = SOAPBenchmark.getInts(args, "sizes", SIZES);
+    int warmup = SOAPBenchmark.getInt(args, "warmup", -1);
+    int iterations = SOAPBenchmark.getInt(args, "iterations", -1);
+
+    String[] codecs =
+      ("java,classcache,"+SOAPSerialization.getCodecNames()).split(",");
+
+    for (int i = 0; i < sizes.length; i++) {
+      int size = sizes[i];
+      int n =
+        (iterations > 0 ? iterations :
+         Math.max(100, BYTES_PER_CASE / size));
+      int w = (warmup >= 0 ? warmup : Math.max(10, n / 5));
+      for (int j = 0; j < GRAPHS.length; j++) {
+        final AttributedMessage message = createMessage(GRAPHS[j], size);
+        for (int k = 0; k < codecs.length; k++) {
+          String suffix = "("+codecs[k]+", "+GRAPHS[j]+", "+size+")";
+          final Encoder encoder = createEncoder(codecs[k]);
+          encoder.prime(message);
+          final byte[] bytes = encoder.encode(message).toByteArray();
+          System.out.println("encoded"+suffix+" bytes="+bytes.length);
+          SOAPBenchmark.run(
+              "encode"+suffix, w, n,
+              new SOAPBenchmark.Task() {
+                public void run() throws Exception {
+                  encoder.encode(message);
+                }
+              });
+          SOAPBenchmark.run(
+              "decode"+suffix, w, n,
+              new SOAPBenchmark.Task() {
+                public void run() throws Exception {
+                  encoder.decode(bytes);
+                }
+              });
+        }
+      }
+    }
+  }
+
+  /** Encodes and decodes as the send and receive paths do. */
+  private static class Encoder {
+    private final SOAPSerialization.Codec codec;
+    public Encoder(SOAPSerialization.Codec codec) {
+      this.codec = codec;
+    }
+    /** Send a first message, e.g. to set up a session. */
+    public void prime(Object o) throws Exception {
+    }
+    public SOAPMessageBuffer encode(Object o) throws Exception {
+      SOAPMessageBuffer buf = new SOAPMessageBuffer();
+      SOAPSerialization.writeObject(buf, o, codec);
+      return buf;
+    }
+    public Object decode(byte[] bytes) throws Exception {
+      return SOAPSerialization.readObject(
+          new ByteArrayInputStream(bytes), null);
+    }
+  }
+
+  private static Encoder createEncoder(String name) {
+    if ("java".equals(name)) {
+      return new Encoder(null);
+    }
+    if ("classcache".equals(name)) {
+      return new Encoder(null) {
+        private final SOAPClassCache.Sender sender =
+          new SOAPClassCache.Sender(4096);
+        private final SOAPClassCache.Receiver receiver =
+          new SOAPClassCache.Receiver(16);
+        public void prime(Object o) throws Exception {
+          // the first message defines the classes, after which
+          // they're only referenced
+          SOAPMessageBuffer buf = new SOAPMessageBuffer();
+          Object token = sender.writeObject(buf, o);
+          decode(buf.toByteArray());
+          sender.confirm(token);
+        }
+        public SOAPMessageBuffer encode(Object o) throws Exception {
+          SOAPMessageBuffer buf = new SOAPMessageBuffer();
+          sender.writeObject(buf, o);
+          return buf;
+        }
+        public Object decode(byte[] bytes) throws Exception {
+          return SOAPSerialization.readObject(
+              new ByteArrayInputStream(bytes), receiver);
+        }
+      };
+    }
+    SOAPSerialization.Codec codec = SOAPSerialization.getCodec(name);
+    if (codec == null) {
+      throw new IllegalArgumentException("Unknown codec: "+name);
+    }
+    return new Encoder(codec);
+  }
+
+  /**
+   * @return a message with a payload of the given shape and a
+   * serialized size of roughly <i>size</i> bytes
+   */
+  static AttributedMessage createMessage(String shape, int size) {
+    Serializable payload =
+      ("relay".equals(shape) ?
+       (Serializable) new Integer(size) :
+       SOAPEncodeBenchmark.createGraph(shape, size));
+    AttributedMessage message =
+      new AttributedMessage(new CodecMessage(SOURCE, TARGET, payload));
+    message.setAttribute("MessageType", shape);
+    message.setAttribute("SequenceNumber", new Integer(size));
+    message.setAttribute("IsStreamingRequested", Boolean.FALSE);
+    return message;
+  }
+
+  private static final class CodecMessage extends Message {
+    private final Serializable payload;
+    public CodecMessage(
+        MessageAddress source, MessageAddress target,
+        Serializable payload) {
+      super(source, target);
+      this.payload = payload;
+    }
+  }
+}
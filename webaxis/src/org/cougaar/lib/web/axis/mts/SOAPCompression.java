@@ -0,0 +1,257 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 1997-2004 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+
+package org.cougaar.lib.web.axis.mts;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Optional compression of serialized {@link SOAPLinkProtocol}
+ * messages.
+ * <p>
+ * A compressed message starts with a two byte header: the
+ * {@link #MAGIC} byte followed by the {@link Codec} id.  A plain
+ * Java-serialized message always starts with 0xAC, so a receiver
+ * can tell the two apart.  A sender only compresses if the target
+ * node lists the codec name in the "#" fragment of its WP URI,
+ * which older nodes neither advertise nor parse.
+ * <p>
+ * The built-in codecs are "deflate" and "gzip".  Additional codecs
+ * (e.g. a faster LZ-style codec) can be added to {@link #CODECS}
+ * with an unused id.
+ */
+final class SOAPCompression {
+
+  /** The first byte of a compressed message. */
+  static final int MAGIC = 0x5A;
+
+  /** A compression algorithm. */
+  interface Codec {
+    /** @return the name advertised in the WP URI */
+    String getName();
+    /** @return the header id byte */
+    int getId();
+    OutputStream compress(OutputStream os) throws IOException;
+    InputStream decompress(InputStream is) throws IOException;
+  }
+
+  static final Codec DEFLATE = new Codec() {
+    public String getName() {
+      return "deflate";
+    }
+    public int getId() {
+      return 1;
+    }
+    public OutputStream compress(OutputStream os) {
+      // release the native deflater on close
+      final Deflater d = new Deflater(Deflater.BEST_SPEED);
+      return new DeflaterOutputStream(os, d, 4096) {
+        public void close() throws IOException {
+          try {
+            super.close();
+          } finally {
+            d.end();
+          }
+        }
+      };
+    }
+    public InputStream decompress(InputStream is) {
+      final Inflater i = new Inflater();
+      return new InflaterInputStream(is, i, 4096) {
+        public void close() throws IOException {
+          try {
+            super.close();
+          } finally {
+            i.end();
+          }
+        }
+      };
+    }
+  };
+
+  static final Codec GZIP = new Codec() {
+    public String getName() {
+      return "gzip";
+    }
+    public int getId() {
+      return 2;
+    }
+    public OutputStream compress(OutputStream os) throws IOException {
+      return new GZIPOutputStream(os, 4096);
+    }
+    public InputStream decompress(InputStream is) throws IOException {
+      return new GZIPInputStream(is, 4096);
+    }
+  };
+
+  /** All codecs that we can decompress. */
+  static final Codec[] CODECS = {DEFLATE, GZIP};
+
+  private SOAPCompression() {}
+
+  /** @return the codec with the given name, or null */
+  static Codec getCodec(String name) {
+    for (int i = 0; i < CODECS.length; i++) {
+      if (CODECS[i].getName().equals(name)) {
+        return CODECS[i];
+      }
+    }
+    return null;
+  }
+
+  /** @return the comma-separated names of our codecs */
+  static String getCodecNames() {
+    StringBuffer buf = new StringBuffer();
+    for (int i = 0; i < CODECS.length; i++) {
+      if (i > 0) {
+        buf.append(',');
+      }
+      buf.append(CODECS[i].getName());
+    }
+    return buf.toString();
+  }
+
+  /**
+   * Compress a serialized message.
+   *
+   * @return a new buffer with our header and the compressed bytes
+   */
+  static SOAPMessageBuffer compress(
+      SOAPMessageBuffer buf, Codec codec) throws IOException {
+    return compress(buf, 0, codec);
+  }
+
+  /**
+   * Compress a serialized message after its uncompressed
+   * {@link SOAPAddressHeader}.
+   *
+   * @param off the header length, which is copied as-is
+   * @return a new buffer with the address header, our header and
+   *   the compressed bytes
+   */
+  static SOAPMessageBuffer compress(
+      SOAPMessageBuffer buf, int off, Codec codec) throws IOException {
+    SOAPMessageBuffer ret = new SOAPMessageBuffer();
+    buf.writeTo(ret, 0, off);
+    ret.write(MAGIC);
+    ret.write(codec.getId());
+    OutputStream os = codec.compress(ret);
+    buf.writeTo(os, off, buf.size() - off);
+    os.close();
+    return ret;
+  }
+
+  /**
+   * Wrap a message stream, decompressing it if it starts with our
+   * header, and skipping its {@link SOAPAddressHeader} if the
+   * receiver didn't read it.
+   */
+  static InputStream decompress(InputStream is) throws IOException {
+    PushbackInputStream pis = new PushbackInputStream(is, 1);
+    int b = pis.read();
+    if (b == SOAPAddressHeader.MAGIC) {
+      SOAPAddressHeader.readFields(pis);
+      b = pis.read();
+    }
+    if (b != MAGIC) {
+      if (b >= 0) {
+        pis.unread(b);
+      }
+      return pis;
+    }
+    int id = pis.read();
+    for (int i = 0; i < CODECS.length; i++) {
+      if (CODECS[i].getId() == id) {
+        return CODECS[i].decompress(pis);
+      }
+    }
+    throw new IOException("Unknown compression codec: "+id);
+  }
+
+  /**
+   * Per-link compression statistics.
+   */
+  static final class Stats {
+    private long count;
+    private long rawBytes;
+    private long compressedBytes;
+    private long nanos;
+
+    /** @return the current thread's CPU time, or wall time */
+    static long now() {
+      ThreadMXBean tmx = ManagementFactory.getThreadMXBean();
+      if (tmx.isCurrentThreadCpuTimeSupported()) {
+        return tmx.getCurrentThreadCpuTime();
+      }
+      return System.nanoTime();
+    }
+
+    public synchronized void add(long raw, long compressed, long nanos) {
+      count++;
+      rawBytes += raw;
+      compressedBytes += compressed;
+      this.nanos += nanos;
+    }
+    public synchronized long getCount() {
+      return count;
+    }
+    public synchronized long getRawBytes() {
+      return rawBytes;
+    }
+    public synchronized long getCompressedBytes() {
+      return compressedBytes;
+    }
+    /** @return compressed size over raw size */
+    public synchronized double getRatio() {
+      return
+        (rawBytes == 0 ? 1.0 :
+         ((double) compressedBytes) / rawBytes);
+    }
+    /** @return total compression CPU time in nanoseconds */
+    public synchronized long getNanos() {
+      return nanos;
+    }
+    public synchronized String toString() {
+      return
+        "(compression count="+count+
+        " raw="+rawBytes+
+        " compressed="+compressedBytes+
+        " ratio="+((int) (100*getRatio()))+"%"+
+        " cpu="+(nanos/1000000)+"ms)";
+    }
+  }
+}
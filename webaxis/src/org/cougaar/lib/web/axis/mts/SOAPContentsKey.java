@@ -0,0 +1,68 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 1997-2004 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+
+package org.cougaar.lib.web.axis.mts;
+
+import java.lang.ref.WeakReference;
+
+import org.cougaar.core.mts.Message;
+
+/**
+ * A map key that compares message contents by identity, without
+ * keeping the contents from being garbage collected.
+ * <p>
+ * The MTS gives each link its own AttributedMessage, but the copies
+ * share the same contents object, so per-contents state that is
+ * shared by our links, e.g. the {@link SOAPFanout} and
+ * {@link SOAPMessageSizes}, is keyed by contents identity.  Once the
+ * contents are collected their key only equals itself, and its
+ * entry ages out of the cache.
+ */
+final class SOAPContentsKey {
+
+  private final WeakReference ref;
+  private final int hash;
+
+  public SOAPContentsKey(Message contents) {
+    this.ref = new WeakReference(contents);
+    this.hash = System.identityHashCode(contents);
+  }
+
+  public int hashCode() {
+    return hash;
+  }
+
+  public boolean equals(Object o) {
+    if (o == this) {
+      return true;
+    }
+    if (!(o instanceof SOAPContentsKey)) {
+      return false;
+    }
+    Object contents = ref.get();
+    return contents != null && ((SOAPContentsKey) o).ref.get() == contents;
+  }
+}
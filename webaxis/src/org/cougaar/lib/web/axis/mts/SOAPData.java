@@ -30,7 +30,6 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.io.ObjectInput;
-import java.io.ObjectInputStream;
 import java.io.ObjectOutput;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
@@ -42,12 +41,18 @@ import java.io.IOException;
  * The SOAP BeanSerializer will call the "getBytes()" method,
  * encode the result, and send the data in the XML message.
  * On the target side, the SOAP BeanDeserializer will create
- * a new SOAPData instance and call "setBytes(..)".
+ * a new SOAPData instance and call "setBytes(..)", which only
+ * keeps the bytes.  The object is deserialized by the first
+ * "toObject()" call, so a received message can be checked and
+ * queued before it's decoded.
  */
 public class SOAPData {
 
   private Object o;
 
+  // the received bytes, until decoded by "toObject"
+  private byte[] bytes;
+
   public SOAPData() {}
 
   public SOAPData(Object o){
@@ -56,10 +61,37 @@ public class SOAPData {
 
   /** get the object, avoid bean serializer "get*" method. */
   public Object toObject() {
+    try {
+      return toObject(null);
+    } catch (RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new RuntimeException("Unable to decode SOAPData", e);
+    }
+  }
+
+  /**
+   * Get the object, decoding the received bytes if necessary.
+   *
+   * @param receiver the class cache tables, or null if class
+   *   cache sessions are not accepted
+   */
+  Object toObject(SOAPClassCache.Receiver receiver) throws Exception {
+    if (bytes != null) {
+      byte[] b = bytes;
+      bytes = null;
+      o = SOAPSerialization.readObject(
+          SOAPCompression.decompress(new ByteArrayInputStream(b)),
+          receiver);
+    }
     return o;
   }
 
   public byte[] getBytes() throws IOException {
+    if (bytes != null) {
+      // not decoded
+      return bytes;
+    }
     if (o instanceof byte[]) {
       return (byte[]) o;
     }
@@ -71,13 +103,8 @@ public class SOAPData {
     return bos.toByteArray();
   }
 
-  public void setBytes(byte[] bytes) throws Exception {
-    Object result = null;
-    ByteArrayInputStream bis = new ByteArrayInputStream(bytes);
-    ObjectInputStream ois = new ObjectInputStream(bis);
-    result = ois.readObject();
-    ois.close();
-
-    o = result;
+  public void setBytes(byte[] bytes) {
+    this.bytes = bytes;
+    o = null;
   }
 }
@@ -0,0 +1,190 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 1997-2004 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+
+package org.cougaar.lib.web.axis.mts;
+
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import javax.activation.DataHandler;
+
+import org.apache.axis.attachments.ManagedMemoryDataSource;
+
+/**
+ * A command-line microbenchmark suite for the
+ * {@link SOAPLinkProtocol} encode and decode hot paths:
+ * <ul>
+ *   <li>{@link SOAPData#getBytes}, as called by the SOAP
+ *       BeanSerializer</li>
+ *   <li>{@link SOAPData#setBytes}, as called by the SOAP
+ *       BeanDeserializer, and the deferred decode in
+ *       {@link SOAPData#toObject}</li>
+ *   <li>the serialize-and-wrap step of the SOAPDestinationLink's
+ *       "sendMessage", with and without compression</li>
+ *   <li>the {@link SOAPAttachmentStore} read behind the
+ *       protocol's "readFromDataHandler"</li>
+ * </ul>
+ * Each case is run for every payload size and object graph
+ * shape, where the "bytes" graph is a single byte[] and the
+ * "objects" graph is a list of small maps of roughly the same
+ * serialized size.  Throughput and allocation are reported by
+ * the {@link SOAPBenchmark} harness.
+ * <p>
+ * To run:<pre>
+ *   ant -f custom-build.xml benchmark
+ * </pre>
+ * or:<pre>
+ *   CP="$CIP/lib/webaxis.jar:$CIP/lib/core.jar:$CIP/sys/axis_1_2_beta.jar:..."
+ *   CL="org.cougaar.lib.web.axis.mts.SOAPEncodeBenchmark"
+ *   java -classpath $CP $CL [-sizes=256,4096,...] [-warmup=N]
+ *     [-iterations=N]
+ * </pre>
+ */
+public class SOAPEncodeBenchmark {
+
+  private static final int[] SIZES = {256, 4096, 65536, 1<<20};
+  private static final String[] GRAPHS = {"bytes", "objects"};
+
+  // total bytes to process per case, which sets the iteration
+  // count unless "-iterations" is specified
+  private static final int BYTES_PER_CASE = 256<<20;
+
+  public static void main(String[] args) throws Exception {
+    int[] sizes = SOAPBenchmark.getInts(args, "sizes", SIZES);
+    int warmup = SOAPBenchmark.getInt(args, "warmup", -1);
+    int iterations = SOAPBenchmark.getInt(args, "iterations", -1);
+
+    final SOAPAttachmentStore attachmentStore =
+      new SOAPAttachmentStore(1<<20);
+    final SOAPCompression.Codec deflate =
+      SOAPCompression.getCodec("deflate");
+
+    for (int i = 0; i < sizes.length; i++) {
+      int size = sizes[i];
+      int n =
+        (iterations > 0 ? iterations :
+         Math.max(20, BYTES_PER_CASE / size));
+      int w = (warmup >= 0 ? warmup : Math.max(10, n / 5));
+      for (int j = 0; j < GRAPHS.length; j++) {
+        final Object graph = createGraph(GRAPHS[j], size);
+        final SOAPMessageBuffer buf = serialize(graph);
+        final byte[] bytes = buf.toByteArray();
+        String suffix = "("+GRAPHS[j]+", "+size+")";
+
+        SOAPBenchmark.run(
+            "SOAPData.getBytes"+suffix, w, n,
+            new SOAPBenchmark.Task() {
+              public void run() throws Exception {
+                new SOAPData(graph).getBytes();
+              }
+            });
+        SOAPBenchmark.run(
+            "SOAPData.setBytes+toObject"+suffix, w, n,
+            new SOAPBenchmark.Task() {
+              public void run() throws Exception {
+                SOAPData data = new SOAPData();
+                data.setBytes(bytes);
+                data.toObject();
+              }
+            });
+        SOAPBenchmark.run(
+            "sendMessage.wrap"+suffix, w, n,
+            new SOAPBenchmark.Task() {
+              public void run() throws Exception {
+                wrap(serialize(graph));
+              }
+            });
+        SOAPBenchmark.run(
+            "sendMessage.wrap+deflate"+suffix, w, n,
+            new SOAPBenchmark.Task() {
+              public void run() throws Exception {
+                wrap(SOAPCompression.compress(serialize(graph), deflate));
+              }
+            });
+        SOAPBenchmark.run(
+            "readFromDataHandler"+suffix, w, n,
+            new SOAPBenchmark.Task() {
+              public void run() throws Exception {
+                // as received by Axis, which spools to disk above
+                // its default 16k memory limit
+                DataHandler dh = new DataHandler(
+                    new ManagedMemoryDataSource(
+                      buf.getInputStream(), 16384,
+                      "application/octet-stream", true));
+                attachmentStore.readObject(dh);
+              }
+            });
+      }
+    }
+  }
+
+  /** Serialize as the SOAPDestinationLink does. */
+  private static SOAPMessageBuffer serialize(Object o) throws Exception {
+    SOAPMessageBuffer buf = new SOAPMessageBuffer();
+    ObjectOutputStream oos = new ObjectOutputStream(buf);
+    oos.writeObject(o);
+    oos.close();
+    return buf;
+  }
+
+  /** Wrap as the SOAPDestinationLink does with its default cutover. */
+  private static Object wrap(SOAPMessageBuffer buf) {
+    if (buf.size() >= (1<<16)) {
+      return new DataHandler(buf.toDataSource("source"));
+    }
+    return new SOAPData(buf.toByteArray());
+  }
+
+  /**
+   * @return a graph of the given shape with a serialized size of
+   * roughly <i>size</i> bytes
+   */
+  static Serializable createGraph(String shape, int size) {
+    Random r = new Random(size);
+    if ("bytes".equals(shape)) {
+      byte[] b = new byte[size];
+      r.nextBytes(b);
+      // wrapped, otherwise SOAPData would pass it through as
+      // pre-serialized bytes
+      return new Object[] {b};
+    }
+    // each entry serializes to roughly 40 bytes
+    List l = new ArrayList();
+    for (int n = 0; n < size; n += 160) {
+      Map m = new HashMap();
+      for (int i = 0; i < 4; i++) {
+        m.put("k"+r.nextInt(1000), new Integer(r.nextInt()));
+      }
+      l.add(m);
+    }
+    return (Serializable) l;
+  }
+}
@@ -0,0 +1,242 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 1997-2004 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+
+package org.cougaar.lib.web.axis.mts;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.cougaar.core.mts.Message;
+
+/**
+ * A short-lived cache of serialized message contents, shared by
+ * all the links of a {@link SOAPLinkProtocol}, so a message that the
+ * MTS sends to many nodes (e.g. a multicast) is serialized once
+ * instead of once per target.
+ * <p>
+ * The cache is keyed by a {@link SOAPContentsKey}.  A link sends a
+ * copy of its AttributedMessage whose contents are replaced by a
+ * {@link Payload} of the shared bytes, so only the per-target
+ * attributes are serialized again.  The
+ * receiver's deserialization resolves the payload back into the
+ * original contents.
+ * <p>
+ * Most messages only have one target, so the first link to send
+ * some contents only records them and sends as usual.  The second
+ * link serializes the shared payload while any further links wait,
+ * and at most "parallel" links send the same shared payload at a
+ * time, so a large broadcast doesn't tie up every MTS thread and
+ * every target at once.
+ * <p>
+ * The shared contents are serialized with plain Java serialization,
+ * since the bytes are shared by links with different codecs and
+ * class cache sessions.  As with any MTS send, the contents must not be
+ * modified after they're sent.
+ */
+final class SOAPFanout {
+
+  private final int parallel;
+  private final long maxAge;
+
+  // map from SOAPContentsKey to Entry, in send order, guarded by "this"
+  private final Map entries;
+
+  /**
+   * @param parallel the maximum number of concurrent sends of the
+   *   same contents
+   * @param maxEntries the maximum number of cached contents
+   * @param maxAge milliseconds to keep the contents after their
+   *   first send
+   */
+  public SOAPFanout(int parallel, final int maxEntries, long maxAge) {
+    this.parallel = Math.max(1, parallel);
+    this.maxAge = maxAge;
+    entries = new LinkedHashMap() {
+      protected boolean removeEldestEntry(Map.Entry eldest) {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  /**
+   * Get the shared payload of contents that another link has
+   * recently sent, serializing them if necessary, and wait for a
+   * send slot.
+   * <p>
+   * The caller must {@link #release} a returned entry after its
+   * send.
+   *
+   * @return the entry, or null if the caller should send the
+   *   contents as usual, since they haven't been sent recently or
+   *   another link failed to serialize them
+   */
+  public Entry acquire(Message contents) throws Exception {
+    SOAPContentsKey key = new SOAPContentsKey(contents);
+    Entry e;
+    synchronized (this) {
+      expire(System.currentTimeMillis());
+      e = (Entry) entries.get(key);
+      if (e == null) {
+        // first sight, probably not a multicast
+        entries.put(key, new Entry());
+        return null;
+      }
+      if (e.serializing) {
+        return wait(e);
+      }
+      e.serializing = true;
+    }
+    // we're the second link, the others wait for our payload
+    serialize(e, contents);
+    synchronized (this) {
+      return wait(e);
+    }
+  }
+
+  /** Release an entry after its send. */
+  public synchronized void release(Entry e) {
+    e.sending--;
+    notifyAll();
+  }
+
+  // wait for the payload and a send slot
+  private Entry wait(Entry e) throws InterruptedException {
+    while (e.payload == null && !e.failed) {
+      wait();
+    }
+    if (e.failed) {
+      return null;
+    }
+    while (e.sending >= parallel) {
+      wait();
+    }
+    e.sending++;
+    return e;
+  }
+
+  private void serialize(Entry e, Message contents) throws Exception {
+    Payload p = null;
+    try {
+      SOAPMessageBuffer buf = new SOAPMessageBuffer();
+      SOAPSerialization.writeObject(buf, contents, null);
+      p = new Payload(contents, buf);
+    } finally {
+      synchronized (this) {
+        if (p == null) {
+          // our caller sees the error, the other links fall back to
+          // their usual send
+          e.failed = true;
+          entries.values().remove(e);
+        } else {
+          e.payload = p;
+        }
+        notifyAll();
+      }
+    }
+  }
+
+  private void expire(long now) {
+    for (Iterator iter = entries.values().iterator(); iter.hasNext(); ) {
+      Entry e = (Entry) iter.next();
+      if (now - e.time <= maxAge) {
+        break;
+      }
+      iter.remove();
+    }
+  }
+
+  public synchronized String toString() {
+    return "(fanout entries="+entries.size()+")";
+  }
+
+  /** Shared serialized contents. */
+  static final class Entry {
+    private final long time = System.currentTimeMillis();
+    private Payload payload;
+    private boolean serializing;
+    private boolean failed;
+    // links holding a send slot
+    private int sending;
+
+    /** @return the contents to send in place of the original */
+    public Message getPayload() {
+      return payload;
+    }
+  }
+
+  /**
+   * Serialized message contents, which resolve into a copy of the
+   * original contents when deserialized.
+   */
+  static final class Payload extends Message {
+    // the sender's buffer, written without a copy
+    private transient SOAPMessageBuffer buf;
+    // the receiver's bytes
+    private transient byte[] bytes;
+
+    public Payload(Message contents, SOAPMessageBuffer buf) {
+      super(contents.getOriginator(), contents.getTarget());
+      this.buf = buf;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+      out.defaultWriteObject();
+      out.writeInt(buf.size());
+      buf.writeTo(out);
+    }
+
+    private void readObject(
+        ObjectInputStream in) throws IOException, ClassNotFoundException {
+      in.defaultReadObject();
+      bytes = new byte[in.readInt()];
+      in.readFully(bytes);
+    }
+
+    private Object readResolve() throws ObjectStreamException {
+      try {
+        return SOAPSerialization.readObject(
+            new ByteArrayInputStream(bytes), null);
+      } catch (Exception e) {
+        InvalidObjectException ioe =
+          new InvalidObjectException("Invalid payload: "+e);
+        ioe.initCause(e);
+        throw ioe;
+      }
+    }
+
+    public String toString() {
+      return
+        "(payload "+(buf == null ? bytes.length : buf.size())+" bytes)";
+    }
+  }
+}
@@ -0,0 +1,68 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 1997-2004 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+
+package org.cougaar.lib.web.axis.mts;
+
+import org.apache.axis.AxisFault;
+import org.apache.axis.MessageContext;
+import org.apache.axis.handlers.BasicHandler;
+import org.cougaar.lib.web.axis.WebServicesHooks;
+
+/**
+ * An Axis request-flow {@link org.apache.axis.Handler} in our
+ * {@link SOAPLinkProtocol} WSDD that marks the start time of
+ * sampled requests, so our {@link SOAPMT} can measure the Axis
+ * parsing time.
+ * <p>
+ * Axis creates this handler, so, like the {@link SOAPMTHook}, each
+ * node registers its sampler in the {@link WebServicesHooks}.
+ */
+public final class SOAPLatencyHandler extends BasicHandler {
+
+  /** The MessageContext property for the start time, as a Long */
+  static final String START_PROPERTY =
+    "org.cougaar.lib.web.axis.mts.startTime";
+
+  // our WebServicesHooks service name
+  private static final String SERVICE =
+    SOAPMTHook.SERVICE+"#latency";
+
+  static void register(Object[] keys, SOAPLatencyStats s) {
+    WebServicesHooks.register(SERVICE, keys, s);
+  }
+
+  static void unregister(SOAPLatencyStats s) {
+    WebServicesHooks.unregister(SERVICE, s);
+  }
+
+  public void invoke(MessageContext msgContext) throws AxisFault {
+    SOAPLatencyStats s = (SOAPLatencyStats) WebServicesHooks.find(SERVICE);
+    if (s != null && s.sample()) {
+      msgContext.setProperty(
+          START_PROPERTY, new Long(System.nanoTime()));
+    }
+  }
+}
@@ -0,0 +1,64 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 1997-2004 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+
+package org.cougaar.lib.web.axis.mts;
+
+import java.util.Map;
+
+import org.cougaar.core.component.Service;
+
+/**
+ * A service advertised by the {@link SOAPLinkProtocol} to view
+ * its sampled per-message latency histograms.
+ * <p>
+ * Sampling is enabled with the
+ * "org.cougaar.lib.web.axis.mts.latencySampleRate" system
+ * property, which times one in every N messages.
+ *
+ * @see SOAPLatencyStats
+ */
+public interface SOAPLatencyService extends Service {
+
+  /** @return the sample rate, or zero if sampling is disabled */
+  int getSampleRate();
+
+  /**
+   * @return a map from target address to
+   * {@link SOAPLatencyStats.Histogram}[], indexed by the
+   * SOAPLatencyStats SEND_* constants
+   */
+  Map getSendHistograms();
+
+  /**
+   * @return a map from source address to
+   * {@link SOAPLatencyStats.Histogram}[], indexed by the
+   * SOAPLatencyStats RECEIVE_* constants
+   */
+  Map getReceiveHistograms();
+
+  /** Clear all histograms. */
+  void reset();
+}
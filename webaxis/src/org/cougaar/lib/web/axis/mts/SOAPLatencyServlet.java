@@ -0,0 +1,116 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 1997-2004 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+
+package org.cougaar.lib.web.axis.mts;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Iterator;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A servlet that displays the {@link SOAPLatencyService}
+ * histograms as HTML tables, with a row per remote address and a
+ * "count mean / p50 / p99 / max" cell per stage.
+ * <p>
+ * Add "?reset=true" to clear the histograms.
+ */
+final class SOAPLatencyServlet extends HttpServlet {
+
+  private final SOAPLatencyService service;
+
+  public SOAPLatencyServlet(SOAPLatencyService service) {
+    this.service = service;
+  }
+
+  protected void doGet(
+      HttpServletRequest req, HttpServletResponse res
+      ) throws ServletException, IOException {
+    if ("true".equals(req.getParameter("reset"))) {
+      service.reset();
+    }
+    res.setContentType("text/html");
+    PrintWriter out = res.getWriter();
+    out.println(
+        "<html><head><title>SOAP Message Latency</title></head>"+
+        "<body><h2>SOAP Message Latency</h2>");
+    int rate = service.getSampleRate();
+    if (rate <= 0) {
+      out.println(
+          "<p>Sampling is disabled, set the"+
+          " \"org.cougaar.lib.web.axis.mts.latencySampleRate\""+
+          " system property to enable it.</p>");
+    } else {
+      out.println("<p>Sampling 1 in "+rate+" messages.</p>");
+    }
+    print(out, "Sent", "Target",
+        SOAPLatencyStats.SEND_STAGES, service.getSendHistograms());
+    print(out, "Received", "Source",
+        SOAPLatencyStats.RECEIVE_STAGES, service.getReceiveHistograms());
+    out.println("<p><a href=\"?reset=true\">Reset</a></p></body></html>");
+    out.flush();
+  }
+
+  private static void print(
+      PrintWriter out, String title, String keyName,
+      String[] stages, Map m) {
+    out.println("<h3>"+title+"</h3>");
+    if (m.isEmpty()) {
+      out.println("<p>None</p>");
+      return;
+    }
+    out.print("<table border=1><tr><th>"+keyName+"</th>");
+    for (int i = 0; i < stages.length; i++) {
+      out.print("<th>"+stages[i]+"</th>");
+    }
+    out.println("</tr>");
+    for (Iterator iter = m.entrySet().iterator(); iter.hasNext(); ) {
+      Map.Entry me = (Map.Entry) iter.next();
+      SOAPLatencyStats.Histogram[] h =
+        (SOAPLatencyStats.Histogram[]) me.getValue();
+      out.print("<tr><td>"+me.getKey()+"</td>");
+      for (int i = 0; i < h.length; i++) {
+        out.print("<td>");
+        if (h[i].getCount() > 0) {
+          out.print(
+              h[i].getCount()+" "+
+              h[i].getMean()/1000+" / "+
+              h[i].getPercentile(0.5)/1000+" / "+
+              h[i].getPercentile(0.99)/1000+" / "+
+              h[i].getMax()/1000+" us");
+        }
+        out.print("</td>");
+      }
+      out.println("</tr>");
+    }
+    out.println("</table>");
+  }
+}
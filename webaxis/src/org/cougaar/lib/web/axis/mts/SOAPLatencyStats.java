@@ -0,0 +1,270 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 1997-2004 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+
+package org.cougaar.lib.web.axis.mts;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Per-node histograms of sampled {@link SOAPLinkProtocol} message
+ * latencies, broken down by stage and keyed by the remote node or
+ * agent address.
+ * <p>
+ * Only one in every <i>sampleRate</i> messages is timed, and if
+ * the rate is zero then {@link #sample} always returns false and
+ * the only overhead is that check.
+ */
+public final class SOAPLatencyStats implements SOAPLatencyService {
+
+  /** Java serialization of an outgoing message */
+  public static final int SEND_SERIALIZE = 0;
+  /** Compression of an outgoing message */
+  public static final int SEND_COMPRESS = 1;
+  /**
+   * SOAP encoding, decoding of the reply, and the remote node's
+   * processing, which is the Axis "invoke" time minus the HTTP
+   * time if the HTTP time is measured.
+   */
+  public static final int SEND_SOAP = 2;
+  /**
+   * HTTP round trip, which is only measured with keep-alive
+   * connections and is otherwise included in the SEND_SOAP time.
+   */
+  public static final int SEND_HTTP = 3;
+  /** Total send time */
+  public static final int SEND_TOTAL = 4;
+
+  public static final String[] SEND_STAGES = {
+    "serialize", "compress", "soap", "http", "total",
+  };
+
+  /**
+   * Axis parsing of a received message, including the base64
+   * decoding of inline messages.
+   */
+  public static final int RECEIVE_AXIS = 0;
+  /** Deserialization of an inline message or attachment */
+  public static final int RECEIVE_READ = 1;
+  /** Delivery to the local MTS */
+  public static final int RECEIVE_DELIVER = 2;
+  /** Total receive time, excluding the encoding of the reply */
+  public static final int RECEIVE_TOTAL = 3;
+
+  public static final String[] RECEIVE_STAGES = {
+    "axis", "read", "deliver", "total",
+  };
+
+  private final int sampleRate;
+
+  // guarded by "this"
+  private int counter;
+
+  // maps from address string to Histogram[], guarded by "this"
+  private final Map sends = new HashMap();
+  private final Map receives = new HashMap();
+
+  public SOAPLatencyStats(int sampleRate) {
+    this.sampleRate = sampleRate;
+  }
+
+  /** @return the configured sample rate, or zero if disabled */
+  public int getSampleRate() {
+    return sampleRate;
+  }
+
+  /** @return true if the next message should be timed */
+  public boolean sample() {
+    if (sampleRate <= 0) {
+      return false;
+    }
+    synchronized (this) {
+      if (++counter < sampleRate) {
+        return false;
+      }
+      counter = 0;
+      return true;
+    }
+  }
+
+  /**
+   * Record the sampled stage times of a sent message.
+   *
+   * @param nanos indexed by the SEND_* constants, where negative
+   *   values are not recorded
+   */
+  public void recordSend(Object target, long[] nanos) {
+    record(sends, SEND_STAGES.length, target, nanos);
+  }
+
+  /**
+   * Record the sampled stage times of a received message.
+   *
+   * @param nanos indexed by the RECEIVE_* constants, where negative
+   *   values are not recorded
+   */
+  public void recordReceive(Object source, long[] nanos) {
+    record(receives, RECEIVE_STAGES.length, source, nanos);
+  }
+
+  private synchronized void record(
+      Map m, int n, Object key, long[] nanos) {
+    String s = String.valueOf(key);
+    Histogram[] h = (Histogram[]) m.get(s);
+    if (h == null) {
+      h = new Histogram[n];
+      for (int i = 0; i < n; i++) {
+        h[i] = new Histogram();
+      }
+      m.put(s, h);
+    }
+    for (int i = 0; i < n; i++) {
+      if (nanos[i] >= 0) {
+        h[i].add(nanos[i]);
+      }
+    }
+  }
+
+  /**
+   * @return a sorted map from target address to a copy of its
+   * Histogram[], indexed by the SEND_* constants
+   */
+  public synchronized Map getSendHistograms() {
+    return copy(sends);
+  }
+
+  /**
+   * @return a sorted map from source address to a copy of its
+   * Histogram[], indexed by the RECEIVE_* constants
+   */
+  public synchronized Map getReceiveHistograms() {
+    return copy(receives);
+  }
+
+  /** Clear all histograms. */
+  public synchronized void reset() {
+    sends.clear();
+    receives.clear();
+  }
+
+  private static Map copy(Map m) {
+    Map ret = new TreeMap();
+    for (Iterator iter = m.entrySet().iterator(); iter.hasNext(); ) {
+      Map.Entry me = (Map.Entry) iter.next();
+      Histogram[] h = (Histogram[]) me.getValue();
+      Histogram[] h2 = new Histogram[h.length];
+      for (int i = 0; i < h.length; i++) {
+        h2[i] = new Histogram(h[i]);
+      }
+      ret.put(me.getKey(), h2);
+    }
+    return ret;
+  }
+
+  /**
+   * A latency histogram with power-of-two microsecond buckets,
+   * where bucket <i>i</i> counts times less than 2<sup>i</sup>
+   * microseconds.
+   */
+  public static final class Histogram {
+
+    public static final int BUCKETS = 32;
+
+    private final long[] buckets;
+    private long count;
+    private long total;
+    private long max;
+
+    public Histogram() {
+      buckets = new long[BUCKETS];
+    }
+
+    private Histogram(Histogram h) {
+      buckets = (long[]) h.buckets.clone();
+      count = h.count;
+      total = h.total;
+      max = h.max;
+    }
+
+    void add(long nanos) {
+      long micros = nanos / 1000;
+      int i =
+        (micros <= 0 ? 0 :
+         Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros)));
+      buckets[i]++;
+      count++;
+      total += nanos;
+      if (nanos > max) {
+        max = nanos;
+      }
+    }
+
+    /** @return number of samples */
+    public long getCount() {
+      return count;
+    }
+    /** @return mean in nanoseconds */
+    public long getMean() {
+      return (count == 0 ? 0 : total / count);
+    }
+    /** @return maximum in nanoseconds */
+    public long getMax() {
+      return max;
+    }
+    /** @return a copy of the bucket counts */
+    public long[] getBuckets() {
+      return (long[]) buckets.clone();
+    }
+
+    /**
+     * @param p a percentile, e.g. 0.99
+     * @return the upper bound in nanoseconds of the bucket
+     *   containing that percentile, capped at the max
+     */
+    public long getPercentile(double p) {
+      long n = (long) Math.ceil(p * count);
+      long sum = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        sum += buckets[i];
+        if (sum >= n && sum > 0) {
+          return Math.min(max, (1L << i) * 1000);
+        }
+      }
+      return max;
+    }
+
+    public String toString() {
+      return
+        "(count="+count+
+        " mean="+getMean()/1000+"us"+
+        " p50="+getPercentile(0.5)/1000+"us"+
+        " p99="+getPercentile(0.99)/1000+"us"+
+        " max="+max/1000+"us)";
+    }
+  }
+}
@@ -25,38 +25,50 @@
  
 package org.cougaar.lib.web.axis.mts;
 
-import java.io.ByteArrayOutputStream;
-import java.io.FileInputStream;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
-import java.io.ObjectInputStream;
+import java.io.InputStream;
 import java.io.ObjectOutputStream;
 import java.lang.reflect.Method;
 import java.net.InetAddress;
 import java.net.URI;
 import java.net.URL;
-import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 
 import javax.activation.DataHandler;
-import javax.xml.namespace.QName;
-import javax.xml.rpc.ParameterMode;
-import javax.xml.rpc.ServiceException;
+import javax.activation.FileDataSource;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
-import org.apache.axis.attachments.OctetStream;
-import org.apache.axis.attachments.OctetStreamDataSource;
+import org.apache.axis.MessageContext;
+import org.apache.axis.SimpleTargetedChain;
 import org.apache.axis.client.Call;
-import org.apache.axis.encoding.ser.BeanDeserializerFactory;
-import org.apache.axis.encoding.ser.BeanSerializerFactory;
+import org.apache.axis.configuration.SimpleProvider;
 import org.apache.axis.encoding.ser.JAFDataHandlerDeserializerFactory;
 import org.apache.axis.encoding.ser.JAFDataHandlerSerializerFactory;
+import org.apache.axis.transport.http.HTTPConstants;
+import org.apache.axis.transport.http.HTTPTransport;
 import org.cougaar.core.component.ServiceAvailableEvent;
 import org.cougaar.core.component.ServiceAvailableListener;
 import org.cougaar.core.component.ServiceBroker;
+import org.cougaar.core.component.ServiceProvider;
 import org.cougaar.core.mts.MessageAddress;
 import org.cougaar.core.mts.MessageAttributes;
+import org.cougaar.core.node.NodeControlService;
 import org.cougaar.core.service.LoggingService;
 import org.cougaar.core.service.ServletService;
+import org.cougaar.core.service.ThreadService;
 import org.cougaar.core.service.WebServicesService;
+import org.cougaar.core.thread.Schedulable;
 import org.cougaar.core.thread.SchedulableStatus;
+import org.cougaar.lib.web.axis.WebServicesHooks;
+import org.cougaar.lib.web.axis.WebServicesProvider;
 import org.cougaar.mts.base.AttributedMessage;
 import org.cougaar.mts.base.CommFailureException;
 import org.cougaar.mts.base.DestinationLink;
@@ -113,17 +125,552 @@ public class SOAPLinkProtocol extends RPCLinkProtocol {
    * periodic Axis directly cleanup costs.
    * <p>
    * Here we use 64k, which minimal testing has found to be a
-   * pretty good tradeoff. 
+   * pretty good tradeoff.  This is only the initial threshold,
+   * since our {@link SOAPPathSelector} learns the cutover from
+   * measured send times, unless {@link #FIXED_BIG_MESSAGE_LENGTH}
+   * is set.
    */
   private static final int BIG_MESSAGE_LENGTH = 1<<16;
 
+  /**
+   * If set, always use this fixed threshold between inline and
+   * attachment messages instead of learning it.
+   */
+  private static final int FIXED_BIG_MESSAGE_LENGTH =
+    Integer.getInteger(
+        "org.cougaar.lib.web.axis.mts.bigMessageLength", -1).intValue();
+
+  /**
+   * Messages of at least this size are always sent as attachments,
+   * to avoid the XML parser's OutOfMemoryError.
+   */
+  private static final int MAX_INLINE_LENGTH =
+    Integer.getInteger(
+        "org.cougaar.lib.web.axis.mts.maxInlineLength", 1<<20).intValue();
+
+  /**
+   * Comma-separated list of the compression codecs that we'll use,
+   * in order of preference, if the target node supports them, e.g.
+   * "deflate,gzip".  The default is to not compress.
+   * <p>
+   * We always advertise and accept all {@link SOAPCompression}
+   * codecs, regardless of this setting.
+   */
+  private static final String[] COMPRESSION =
+    split(System.getProperty("org.cougaar.lib.web.axis.mts.compression"));
+
+  /**
+   * Comma-separated list of the {@link SOAPSerialization} codecs
+   * that we'll use, in order of preference, if the target node
+   * supports them, e.g. "compact".  The default is Java
+   * serialization.
+   * <p>
+   * We always advertise and accept all registered codecs,
+   * regardless of this setting.
+   */
+  private static final String[] CODEC =
+    split(System.getProperty("org.cougaar.lib.web.axis.mts.codec"));
+
+  /**
+   * Comma-separated list of {@link SOAPSerialization.Codec} class
+   * names to register, in addition to the built-in codecs.
+   */
+  private static final String[] CODEC_CLASSES =
+    split(System.getProperty("org.cougaar.lib.web.axis.mts.codecs"));
+
+  /**
+   * Messages smaller than this many serialized bytes are not
+   * compressed.
+   */
+  private static final int COMPRESSION_THRESHOLD =
+    Integer.getInteger(
+        "org.cougaar.lib.web.axis.mts.compressionThreshold",
+        1024).intValue();
+
+  /**
+   * Received attachments up to this many bytes that Axis has
+   * spooled to disk are read back into a heap buffer, while larger
+   * ones are memory-mapped.
+   */
+  private static final int ATTACHMENT_HEAP_LIMIT =
+    Integer.getInteger(
+        "org.cougaar.lib.web.axis.mts.attachmentHeapLimit",
+        1<<20).intValue();
+
+  /**
+   * Maximum number of idle pre-configured Axis Calls kept per
+   * destination and operation, which should be at least the
+   * number of concurrent sends to a single node.
+   */
+  private static final int MAX_IDLE_CALLS =
+    Integer.getInteger(
+        "org.cougaar.lib.web.axis.mts.maxIdleCalls", 4).intValue();
+
+  /**
+   * Enable our {@link KeepAliveHTTPSender}, which reuses HTTP/1.1
+   * connections across messages instead of opening a new socket
+   * (and SSL handshake) per message.
+   */
+  private static final boolean KEEP_ALIVE =
+    Boolean.getBoolean("org.cougaar.lib.web.axis.mts.keepAlive");
+
+  /**
+   * Enable our binary fast path, which advertises the "binary"
+   * feature and sends messages to nodes that advertise it as raw
+   * serialized bytes, bypassing the SOAP envelope and Axis XML
+   * parsing on both ends.
+   * <p>
+   * Nodes that don't advertise the feature, or that reject the
+   * binary {@link BinaryHTTPSender#CONTENT_TYPE}, are sent SOAP
+   * messages as usual.
+   */
+  private static final boolean BINARY =
+    Boolean.getBoolean("org.cougaar.lib.web.axis.mts.binary");
+
+  private static final String BINARY_FEATURE = "binary";
+
+  /**
+   * Use a {@link SOAPClassCache} session per destination link if
+   * the target node supports it, which sends each serialization
+   * class descriptor once instead of in every message.
+   * <p>
+   * We always advertise and accept class cache sessions,
+   * regardless of this setting.
+   */
+  private static final boolean CLASS_CACHE =
+    Boolean.getBoolean("org.cougaar.lib.web.axis.mts.classCache");
+
+  /**
+   * The maximum number of cached class descriptors per link, after
+   * which additional classes are sent in full.
+   */
+  private static final int CLASS_CACHE_SIZE =
+    Integer.getInteger(
+        "org.cougaar.lib.web.axis.mts.classCacheSize", 4096).intValue();
+
+  /**
+   * The maximum number of class cache sessions that we accept,
+   * after which the least recently used session is dropped and its
+   * sender must resync.
+   */
+  private static final int CLASS_CACHE_SESSIONS =
+    Integer.getInteger(
+        "org.cougaar.lib.web.axis.mts.classCacheSessions", 1024).intValue();
+
+  private static final String CLASS_CACHE_FEATURE = "classcache";
+
+  /**
+   * Ask for {@link SOAPAck} compact replies if the target node
+   * supports them.
+   * <p>
+   * We always advertise and send compact replies if asked,
+   * regardless of this setting.
+   */
+  private static final boolean COMPACT_ACK =
+    Boolean.getBoolean("org.cougaar.lib.web.axis.mts.compactAck");
+
+  private static final String COMPACT_ACK_FEATURE = "compactack";
+
+  /**
+   * Time the stages of one in every N sent and received messages
+   * and record them in per-address histograms, which are viewable
+   * through our {@link SOAPLatencyService} and
+   * {@link #LATENCY_SERVLET_PATH} servlet.  Zero disables sampling.
+   */
+  private static final int LATENCY_SAMPLE_RATE =
+    Integer.getInteger(
+        "org.cougaar.lib.web.axis.mts.latencySampleRate", 0).intValue();
+
+  private static final String LATENCY_SERVLET_PATH = "/soapLatency";
+
+  /**
+   * If {@link #KEEP_ALIVE} is enabled, the maximum number of
+   * connections per destination node.
+   */
+  private static final int MAX_CONNECTIONS =
+    Integer.getInteger(
+        "org.cougaar.lib.web.axis.mts.maxConnections", 4).intValue();
+
+  /**
+   * If {@link #KEEP_ALIVE} is enabled, idle connections are closed
+   * after this many milliseconds.
+   */
+  private static final long KEEP_ALIVE_TIMEOUT =
+    Long.getLong(
+        "org.cougaar.lib.web.axis.mts.keepAliveTimeout", 30000).longValue();
+
+  /**
+   * If {@link #KEEP_ALIVE} is enabled, the socket connect timeout in
+   * milliseconds, or zero for the OS default.
+   */
+  private static final int CONNECT_TIMEOUT =
+    Integer.getInteger(
+        "org.cougaar.lib.web.axis.mts.connectTimeout", 0).intValue();
+
+  /**
+   * Maximum number of small messages to the same node that are
+   * coalesced into a single "rerouteMessages" call, where the
+   * default of 1 disables batching.
+   * <p>
+   * We only batch messages to nodes that advertise the batch
+   * feature, which we always advertise and accept, regardless of
+   * this setting.
+   */
+  private static final int BATCH_SIZE =
+    Integer.getInteger(
+        "org.cougaar.lib.web.axis.mts.batchSize", 1).intValue();
+
+  private static final String BATCH_FEATURE = "batch";
+
+  /**
+   * If {@link #BATCH_SIZE} is enabled, the maximum total bytes of
+   * the messages in a batch.
+   */
+  private static final int BATCH_BYTES =
+    Integer.getInteger(
+        "org.cougaar.lib.web.axis.mts.batchBytes",
+        BIG_MESSAGE_LENGTH).intValue();
+
+  /**
+   * If {@link #BATCH_SIZE} is enabled, the maximum time in
+   * milliseconds that the first message in a batch waits for other
+   * messages to join the batch.
+   */
+  private static final long BATCH_LINGER =
+    Long.getLong(
+        "org.cougaar.lib.web.axis.mts.batchLinger", 5).longValue();
+
+  /**
+   * Maximum number of asynchronous sends in flight per destination,
+   * where the default of 0 disables async mode.
+   * <p>
+   * In async mode a message is acknowledged to the MTS with a
+   * "store and forward" status as soon as it is accepted by the
+   * link's {@link SOAPSendWindow}, which then owns the message and
+   * retries it until it is delivered or it expires.
+   * <p>
+   * We only send async to nodes that advertise the sequence
+   * feature, which we always advertise and accept, regardless of
+   * this setting, since other nodes can't keep the messages in
+   * order.
+   */
+  private static final int ASYNC_WINDOW =
+    Integer.getInteger(
+        "org.cougaar.lib.web.axis.mts.asyncWindow", 0).intValue();
+
+  /**
+   * Initial and maximum backoff in milliseconds for async mode
+   * retries.
+   */
+  private static final long ASYNC_MIN_RETRY =
+    Long.getLong(
+        "org.cougaar.lib.web.axis.mts.asyncMinRetry", 500).longValue();
+  private static final long ASYNC_MAX_RETRY =
+    Long.getLong(
+        "org.cougaar.lib.web.axis.mts.asyncMaxRetry", 30000).longValue();
+
+  /**
+   * Maximum number of attempts to send an async message, after
+   * which it's dropped, as it is once the message's send deadline
+   * has passed.
+   */
+  private static final int ASYNC_MAX_ATTEMPTS =
+    Integer.getInteger(
+        "org.cougaar.lib.web.axis.mts.asyncMaxAttempts", 20).intValue();
+
+  private static final String SEQUENCE_FEATURE = "sequence";
+
+  /**
+   * Maximum number of received messages queued per target agent,
+   * where the default of 0 disables the receive queue.
+   * <p>
+   * With the queue enabled, a received message is acknowledged as
+   * soon as it's added to its target agent's
+   * {@link SOAPReceiveQueue}, which delivers it on a ThreadService
+   * thread, so a slow agent doesn't hold the web server threads.
+   */
+  private static final int RECEIVE_QUEUE_SIZE =
+    Integer.getInteger(
+        "org.cougaar.lib.web.axis.mts.receiveQueueSize", 0).intValue();
+
+  /**
+   * If {@link #RECEIVE_QUEUE_SIZE} is enabled, the maximum number of
+   * received messages queued for all agents.
+   */
+  private static final int RECEIVE_QUEUE_TOTAL =
+    Integer.getInteger(
+        "org.cougaar.lib.web.axis.mts.receiveQueueTotal",
+        4096).intValue();
+
+  /**
+   * Maximum number of received one-way messages queued per target
+   * agent if {@link #RECEIVE_QUEUE_SIZE} is disabled, otherwise
+   * one-way messages share the receive queue.
+   */
+  private static final int ONE_WAY_QUEUE_SIZE =
+    Integer.getInteger(
+        "org.cougaar.lib.web.axis.mts.oneWayQueueSize", 256).intValue();
+
+  /**
+   * Maximum number of attempts to forward a queued message whose
+   * target agent left this node before the queue delivered it.
+   * <p>
+   * We've already acknowledged the message, so instead of dropping
+   * it we forward it to the agent's new node.
+   */
+  private static final int RECEIVE_RELAY_ATTEMPTS =
+    Integer.getInteger(
+        "org.cougaar.lib.web.axis.mts.receiveRelayAttempts",
+        3).intValue();
+
+  /**
+   * The message attribute that selects one-way delivery, where the
+   * SOAP call returns as soon as the target has queued the message
+   * instead of after the target agent has received it.
+   * <p>
+   * Any non-null value selects one-way delivery, which is used if
+   * the target node supports it and the message is small enough to
+   * send inline.
+   */
+  public static final String ONE_WAY_ATTRIBUTE =
+    "org.cougaar.lib.web.axis.mts.OneWay";
+
+  private static final String ONE_WAY_FEATURE = "oneway";
+
+  // feature of a receiver that reads our SOAPAddressHeader, which we
+  // always advertise
+  private static final String ADDRESS_FEATURE = "address";
+
+  /**
+   * The retry delay in milliseconds that we ask of senders if our
+   * receive queue is full, which is sent with an HTTP 503 status.
+   */
+  private static final long RECEIVE_RETRY_AFTER =
+    Long.getLong(
+        "org.cougaar.lib.web.axis.mts.receiveRetryAfter", 1000).longValue();
+
+  /**
+   * Messages of at least this many serialized bytes are split into
+   * {@link SOAPChunker} chunks if the target node supports it,
+   * where the default of 0 disables chunking.
+   * <p>
+   * A chunked message is reassembled in a disk spool on the
+   * receiver, and a failed send resumes from the receiver's first
+   * missing chunk instead of resending the whole message.  We
+   * always advertise and accept chunked messages, regardless of
+   * this setting.
+   */
+  private static final int CHUNK_THRESHOLD =
+    Integer.getInteger(
+        "org.cougaar.lib.web.axis.mts.chunkThreshold", 0).intValue();
+
+  private static final String CHUNK_FEATURE = "chunked";
+
+  /**
+   * If {@link #CHUNK_THRESHOLD} is enabled, the byte size of each
+   * chunk, which is sent as an attachment.
+   */
+  private static final int CHUNK_SIZE =
+    Integer.getInteger(
+        "org.cougaar.lib.web.axis.mts.chunkSize", 1<<20).intValue();
+
+  /**
+   * If {@link #CHUNK_THRESHOLD} is enabled, the maximum number of
+   * concurrent chunk calls per message.
+   */
+  private static final int CHUNK_PARALLEL =
+    Integer.getInteger(
+        "org.cougaar.lib.web.axis.mts.chunkParallel", 2).intValue();
+
+  /**
+   * If {@link #CHUNK_THRESHOLD} is enabled, the number of times a
+   * chunked send is resumed without progress before it fails back
+   * to the MTS, which may retry it.  A retried message resumes
+   * where the failed send left off.
+   */
+  private static final int CHUNK_RETRIES =
+    Integer.getInteger(
+        "org.cougaar.lib.web.axis.mts.chunkRetries", 3).intValue();
+
+  /**
+   * The maximum total bytes of the chunked messages that we're
+   * reassembling, after which new chunked messages are rejected as
+   * busy.
+   */
+  private static final long CHUNK_SPOOL_LIMIT =
+    Long.getLong(
+        "org.cougaar.lib.web.axis.mts.chunkSpoolLimit",
+        1L<<30).longValue();
+
+  /**
+   * Partially received chunked messages are dropped after this
+   * many milliseconds without a new chunk.
+   */
+  private static final long CHUNK_TIMEOUT =
+    Long.getLong(
+        "org.cougaar.lib.web.axis.mts.chunkTimeout",
+        10*60*1000).longValue();
+
+  /**
+   * Hand messages directly to the receiver of a target node in
+   * this JVM, which we find in the {@link SOAPLocalRegistry},
+   * instead of sending them through HTTP loopback and Axis.
+   * <p>
+   * We always advertise our node address and register our receiver,
+   * regardless of this setting.
+   */
+  private static final boolean LOCAL_SHORTCUT =
+    Boolean.getBoolean("org.cougaar.lib.web.axis.mts.localShortcut");
+
+  /**
+   * If {@link #LOCAL_SHORTCUT} is enabled, share each message's
+   * contents with the target node instead of copying the message
+   * through Java serialization, as if it was sent remotely.
+   * <p>
+   * This is only safe if neither node modifies the contents after
+   * the send, e.g. a relay or blackboard object, so it's disabled
+   * by default.  Even if enabled, we only share the contents if
+   * the target node's classloader resolves the same contents class.
+   */
+  private static final boolean LOCAL_SHARE =
+    Boolean.getBoolean("org.cougaar.lib.web.axis.mts.localShare");
+
+  // feature prefix of our node address
+  private static final String NODE_FEATURE = "node=";
+
+  /**
+   * Serialize the contents of a message that we send to several
+   * nodes, e.g. a multicast, once for all our links, instead of
+   * once per target.  See {@link SOAPFanout}.
+   * <p>
+   * We always advertise and accept shared contents, regardless of
+   * this setting.
+   */
+  private static final boolean FANOUT =
+    Boolean.getBoolean("org.cougaar.lib.web.axis.mts.fanout");
+
+  private static final String FANOUT_FEATURE = "fanout";
+
+  /**
+   * If {@link #FANOUT} is enabled, the maximum number of links that
+   * concurrently send the same shared contents.
+   */
+  private static final int FANOUT_PARALLEL =
+    Integer.getInteger(
+        "org.cougaar.lib.web.axis.mts.fanoutParallel", 8).intValue();
+
+  /**
+   * If {@link #FANOUT} is enabled, the maximum number of recently
+   * sent contents that we keep serialized.
+   */
+  private static final int FANOUT_CACHE_SIZE =
+    Integer.getInteger(
+        "org.cougaar.lib.web.axis.mts.fanoutCacheSize", 32).intValue();
+
+  /**
+   * If {@link #FANOUT} is enabled, milliseconds to keep serialized
+   * contents after their first send, which should cover the MTS's
+   * sends of a message to all its targets.
+   */
+  private static final long FANOUT_CACHE_AGE =
+    Long.getLong(
+        "org.cougaar.lib.web.axis.mts.fanoutCacheAge",
+        5000).longValue();
+
+  /**
+   * Advertise our servlet path under our node's "/$name" agent
+   * path, e.g. "/$NodeA/axis/services", which routes each call to
+   * our node's {@link SOAPMTHook} if several nodes in this JVM
+   * share a web server.  Otherwise calls are routed by port.
+   */
+  private static final boolean NODE_PATH =
+    Boolean.getBoolean("org.cougaar.lib.web.axis.mts.nodePath");
+
+  /**
+   * The cost of a link before we've measured it, and the cost of
+   * a link whose measured send time is {@link #COST_REFERENCE_TIME}.
+   * <p>
+   * This is hard-coded to be more than the RMI &amp; HTTP
+   * LinkProtocols, so we're only preferred when we're measured to
+   * be faster.
+   */
+  private static final int DEFAULT_COST = 1500;
+
+  /**
+   * Measured send time, in milliseconds, that costs
+   * {@link #DEFAULT_COST}.  Our link costs scale linearly with the
+   * estimated send time.
+   */
+  private static final long COST_REFERENCE_TIME =
+    Long.getLong(
+        "org.cougaar.lib.web.axis.mts.costReferenceTime",
+        15).longValue();
+
+  /**
+   * Link statistics older than this many milliseconds are ignored
+   * by our cost computation, so a link that failed in the past is
+   * eventually tried again.
+   */
+  private static final long COST_STATS_TIMEOUT =
+    Long.getLong(
+        "org.cougaar.lib.web.axis.mts.costStatsTimeout",
+        60000).longValue();
+
+  /**
+   * Number of recently sent message contents whose serialized
+   * length we remember, so the cost of a message that we've already
+   * serialized, e.g. an MTS retry or a multicast, includes the
+   * transfer time of its size.  The cost of other messages assumes
+   * the link's mean message size.
+   */
+  private static final int COST_SIZE_CACHE =
+    Integer.getInteger(
+        "org.cougaar.lib.web.axis.mts.costSizeCache", 256).intValue();
+
+  /**
+   * Number of consecutive failed sends to a destination after which
+   * we open its {@link SOAPCircuitBreaker}, where the default of 0
+   * disables the circuit breakers.
+   * <p>
+   * While the circuit is open our sends fail fast, our cost is
+   * infinite, and we probe the target with
+   * {@link SOAPMT#getMessageAddress} until it responds.
+   */
+  private static final int CIRCUIT_THRESHOLD =
+    Integer.getInteger(
+        "org.cougaar.lib.web.axis.mts.circuitThreshold", 0).intValue();
+
+  /**
+   * Initial and maximum backoff in milliseconds between the probes
+   * of an open circuit.
+   */
+  private static final long CIRCUIT_MIN_RETRY =
+    Long.getLong(
+        "org.cougaar.lib.web.axis.mts.circuitMinRetry", 1000).longValue();
+  private static final long CIRCUIT_MAX_RETRY =
+    Long.getLong(
+        "org.cougaar.lib.web.axis.mts.circuitMaxRetry", 30000).longValue();
+
+  /**
+   * Warm up a destination link in the background when we find its
+   * address in the WP, or when its address changes, e.g. after the
+   * target node restarts.
+   * <p>
+   * The warm-up creates the link's Axis client and pooled Calls and
+   * calls {@link SOAPMT#getMessageAddress}, which loads our
+   * serializers and opens a keep-alive connection, so the first
+   * message doesn't pay for them.
+   */
+  private static final boolean WARM_UP =
+    Boolean.getBoolean("org.cougaar.lib.web.axis.mts.warmUp");
+
   /**
    * Our WSDD to register in the {@link WebServicesService}.
    * <p>
    * This is a giant string, but we use ".class.getName()" to make
    * sure the referenced classnames are correct.
    */
-  private static final String MT_WSDD =
+  static final String MT_WSDD =
     "<deployment name=\"test\" xmlns=\"http://xml.apache.org/axis/wsdd/\" \n"+
     "    xmlns:java=\"http://xml.apache.org/axis/wsdd/providers/java\">\n"+
     "  <service name=\"urn:Cougaar-MTS\" provider=\"java:RPC\">\n"+
@@ -133,8 +680,14 @@ public class SOAPLinkProtocol extends RPCLinkProtocol {
     "\"/>\n"+
     "    <parameter name=\"allowedMethods\"\n"+
     "      value=\"rerouteMessage rerouteMessageAsAttachment "+
+    "rerouteMessages rerouteMessageOneWay rerouteMessageChunk "+
     "getMessageAddress\"/>\n"+
     "    <parameter name=\"wsdlServicePort\" value=\"SOAPMT\"/>\n"+
+    "    <requestFlow>\n"+
+    "      <handler type=\"java:"+
+    SOAPLatencyHandler.class.getName()+
+    "\"/>\n"+
+    "    </requestFlow>\n"+
     "    <operation name=\"rerouteMessage\"\n"+
     "      returnQName=\"returnqname\" returnType=\"SOAPData\">\n"+
     "      <parameter name=\"small_message\" type=\"SOAPData\"/>\n"+
@@ -143,6 +696,18 @@ public class SOAPLinkProtocol extends RPCLinkProtocol {
     "      returnQName=\"returnqname\" returnType=\"SOAPData\">\n"+
     "      <parameter name=\"big_message\" type=\"DataHandler\"/>\n"+
     "    </operation>\n"+
+    "    <operation name=\"rerouteMessages\"\n"+
+    "      returnQName=\"returnqname\" returnType=\"SOAPData\">\n"+
+    "      <parameter name=\"messages\" type=\"SOAPData\"/>\n"+
+    "    </operation>\n"+
+    "    <operation name=\"rerouteMessageOneWay\"\n"+
+    "      returnQName=\"returnqname\" returnType=\"SOAPData\">\n"+
+    "      <parameter name=\"small_message\" type=\"SOAPData\"/>\n"+
+    "    </operation>\n"+
+    "    <operation name=\"rerouteMessageChunk\"\n"+
+    "      returnQName=\"returnqname\" returnType=\"SOAPData\">\n"+
+    "      <parameter name=\"chunk\" type=\"DataHandler\"/>\n"+
+    "    </operation>\n"+
     "    <operation name=\"getMessageAddress\"\n"+
     "      returnQName=\"returnqname\" returnType=\"SOAPData\"/>\n"+
     "    <beanMapping qname=\"myNS:SOAPData\"\n"+
@@ -174,10 +739,98 @@ public class SOAPLinkProtocol extends RPCLinkProtocol {
     "org.cougaar.lib.web.service.RootServletService";
 
   private LoggingService logger;
+
+  // the URI that we advertise in the WP, or null
+  private URI localURI;
+  private ThreadService threadService;
   private WebServicesService webServicesService;
 
   private boolean servant_made = false;
 
+  // our receiver in the SOAPLocalRegistry, or null
+  private SOAPLocalRegistry.Servant localServant;
+
+  // our node name and port in the WebServicesHooks, and the
+  // objects that we registered there
+  private Object[] hookKeys;
+  private SOAPMT hookMT;
+  private BinaryServlet binaryServlet;
+
+  // optional keep-alive connections shared by all our links
+  private HTTPConnectionPool connectionPool;
+
+  // optional binary sender shared by all our links
+  private BinaryHTTPSender binarySender;
+
+  // optional batcher shared by all our links
+  private SOAPMessageBatcher batcher;
+
+  // orders received async messages, which may be sent by other
+  // nodes even if we don't use async mode
+  private final SOAPSequencer sequencer =
+    new SOAPSequencer(10*60*1000);
+
+  // optional queue of received messages
+  private SOAPReceiveQueue receiveQueue;
+
+  // queue of received one-way messages, which may be the
+  // receiveQueue
+  private SOAPReceiveQueue oneWayQueue;
+
+  // map from primary MessageAddress to our SOAPDestinationLink,
+  // for our "computeCost"
+  private final Map links = new HashMap();
+
+  // sampled latency histograms, for our servlet and service
+  private final SOAPLatencyStats latencyStats =
+    new SOAPLatencyStats(LATENCY_SAMPLE_RATE);
+  private ServiceBroker rootsb;
+  private ServiceProvider latencySP;
+  private ServletService servletService;
+
+  // descriptor tables of the class cache sessions sent to us
+  private final SOAPClassCache.Receiver classCacheReceiver =
+    new SOAPClassCache.Receiver(CLASS_CACHE_SESSIONS);
+
+  // reads received attachments
+  private final SOAPAttachmentStore attachmentStore =
+    new SOAPAttachmentStore(ATTACHMENT_HEAP_LIMIT);
+
+  // serialized lengths of recently sent contents, for our costs
+  private final SOAPMessageSizes messageSizes =
+    new SOAPMessageSizes(COST_SIZE_CACHE);
+
+  // serialized contents shared by our links, or null
+  private final SOAPFanout fanoutCache =
+    (FANOUT ?
+     new SOAPFanout(FANOUT_PARALLEL, FANOUT_CACHE_SIZE, FANOUT_CACHE_AGE) :
+     null);
+
+  // reassembles received chunked messages
+  private final SOAPChunker.Receiver chunkReceiver =
+    new SOAPChunker.Receiver(
+        null, CHUNK_SPOOL_LIMIT, CHUNK_TIMEOUT, RECEIVE_RETRY_AFTER);
+
+  // reads and delivers a reassembled chunked message
+  private final SOAPChunker.Reader chunkReader =
+    new SOAPChunker.Reader() {
+      public Object read(File f) throws Exception {
+        DataHandler dh = new DataHandler(new FileDataSource(f));
+        SOAPAddressHeader h = readHeader(dh);
+        if (h != null && !getRegistry().isLocalClient(h.getTarget())) {
+          return h.misdelivered();
+        }
+        AttributedMessage message;
+        try {
+          message = (AttributedMessage) attachmentStore.readObject(
+              dh, classCacheReceiver);
+        } catch (SOAPClassCache.ResyncException e) {
+          return SOAPClassCache.RESYNC;
+        }
+        return receiveMessage(message);
+      }
+    };
+
   public void load() {
     super.load();
     logger = getLoggingService();
@@ -185,6 +838,83 @@ public class SOAPLinkProtocol extends RPCLinkProtocol {
       logger.debug("Loading");
     }
 
+    for (int i = 0; i < CODEC_CLASSES.length; i++) {
+      try {
+        SOAPSerialization.addCodec((SOAPSerialization.Codec)
+            Class.forName(CODEC_CLASSES[i]).newInstance());
+      } catch (Exception e) {
+        if (logger.isWarnEnabled()) {
+          logger.warn("Unable to add codec "+CODEC_CLASSES[i], e);
+        }
+      }
+    }
+
+    if (KEEP_ALIVE) {
+      connectionPool = new HTTPConnectionPool(
+          MAX_CONNECTIONS, KEEP_ALIVE_TIMEOUT, CONNECT_TIMEOUT);
+    }
+
+    if (BINARY) {
+      binarySender = new BinaryHTTPSender(connectionPool, 0);
+    }
+
+    if (BATCH_SIZE > 1) {
+      batcher = new SOAPMessageBatcher(
+          BATCH_SIZE, BATCH_BYTES, BATCH_LINGER);
+    }
+
+    // required for async sends and for our receive queues
+    threadService = (ThreadService)
+      getServiceBroker().getService(this, ThreadService.class, null);
+    if (threadService == null) {
+      throw new RuntimeException("Unable to obtain ThreadService");
+    }
+
+    SOAPReceiveQueue.Deliverer deliverer =
+      new SOAPReceiveQueue.Deliverer() {
+        public Object deliver(Object message) {
+          return deliverQueued(message);
+        }
+      };
+    if (RECEIVE_QUEUE_SIZE > 0) {
+      receiveQueue = new SOAPReceiveQueue(
+          deliverer, threadService, logger,
+          RECEIVE_QUEUE_SIZE, RECEIVE_QUEUE_TOTAL);
+      oneWayQueue = receiveQueue;
+    } else {
+      oneWayQueue = new SOAPReceiveQueue(
+          deliverer, threadService, logger,
+          ONE_WAY_QUEUE_SIZE, RECEIVE_QUEUE_TOTAL);
+    }
+
+    // advertise our latency histograms at the node level
+    NodeControlService ncs = (NodeControlService)
+      getServiceBroker().getService(this, NodeControlService.class, null);
+    if (ncs != null) {
+      rootsb = ncs.getRootServiceBroker();
+      getServiceBroker().releaseService(
+          this, NodeControlService.class, ncs);
+    }
+    latencySP = new ServiceProvider() {
+      public Object getService(
+          ServiceBroker sb, Object requestor, Class serviceClass) {
+        if (SOAPLatencyService.class.isAssignableFrom(serviceClass)) {
+          return latencyStats;
+        } else {
+          return null;
+        }
+      }
+      public void releaseService(
+          ServiceBroker sb, Object requestor,
+          Class serviceClass, Object service) {
+      }
+    };
+    ServiceBroker the_sb = (rootsb == null ? getServiceBroker() : rootsb);
+    if (!the_sb.addService(SOAPLatencyService.class, latencySP)) {
+      // e.g. both SOAP and SSLSOAP are loaded
+      latencySP = null;
+    }
+
     // when an agent registers on our node, our RPCLinkProtocol
     // base class will call "findOrMakeNodeServant()", which
     // will call "registerWebService()" to deploy our WSDD and
@@ -202,9 +932,67 @@ public class SOAPLinkProtocol extends RPCLinkProtocol {
           this, WebServicesService.class, webServicesService);
       webServicesService = null;
     }
+    if (oneWayQueue != null) {
+      oneWayQueue.stop();
+      oneWayQueue = null;
+    }
+    if (receiveQueue != null) {
+      receiveQueue.stop();
+      receiveQueue = null;
+    }
+    chunkReceiver.clear();
+    stopLinks();
+    if (localServant != null) {
+      SOAPLocalRegistry.unregister(getMessageAddress(), localServant);
+      localServant = null;
+    }
+    if (threadService != null) {
+      sb.releaseService(this, ThreadService.class, threadService);
+      threadService = null;
+    }
+    if (servletService != null) {
+      // this unregisters our servlet
+      sb.releaseService(this, ServletService.class, servletService);
+      servletService = null;
+    }
+    if (latencySP != null) {
+      ServiceBroker the_sb = (rootsb == null ? sb : rootsb);
+      the_sb.revokeService(SOAPLatencyService.class, latencySP);
+      latencySP = null;
+    }
+    if (hookMT != null) {
+      SOAPMTHook.unregister(hookMT);
+      hookMT = null;
+    }
+    SOAPLatencyHandler.unregister(latencyStats);
+    if (binaryServlet != null) {
+      WebServicesProvider.removeContentHandler(
+          BinaryHTTPSender.CONTENT_TYPE, binaryServlet);
+      binaryServlet = null;
+    }
+    if (connectionPool != null) {
+      connectionPool.close();
+      connectionPool = null;
+    }
     super.unload();
   }
 
+  /** Cancel the background work of all our links. */
+  private void stopLinks() {
+    Object[] a;
+    synchronized (links) {
+      a = links.values().toArray();
+    }
+    for (int i = 0; i < a.length; i++) {
+      ((SOAPDestinationLink) a[i]).stop();
+    }
+  }
+
+  /** @return our node's advertised URI, or null if not registered */
+  URI getLocalURI() {
+    return localURI;
+  }
+
   /** @return the naming service "AddressEntry" type */
   public String getProtocolType() {
     return "-SOAP"; 
@@ -227,16 +1015,76 @@ public class SOAPLinkProtocol extends RPCLinkProtocol {
     return Boolean.FALSE;
   }
   /**
-   * @return estimated cost for HTTP-based SOAP, which is simply
-   * hard-coded to be more than the RMI &amp; HTTP LinkProtocols.
+   * @return the cost before we've measured a link
+   */
+  protected int getDefaultCost() {
+    return DEFAULT_COST;
+  }
+  /**
+   * @return estimated cost for HTTP-based SOAP, which is computed
+   * from the target link's measured round-trip time, throughput,
+   * error rate, and backlog, plus the message's size if we've
+   * recently serialized it, or the {@link #getDefaultCost()} if we
+   * haven't measured the link recently.
    */
   protected int computeCost(AttributedMessage message) {
-    return 1500;
+    MessageAddress target =
+      (message == null ? null : message.getTarget());
+    SOAPDestinationLink link =
+      (target == null ? null : findLink(target));
+    SOAPCircuitBreaker cb =
+      (link == null ? null : link.getCircuitBreaker());
+    if (cb != null && cb.isOpen()) {
+      // let the MTS choose another link, or hold the message until
+      // our probe closes the circuit
+      if (logger.isDetailEnabled()) {
+        logger.detail("Cost to "+target+" is infinite, "+cb);
+      }
+      return Integer.MAX_VALUE;
+    }
+    long nanos =
+      (link == null ? -1 :
+       link.estimateSendTime(messageSizes.get(message.getRawMessage())));
+    if (nanos < 0) {
+      return getDefaultCost();
+    }
+    long cost = (nanos * DEFAULT_COST) / (COST_REFERENCE_TIME * 1000000);
+    if (logger.isDetailEnabled()) {
+      logger.detail(
+          "Cost to "+target+" is "+cost+
+          ", stats="+link.getLinkStats()+
+          (cb == null ? "" : ", "+cb));
+    }
+    return (int) Math.max(1, Math.min(cost, Integer.MAX_VALUE / 2));
+  }
+  private SOAPDestinationLink findLink(MessageAddress addr) {
+    synchronized (links) {
+      return (SOAPDestinationLink) links.get(addr.getPrimary());
+    }
+  }
+  /**
+   * @return a new Axis client engine for a destination link, which
+   * uses our pooled keep-alive connections if enabled.
+   */
+  protected org.apache.axis.client.Service createService() {
+    HTTPConnectionPool pool = connectionPool;
+    if (pool == null) {
+      return new org.apache.axis.client.Service();
+    }
+    SimpleProvider config = new SimpleProvider();
+    config.deployTransport(
+        HTTPTransport.DEFAULT_TRANSPORT_NAME,
+        new SimpleTargetedChain(new KeepAliveHTTPSender(pool)));
+    return new org.apache.axis.client.Service(config);
   }
   /** @return outgoing link to the target address */
   protected DestinationLink createDestinationLink(
       MessageAddress addr) {
-    return new SOAPDestinationLink(addr); 
+    SOAPDestinationLink link = new SOAPDestinationLink(addr);
+    synchronized (links) {
+      links.put(addr.getPrimary(), link);
+    }
+    return link;
   }
 
   /**
@@ -297,6 +1145,15 @@ public class SOAPLinkProtocol extends RPCLinkProtocol {
       return;
     }
 
+    // route calls to our node's url to us
+    MessageAddress node_addr = getNameSupport().getNodeMessageAddress();
+    String node_name = node_addr.toAddress();
+    hookKeys = new Object[] {
+      WebServicesHooks.agentKey(node_name, getProtocol()),
+      WebServicesHooks.portKey(port),
+      WebServicesHooks.nodeKey(node_name, getProtocol()),
+    };
+
     // get the WebServicesService.  If it's not available yet, set a
     // callback to tell us when it's available.
     if (sb.hasService(WebServicesService.class)) {
@@ -322,16 +1179,31 @@ public class SOAPLinkProtocol extends RPCLinkProtocol {
 
     // set our node's servlet URI for later binding in the white pages,
     // so all other nodes can find us
-    MessageAddress node_addr = getNameSupport().getNodeMessageAddress();
-    String node_name = node_addr.toAddress();
     URI nodeURI;
     try {
       InetAddress me = InetAddress.getLocalHost();
+      // advertise our features in the URI fragment, which Axis
+      // and older nodes ignore
       nodeURI = new URI(
-          getProtocol()+"://"+
-          me.getHostName()+':'+port+
-          getPath());
+          getProtocol(),
+          null,
+          me.getHostName(),
+          port,
+          (NODE_PATH ? "/$"+node_name+getPath() : getPath()),
+          null,
+          getFeatures());
       setNodeURI(nodeURI);
+      localURI = nodeURI;
+      // let links in other nodes in this JVM find us
+      localServant = new SOAPLocalRegistry.Servant() {
+        public Object receive(AttributedMessage message) {
+          return receiveMessage(message);
+        }
+        public ClassLoader getClassLoader() {
+          return SOAPLinkProtocol.this.getClass().getClassLoader();
+        }
+      };
+      SOAPLocalRegistry.register(node_addr, nodeURI, localServant);
     } catch (Exception e) {
       if (logger.isErrorEnabled()) {
         logger.error("createURI failed", e);
@@ -346,6 +1218,40 @@ public class SOAPLinkProtocol extends RPCLinkProtocol {
     servant_made = true;
   }
 
+  /**
+   * @return the comma-separated features that we advertise in our
+   * WP URI's fragment
+   */
+  protected String getFeatures() {
+    String s = SOAPCompression.getCodecNames();
+    s = (s.length() == 0 ? "" : s+",")+CLASS_CACHE_FEATURE;
+    s += ","+COMPACT_ACK_FEATURE+","+ONE_WAY_FEATURE+","+CHUNK_FEATURE;
+    s += ","+ADDRESS_FEATURE;
+    s += ","+FANOUT_FEATURE+","+BATCH_FEATURE+","+SEQUENCE_FEATURE;
+    s += ","+SOAPSerialization.getCodecNames();
+    s += ","+NODE_FEATURE+getMessageAddress().toAddress();
+    if (BINARY) {
+      s = (s.length() == 0 ? "" : s+",")+BINARY_FEATURE;
+    }
+    return s;
+  }
+
+  /** @return the features in a remote node's URL fragment */
+  private static String[] getFeatures(URL url) {
+    return split(url == null ? null : url.getRef());
+  }
+
+  private static String[] split(String s) {
+    if (s == null || s.trim().length() == 0) {
+      return new String[0];
+    }
+    String[] a = s.split(",");
+    for (int i = 0; i < a.length; i++) {
+      a[i] = a[i].trim();
+    }
+    return a;
+  }
+
   /**
    * Handle IP address change.
    * <p>
@@ -364,52 +1270,564 @@ public class SOAPLinkProtocol extends RPCLinkProtocol {
       logger.debug("registerWebServices");
     }
 
-    // get webservices api
-    ServiceBroker sb = getServiceBroker();
-    webServicesService = (WebServicesService) 
-      sb.getService(this, WebServicesService.class, null);
-    if (webServicesService == null) {
-      throw new RuntimeException("Unable to obtain WebServicesService");
+    // get webservices api
+    ServiceBroker sb = getServiceBroker();
+    webServicesService = (WebServicesService) 
+      sb.getService(this, WebServicesService.class, null);
+    if (webServicesService == null) {
+      throw new RuntimeException("Unable to obtain WebServicesService");
+    }
+
+    // register in the SOAPMTHook, to forward method calls into
+    // this link protocol
+    SOAPMT mt = new SOAPMT() {
+      public SOAPData rerouteMessage(SOAPData small_message) throws Exception {
+        long[] t = startReceive();
+        // decoded here rather than by the BeanDeserializer, or by
+        // our receive queue's thread
+        Object result = receiveEncoded(
+            new ByteArrayInputStream(small_message.getBytes()), t, false);
+        checkBusy(result);
+        return toSOAPData(result);
+      }
+      public SOAPData rerouteMessageAsAttachment(
+          DataHandler big_message) throws Exception {
+        long[] t = startReceive();
+        long t0 = (t == null ? 0 : System.nanoTime());
+        AttributedMessage message;
+        try {
+          SOAPAddressHeader h = readHeader(big_message);
+          if (h != null && !getRegistry().isLocalClient(h.getTarget())) {
+            // don't read the attachment
+            return toSOAPData(h.misdelivered());
+          }
+          message = (AttributedMessage)
+            readFromDataHandler(big_message);
+        } catch (SOAPClassCache.ResyncException e) {
+          return new SOAPData(SOAPClassCache.RESYNC);
+        } finally {
+          // readFromDataHandler already deleted it unless we
+          // rejected it or failed
+          attachmentStore.delete(big_message);
+        }
+        if (t != null) {
+          t[SOAPLatencyStats.RECEIVE_READ] = System.nanoTime() - t0;
+        }
+        Object result = receiveMessage(message, t);
+        checkBusy(result);
+        return toSOAPData(result);
+      }
+      public SOAPData rerouteMessages(
+          SOAPData messages) throws Exception {
+        // batches are not sampled
+        byte[][] a = (byte[][]) messages.toObject(null);
+        int n = (a == null ? 0 : a.length);
+        Object[] results = new Object[n];
+        boolean allBusy = (n > 0);
+        for (int i = 0; i < n; i++) {
+          try {
+            results[i] = receiveEncoded(
+                new ByteArrayInputStream(a[i]), null, false);
+          } catch (Exception e) {
+            results[i] = new CommFailureException(e);
+          }
+          if (!(results[i] instanceof SOAPReceiveQueue.BusyException)) {
+            allBusy = false;
+          }
+        }
+        // busy elements are reported in the results, so the sender
+        // only retries those, unless the whole batch was rejected
+        if (allBusy) {
+          checkBusy(results[n - 1]);
+        }
+        return new SOAPData(results);
+      }
+      public SOAPData rerouteMessageOneWay(
+          SOAPData small_message) throws Exception {
+        // one-way messages are not sampled
+        Object result = receiveEncoded(
+            new ByteArrayInputStream(small_message.getBytes()), null, true);
+        if (result instanceof MessageAttributes ||
+            result instanceof SOAPAck) {
+          // queued, or delivered if the target isn't local
+          return null;
+        }
+        // e.g. misdelivered or busy
+        checkBusy(result);
+        return toSOAPData(result);
+      }
+      public SOAPData rerouteMessageChunk(
+          DataHandler chunk) throws Exception {
+        // chunks are not sampled
+        Object result;
+        try {
+          result = chunkReceiver.receive(
+              new BufferedInputStream(chunk.getInputStream()),
+              chunkReader);
+        } finally {
+          attachmentStore.delete(chunk);
+        }
+        if (logger.isDetailEnabled()) {
+          logger.detail("Received chunk, "+chunkReceiver);
+        }
+        checkBusy(result);
+        return toSOAPData(result);
+      }
+      public SOAPData getMessageAddress() {
+        MessageAddress addr = SOAPLinkProtocol.this.getMessageAddress();
+        return new SOAPData(addr);
+      }
+    };
+    hookMT = mt;
+    SOAPMTHook.register(hookKeys, mt);
+    SOAPLatencyHandler.register(hookKeys, latencyStats);
+
+    // register our latency servlet.  The WebServicesService
+    // requires the servlet service, so it must be available now.
+    servletService = (ServletService)
+      sb.getService(this, ServletService.class, null);
+    if (servletService != null) {
+      try {
+        servletService.register(
+            LATENCY_SERVLET_PATH, new SOAPLatencyServlet(latencyStats));
+      } catch (Exception e) {
+        if (logger.isWarnEnabled()) {
+          logger.warn(
+              "Unable to register \""+LATENCY_SERVLET_PATH+"\"", e);
+        }
+      }
+    }
+
+    // accept binary messages on the same servlet path
+    if (BINARY) {
+      binaryServlet = new BinaryServlet();
+      WebServicesProvider.addContentHandler(
+          BinaryHTTPSender.CONTENT_TYPE, hookKeys, binaryServlet);
+    }
+
+    // register our wsdd
+    if (logger.isDebugEnabled()) {
+      logger.debug("processWSDD(\n"+MT_WSDD+"\n):");
+    }
+    try {
+      webServicesService.processWSDD(MT_WSDD);
+    } catch (Exception e) {
+      throw new RuntimeException(
+          "Unable to processWSDD(\n"+MT_WSDD+"\n)", e);
+    }
+
+    // ready to receive messages
+  }
+
+  /**
+   * Receives messages sent by a {@link BinaryHTTPSender}, which
+   * the WebServicesProvider passes to us instead of Axis.
+   */
+  private class BinaryServlet extends HttpServlet {
+    protected void doPost(
+        HttpServletRequest req, HttpServletResponse res
+        ) throws ServletException, IOException {
+      Object result;
+      try {
+        long[] t = null;
+        if (latencyStats.sample()) {
+          // no Axis, so the "axis" stage is empty
+          t = new long[SOAPLatencyStats.RECEIVE_STAGES.length];
+          Arrays.fill(t, -1);
+          t[SOAPLatencyStats.RECEIVE_AXIS] = 0;
+          t[SOAPLatencyStats.RECEIVE_TOTAL] = System.nanoTime();
+        }
+        result = receiveEncoded(
+            new BufferedInputStream(req.getInputStream()), t, false);
+      } catch (Exception e) {
+        result = new CommFailureException(e);
+      }
+      SOAPMessageBuffer buf = new SOAPMessageBuffer();
+      if (result instanceof SOAPAck) {
+        buf.write(((SOAPAck) result).toByteArray());
+      } else {
+        ObjectOutputStream oos = new ObjectOutputStream(buf);
+        oos.writeObject(result);
+        oos.close();
+      }
+      if (result instanceof SOAPReceiveQueue.BusyException) {
+        setBusy(res, (SOAPReceiveQueue.BusyException) result);
+      }
+      res.setContentType(BinaryHTTPSender.CONTENT_TYPE);
+      res.setContentLength(buf.size());
+      buf.writeTo(res.getOutputStream());
+    }
+  }
+
+  /**
+   * @return the receive stage times if our SOAPLatencyHandler
+   * sampled the current Axis request, otherwise null
+   */
+  private long[] startReceive() {
+    MessageContext mc = MessageContext.getCurrentContext();
+    Object o =
+      (mc == null ? null :
+       mc.getProperty(SOAPLatencyHandler.START_PROPERTY));
+    if (!(o instanceof Long)) {
+      return null;
+    }
+    long start = ((Long) o).longValue();
+    long[] t = new long[SOAPLatencyStats.RECEIVE_STAGES.length];
+    Arrays.fill(t, -1);
+    t[SOAPLatencyStats.RECEIVE_AXIS] = System.nanoTime() - start;
+    // hold the start time until "receiveMessage" is done
+    t[SOAPLatencyStats.RECEIVE_TOTAL] = start;
+    return t;
+  }
+
+  /** Receive a message and record the sampled stage times. */
+  private Object receiveMessage(AttributedMessage message, long[] t) {
+    if (t == null) {
+      return receiveMessage(message);
+    }
+    long t0 = System.nanoTime();
+    Object result = receiveMessage(message);
+    recordReceive(message.getOriginator(), t, t0);
+    return result;
+  }
+
+  /**
+   * Record the sampled stage times of a received message.
+   *
+   * @param t0 the start time of the delivery stage
+   */
+  private void recordReceive(MessageAddress originator, long[] t, long t0) {
+    long now = System.nanoTime();
+    t[SOAPLatencyStats.RECEIVE_DELIVER] = now - t0;
+    t[SOAPLatencyStats.RECEIVE_TOTAL] =
+      now - t[SOAPLatencyStats.RECEIVE_TOTAL];
+    latencyStats.recordReceive(originator, t);
+  }
+
+  /**
+   * Receive a serialized message, which starts with a
+   * {@link SOAPAddressHeader} if the sender supports it.
+   * <p>
+   * With a header we reject a misdelivered message without decoding
+   * it, and if we queue received messages then we queue the message
+   * as-is, so the queue's thread decodes it instead of our caller's
+   * web server thread.  Messages that refer to a class cache session
+   * are decoded now, since the session's definitions must be read
+   * in order.
+   *
+   * @param in the message stream, which supports "mark"
+   * @param t the sampled stage times, or null
+   * @param oneWay true if the sender only waits until the message
+   *   is queued
+   * @return the delivery result
+   */
+  private Object receiveEncoded(
+      InputStream in, long[] t, boolean oneWay) throws Exception {
+    long t0 = (t == null ? 0 : System.nanoTime());
+    SOAPAddressHeader h = SOAPAddressHeader.read(in);
+    if (h != null) {
+      if (!getRegistry().isLocalClient(h.getTarget())) {
+        return h.misdelivered();
+      }
+      SOAPReceiveQueue q = (oneWay ? oneWayQueue : receiveQueue);
+      if (q != null && !h.usesClassCache()) {
+        SOAPMessageBuffer buf = new SOAPMessageBuffer();
+        byte[] b = new byte[4096];
+        for (int n; (n = in.read(b)) > 0; ) {
+          buf.write(b, 0, n);
+        }
+        long t1 = 0;
+        if (t != null) {
+          t1 = System.nanoTime();
+          t[SOAPLatencyStats.RECEIVE_READ] = t1 - t0;
+        }
+        Object result = queueEncoded(q, new Encoded(h, buf));
+        if (t != null) {
+          recordReceive(h.getOriginator(), t, t1);
+        }
+        return result;
+      }
+    }
+    AttributedMessage message;
+    try {
+      message = (AttributedMessage)
+        SOAPSerialization.readObject(
+            SOAPCompression.decompress(in), classCacheReceiver);
+    } catch (SOAPClassCache.ResyncException e) {
+      return SOAPClassCache.RESYNC;
+    }
+    if (oneWay) {
+      return receiveMessage(message, true);
+    }
+    if (t != null) {
+      t[SOAPLatencyStats.RECEIVE_READ] = System.nanoTime() - t0;
+    }
+    return receiveMessage(message, t);
+  }
+
+  /**
+   * Queue an encoded message, after its predecessors if it was sent
+   * by a {@link SOAPSendWindow}.
+   */
+  private Object queueEncoded(
+      final SOAPReceiveQueue q, final Encoded e) {
+    String tag = e.header.getTag();
+    if (tag == null) {
+      return offer(q, e.header.getTarget(), e, SOAPAck.DELIVERED);
+    }
+    try {
+      return sequencer.deliver(
+          tag,
+          new SOAPSequencer.Deliverer() {
+            public Object deliver() {
+              return offer(q, e.header.getTarget(), e, SOAPAck.DELIVERED);
+            }
+          },
+          SOAPAck.DELIVERED);
+    } catch (Exception ex) {
+      return new CommFailureException(ex);
+    }
+  }
+
+  /**
+   * Deliver a message from our receive queue, decoding it if
+   * necessary.
+   * <p>
+   * The sender already has our ack, so if the target agent has
+   * left this node we forward the message instead of reporting the
+   * misdelivery.
+   */
+  private Object deliverQueued(Object o) {
+    AttributedMessage message;
+    if (o instanceof Encoded) {
+      try {
+        message = (AttributedMessage)
+          SOAPSerialization.readObject(
+              SOAPCompression.decompress(((Encoded) o).buf.getInputStream()),
+              classCacheReceiver);
+      } catch (Exception e) {
+        return new CommFailureException(e);
+      }
+      // only used by the sender, which already has our ack
+      message.removeAttribute(SOAPAck.REQUEST_ATTRIBUTE);
+      message.removeAttribute(SOAPSendWindow.SEQUENCE_ATTRIBUTE);
+    } else {
+      message = (AttributedMessage) o;
+    }
+    Object result = deliverMessage(message);
+    if (result instanceof MisdeliveredMessageException) {
+      result = relayMessage(message);
+    }
+    return result;
+  }
+
+  /**
+   * Forward a queued message to its target agent's new node.
+   *
+   * @return the delivery result, or the last failure
+   */
+  private Object relayMessage(AttributedMessage message) {
+    MessageAddress target = message.getTarget();
+    Exception failure = null;
+    for (int i = 0; i < RECEIVE_RELAY_ATTEMPTS; i++) {
+      if (i > 0) {
+        try {
+          Thread.sleep(i * RECEIVE_RETRY_AFTER);
+        } catch (InterruptedException e) {
+          break;
+        }
+      }
+      if (getRegistry().isLocalClient(target)) {
+        // the agent restarted on this node
+        Object result = deliverMessage(message);
+        if (!(result instanceof MisdeliveredMessageException)) {
+          return result;
+        }
+        failure = (Exception) result;
+        continue;
+      }
+      DestinationLink link = getDestinationLink(target);
+      try {
+        MessageAttributes result = link.forwardMessage(message);
+        if (logger.isInfoEnabled()) {
+          logger.info(
+              "Forwarded queued message from "+message.getOriginator()+
+              " to "+target+", which left this node");
+        }
+        return result;
+      } catch (Exception e) {
+        failure = e;
+        if (link instanceof SOAPDestinationLink) {
+          // look up the agent's address again
+          ((SOAPDestinationLink) link).flushRemoteReference();
+        }
+      }
+    }
+    return failure;
+  }
+
+  /** A received message that we queued before decoding it. */
+  private static final class Encoded {
+    private final SOAPAddressHeader header;
+    private final SOAPMessageBuffer buf;
+    public Encoded(SOAPAddressHeader header, SOAPMessageBuffer buf) {
+      this.header = header;
+      this.buf = buf;
+    }
+    public String toString() {
+      return "(encoded "+buf.size()+" bytes "+header+")";
+    }
+  }
+
+  /** @return the header of a received attachment, or null */
+  private static SOAPAddressHeader readHeader(
+      DataHandler dh) throws IOException {
+    InputStream in = new BufferedInputStream(dh.getInputStream(), 512);
+    try {
+      return SOAPAddressHeader.read(in);
+    } finally {
+      in.close();
+    }
+  }
+
+  private Object receiveMessage(AttributedMessage message) {
+    return receiveMessage(message, false);
+  }
+
+  /**
+   * @param oneWay true if the sender only waits until the message
+   *   is queued
+   */
+  private Object receiveMessage(
+      final AttributedMessage message, final boolean oneWay) {
+    final boolean compact =
+      (message.getAttribute(SOAPAck.REQUEST_ATTRIBUTE) != null);
+    if (compact) {
+      message.removeAttribute(SOAPAck.REQUEST_ATTRIBUTE);
+    }
+    Object result;
+    Object tag = message.getAttribute(SOAPSendWindow.SEQUENCE_ATTRIBUTE);
+    if (tag instanceof String) {
+      // async message, deliver (or queue) in sequence
+      message.removeAttribute(SOAPSendWindow.SEQUENCE_ATTRIBUTE);
+      try {
+        result = sequencer.deliver(
+            (String) tag,
+            new SOAPSequencer.Deliverer() {
+              public Object deliver() {
+                return acceptMessage(message, compact, oneWay);
+              }
+            },
+            queuedAck(message, compact));
+      } catch (Exception e) {
+        return new CommFailureException(e);
+      }
+    } else {
+      result = acceptMessage(message, compact, oneWay);
+    }
+    return (compact ? SOAPAck.compact(result) : result);
+  }
+
+  /**
+   * Deliver the message, or add it to our receive queue.
+   *
+   * @param compact true if the sender asked for a {@link SOAPAck}
+   * @param oneWay true if the message is one-way
+   * @return the delivery result, or the message attributes if it
+   *   was queued, or a BusyException if the queue is full
+   */
+  private Object acceptMessage(
+      AttributedMessage message, boolean compact, boolean oneWay) {
+    SOAPReceiveQueue q = (oneWay ? oneWayQueue : receiveQueue);
+    if (q == null ||
+        !getRegistry().isLocalClient(message.getTarget())) {
+      // deliver now, e.g. so a misdelivery is reported to the
+      // sender
+      return deliverMessage(message);
+    }
+    // clone before the queue's thread can modify the message
+    Object ack = queuedAck(message, compact);
+    return offer(q, message.getTarget(), message, ack);
+  }
+
+  /**
+   * @return our reply to a message that we queued or that we've
+   *   already delivered, which has a "delivered" status since we
+   *   take over its delivery
+   */
+  private static Object queuedAck(
+      AttributedMessage message, boolean compact) {
+    return (compact ? SOAPAck.DELIVERED : deliveredAttributes(message));
+  }
+
+  /**
+   * @return a copy of the message's attributes with a "delivered"
+   *   status, e.g. for a message that the target node has queued
+   */
+  private static MessageAttributes deliveredAttributes(
+      AttributedMessage message) {
+    MessageAttributes attrs = message.cloneAttributes();
+    attrs.setAttribute(
+        MessageAttributes.DELIVERY_ATTRIBUTE,
+        MessageAttributes.DELIVERY_STATUS_DELIVERED);
+    return attrs;
+  }
+
+  /**
+   * Add a message to a receive queue.
+   *
+   * @return the ack, or a BusyException if the queue is full
+   */
+  private Object offer(
+      SOAPReceiveQueue q, MessageAddress target, Object message,
+      Object ack) {
+    if (!q.offer(target, message)) {
+      if (logger.isInfoEnabled()) {
+        logger.info(
+            "Receive queue full, rejecting message "+message+
+            " to "+target+", "+q);
+      }
+      return new SOAPReceiveQueue.BusyException(RECEIVE_RETRY_AFTER);
+    }
+    return ack;
+  }
+
+  /** Wrap a delivery result, writing an ack inline. */
+  private static SOAPData toSOAPData(Object result) throws IOException {
+    if (result instanceof SOAPAck) {
+      return new SOAPData(((SOAPAck) result).toByteArray());
     }
+    return new SOAPData(result);
+  }
 
-    // set a static in the SOAPMTHook, to forward method calls into
-    // this link protocol
-    SOAPMT mt = new SOAPMT() {
-      public SOAPData rerouteMessage(SOAPData small_message) throws Exception {
-        AttributedMessage message = (AttributedMessage)
-          small_message.toObject();
-        Object result = SOAPLinkProtocol.this.receiveMessage(message);
-        return new SOAPData(result);
-      }
-      public SOAPData rerouteMessageAsAttachment(
-          DataHandler big_message) throws Exception {
-        AttributedMessage message = (AttributedMessage)
-          readFromDataHandler(big_message);
-        Object result = SOAPLinkProtocol.this.receiveMessage(message);
-        return new SOAPData(result);
-      }
-      public SOAPData getMessageAddress() {
-        MessageAddress addr = SOAPLinkProtocol.this.getMessageAddress();
-        return new SOAPData(addr);
-      }
-    };
-    SOAPMTHook.setStatic(mt);
-
-    // register our wsdd
-    if (logger.isDebugEnabled()) {
-      logger.debug("processWSDD(\n"+MT_WSDD+"\n):");
+  /**
+   * If the result is a BusyException then set the HTTP 503 status
+   * of our SOAP response.
+   */
+  private static void checkBusy(Object result) {
+    if (!(result instanceof SOAPReceiveQueue.BusyException)) {
+      return;
     }
-    try {
-      webServicesService.processWSDD(MT_WSDD);
-    } catch (Exception e) {
-      throw new RuntimeException(
-          "Unable to processWSDD(\n"+MT_WSDD+"\n)", e);
+    MessageContext mc = MessageContext.getCurrentContext();
+    Object res =
+      (mc == null ? null :
+       mc.getProperty(HTTPConstants.MC_HTTP_SERVLETRESPONSE));
+    if (res instanceof HttpServletResponse) {
+      setBusy(
+          (HttpServletResponse) res,
+          (SOAPReceiveQueue.BusyException) result);
     }
+  }
 
-    // ready to receive messages
+  private static void setBusy(
+      HttpServletResponse res, SOAPReceiveQueue.BusyException e) {
+    res.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+    res.setHeader(
+        "Retry-After",
+        Long.toString(Math.max(1, (e.getRetryAfter() + 999) / 1000)));
   }
 
-  private Object receiveMessage(AttributedMessage message) {
+  private Object deliverMessage(AttributedMessage message) {
     Object result;
     try {
       // deliver the message by obtaining the
@@ -428,23 +1846,57 @@ public class SOAPLinkProtocol extends RPCLinkProtocol {
     return getNameSupport().getNodeMessageAddress();
   }
 
+
   private Object readFromDataHandler(
       DataHandler dh) throws Exception {
-    String filename = dh.getName();
+    Object obj = attachmentStore.readObject(dh, classCacheReceiver);
+    if (logger.isDetailEnabled()) {
+      logger.detail("Read attachment, "+attachmentStore);
+    }
+    return obj;
+  }
 
-    // read object from file
-    Object obj = null;
-    FileInputStream fis = new FileInputStream(filename);
-    ObjectInputStream ois = new ObjectInputStream(fis);
-    obj = ois.readObject();
-    ois.close();
+  /**
+   * @return the smallest size in bytes at which any of our links
+   * sends messages as attachments instead of inline, which each
+   * link learns from its measured send times unless a fixed size
+   * is configured.
+   */
+  public int getBigMessageCutover() {
+    Object[] a;
+    synchronized (links) {
+      a = links.values().toArray();
+    }
+    if (a.length == 0) {
+      return
+        (FIXED_BIG_MESSAGE_LENGTH >= 0 ?
+         FIXED_BIG_MESSAGE_LENGTH :
+         Math.min(BIG_MESSAGE_LENGTH, MAX_INLINE_LENGTH));
+    }
+    int ret = Integer.MAX_VALUE;
+    for (int i = 0; i < a.length; i++) {
+      SOAPDestinationLink link = (SOAPDestinationLink) a[i];
+      ret = Math.min(ret, link.pathSelector.getCutover());
+    }
+    return ret;
+  }
 
-    return obj;
+  /**
+   * @return the store that reads our received attachments, which
+   * holds the cumulative counts and bytes read from the heap versus
+   * spilled to disk.
+   */
+  SOAPAttachmentStore getAttachmentStore() {
+    return attachmentStore;
   }
+
   /**
    * Our per-destination outgoing link, where we make our call.
    */
-  protected class SOAPDestinationLink extends Link {
+  protected class SOAPDestinationLink
+    extends Link
+    implements SOAPMessageBatcher.Sender, SOAPSendWindow.Sender,
+    SOAPCircuitBreaker.Prober {
 
     // our generic SOAP client-sie Service engine instance.
     //
@@ -457,8 +1909,153 @@ public class SOAPLinkProtocol extends RPCLinkProtocol {
     // our RPCLinkProtocol's inner "Service" interface
     private org.apache.axis.client.Service service;
 
+    // our pre-configured Calls, which save us the cost of
+    // "service.createCall()" and type mapping registration on
+    // every message.
+    private SOAPCallPool callPool;
+
+    // the compression codec that we negotiated with the target's
+    // node, or null
+    private volatile SOAPCompression.Codec codec;
+
+    // true if the target accepts our binary fast path
+    private volatile boolean binary;
+
+    // the serialization codec that we negotiated with the target,
+    // or null for Java serialization
+    private volatile SOAPSerialization.Codec messageCodec;
+
+    // our class cache session with the target node, or null
+    private volatile SOAPClassCache.Sender classCache;
+
+    // the time until which the target asked us not to send
+    private volatile long busyUntil;
+
+    // true if we ask the target for compact replies
+    private volatile boolean compactAck;
+
+    // true if the target accepts one-way messages
+    private volatile boolean oneWay;
+
+    // true if the target reads our SOAPAddressHeader
+    private volatile boolean addressed;
+
+    // true if we chunk huge messages to the target
+    private volatile boolean chunked;
+
+    // our most recent chunked send that failed, which we resume
+    // if the MTS retries the same message
+    private volatile SOAPChunker.Transfer chunkTransfer;
+
+    // drops the failed chunkTransfer once the receiver has dropped
+    // its spool, guarded by "this"
+    private Schedulable chunkExpiry;
+
+    // true if we send shared contents to the target
+    private volatile boolean fanout;
+
+    // true if we batch small messages to the target
+    private volatile boolean batched;
+
+    // true if the target delivers our async messages in order
+    private volatile boolean sequenced;
+
+    // the target's node, if we may look for it in this JVM
+    private volatile MessageAddress remoteNode;
+    private final SOAPCompression.Stats compressionStats =
+      new SOAPCompression.Stats();
+
+    // async mode window and the most recent remote reference
+    private SOAPSendWindow sendWindow;
+
+    // measured send times and backlog, for our "computeCost"
+    private final SOAPLinkStats linkStats = new SOAPLinkStats();
+
+    // chooses between inline and attachment messages, based on
+    // the send times to this target
+    private final SOAPPathSelector pathSelector =
+      new SOAPPathSelector(
+          FIXED_BIG_MESSAGE_LENGTH, BIG_MESSAGE_LENGTH,
+          MAX_INLINE_LENGTH);
+
+    // optional circuit breaker, and the remote reference to probe
+    private final SOAPCircuitBreaker circuitBreaker;
+    private volatile URL remoteURL;
+
     public SOAPDestinationLink(MessageAddress target) {
       super(target);
+      circuitBreaker =
+        (CIRCUIT_THRESHOLD > 0 ?
+         new SOAPCircuitBreaker(
+           target.toString(), this, threadService, logger,
+           CIRCUIT_THRESHOLD, CIRCUIT_MIN_RETRY, CIRCUIT_MAX_RETRY) :
+         null);
+    }
+
+    /** @return the measured statistics for this link */
+    SOAPLinkStats getLinkStats() {
+      return linkStats;
+    }
+
+    /** @return the circuit breaker for this link, or null */
+    SOAPCircuitBreaker getCircuitBreaker() {
+      return circuitBreaker;
+    }
+
+    /** Cancel our background work, since our protocol is unloaded. */
+    void stop() {
+      if (circuitBreaker != null) {
+        circuitBreaker.stop();
+      }
+      SOAPSendWindow w;
+      synchronized (this) {
+        if (chunkExpiry != null) {
+          chunkExpiry.cancelTimer();
+          chunkExpiry = null;
+        }
+        chunkTransfer = null;
+        w = sendWindow;
+      }
+      if (w != null) {
+        // kept, so later async sends fail
+        w.stop();
+      }
+    }
+
+    /**
+     * @param bytes the message's serialized length, or -1 if unknown
+     * @return the estimated nanoseconds to send a message, or -1
+     * if we haven't measured this link recently
+     */
+    long estimateSendTime(int bytes) {
+      long now = System.currentTimeMillis();
+      if (now - linkStats.getLastTime() > COST_STATS_TIMEOUT) {
+        return -1;
+      }
+      SOAPSendWindow w;
+      synchronized (this) {
+        w = sendWindow;
+      }
+      int queued = (w == null ? 0 : w.size());
+      return linkStats.estimate(queued, bytes);
+    }
+
+    private synchronized SOAPSendWindow getSendWindow() {
+      if (sendWindow == null) {
+        sendWindow = new SOAPSendWindow(
+            getDestination().toString(), this, threadService, logger,
+            ASYNC_WINDOW, ASYNC_MIN_RETRY, ASYNC_MAX_RETRY,
+            ASYNC_MAX_ATTEMPTS);
+      }
+      return sendWindow;
+    }
+
+    private synchronized SOAPCallPool getCallPool() {
+      if (callPool == null) {
+        service = createService();
+        callPool = new SOAPCallPool(service, MAX_IDLE_CALLS);
+      }
+      return callPool;
     }
 
     public Class getProtocolClass() {
@@ -471,7 +2068,136 @@ public class SOAPLinkProtocol extends RPCLinkProtocol {
      * For us this is the Axis URI, which is fine as-is.
      */
     protected Object decodeRemoteRef(URI ref) throws Exception {
-      return (ref == null ? null : ref.toURL());
+      URL url = (ref == null ? null : ref.toURL());
+      String[] features = getFeatures(url);
+      codec = selectCodec(features);
+      messageCodec = selectMessageCodec(features);
+      binary = false;
+      compactAck = false;
+      oneWay = false;
+      addressed = false;
+      chunked = false;
+      fanout = false;
+      batched = false;
+      sequenced = false;
+      remoteNode = null;
+      boolean cc = false;
+      for (int i = 0; i < features.length; i++) {
+        if (BINARY_FEATURE.equals(features[i])) {
+          binary = (binarySender != null);
+        } else if (COMPACT_ACK_FEATURE.equals(features[i])) {
+          compactAck = COMPACT_ACK;
+        } else if (ONE_WAY_FEATURE.equals(features[i])) {
+          oneWay = true;
+        } else if (ADDRESS_FEATURE.equals(features[i])) {
+          addressed = true;
+        } else if (features[i].startsWith(NODE_FEATURE)) {
+          if (LOCAL_SHORTCUT) {
+            remoteNode = MessageAddress.getMessageAddress(
+                features[i].substring(NODE_FEATURE.length()));
+          }
+        } else if (CHUNK_FEATURE.equals(features[i])) {
+          chunked = (CHUNK_THRESHOLD > 0);
+        } else if (FANOUT_FEATURE.equals(features[i])) {
+          fanout = (fanoutCache != null);
+        } else if (BATCH_FEATURE.equals(features[i])) {
+          batched = (batcher != null);
+        } else if (SEQUENCE_FEATURE.equals(features[i])) {
+          sequenced = true;
+        } else if (CLASS_CACHE_FEATURE.equals(features[i])) {
+          // only applies to Java serialization
+          cc = CLASS_CACHE && messageCodec == null;
+        }
+      }
+      // start a new session, since the target may have restarted
+      classCache = (cc ? new SOAPClassCache.Sender(CLASS_CACHE_SIZE) : null);
+      if (url == null ? remoteURL != null : !url.equals(remoteURL)) {
+        // the target moved or restarted, so our failures and its
+        // partial chunk spool are stale.  The MTS also calls us
+        // after each failed send, so keep the circuit and our failed
+        // chunked send if the address hasn't changed.
+        remoteURL = url;
+        if (circuitBreaker != null) {
+          circuitBreaker.reset();
+        }
+        chunkTransfer = null;
+        if (WARM_UP && url != null) {
+          warmUp(url);
+        }
+      }
+      return url;
+    }
+
+    /** Warm up our Axis client and connection to a new address. */
+    private void warmUp(final URL url) {
+      if (SOAPLocalRegistry.find(remoteNode, url) != null) {
+        // we'll shortcut to the target node in this JVM
+        return;
+      }
+      Runnable r = new Runnable() {
+        public void run() {
+          if (!url.equals(remoteURL)) {
+            // the address changed again
+            return;
+          }
+          long t = System.currentTimeMillis();
+          try {
+            // create and pool a Call for each usual operation
+            SOAPCallPool pool = getCallPool();
+            int[] ops = {
+              SOAPCallPool.SMALL_MESSAGE, SOAPCallPool.BIG_MESSAGE,
+            };
+            for (int i = 0; i < ops.length; i++) {
+              pool.release(pool.take(url, ops[i]), ops[i]);
+            }
+            probe();
+          } catch (Exception e) {
+            if (logger.isDebugEnabled()) {
+              logger.debug(
+                  "Warm-up of link to "+getDestination()+" failed: "+e);
+            }
+            return;
+          }
+          if (logger.isDetailEnabled()) {
+            logger.detail(
+                "Warmed up link to "+getDestination()+" in "+
+                (System.currentTimeMillis() - t)+" millis");
+          }
+        }
+      };
+      threadService.getThread(
+          SOAPLinkProtocol.this, r, "SOAP warm-up of "+getDestination(),
+          ThreadService.WILL_BLOCK_LANE).start();
+    }
+
+    /** @return our most preferred codec that the target supports */
+    private SOAPCompression.Codec selectCodec(String[] features) {
+      for (int i = 0; i < COMPRESSION.length; i++) {
+        for (int j = 0; j < features.length; j++) {
+          if (COMPRESSION[i].equals(features[j])) {
+            return SOAPCompression.getCodec(COMPRESSION[i]);
+          }
+        }
+      }
+      return null;
+    }
+
+    /** @return our most preferred serialization codec, or null */
+    private SOAPSerialization.Codec selectMessageCodec(String[] features) {
+      for (int i = 0; i < CODEC.length; i++) {
+        SOAPSerialization.Codec c = SOAPSerialization.getCodec(CODEC[i]);
+        for (int j = 0; c != null && j < features.length; j++) {
+          if (c.getName().equals(features[j])) {
+            return c;
+          }
+        }
+      }
+      return null;
+    }
+
+    /** @return the compression statistics for this link */
+    SOAPCompression.Stats getCompressionStats() {
+      return compressionStats;
     }
 
     /**
@@ -489,6 +2215,20 @@ public class SOAPLinkProtocol extends RPCLinkProtocol {
         if (getRegistry().isLocalClient(target)) {
           return getDeliverer().deliverMessage(message, target);
         }
+        // send async, unless our window is retrying the message:
+        Object tag = message.getAttribute(SOAPSendWindow.SEQUENCE_ATTRIBUTE);
+        if (tag != null && !sequenced) {
+          // the target moved to a node that can't order our window's
+          // messages, so don't send it our internal tag
+          message.removeAttribute(SOAPSendWindow.SEQUENCE_ATTRIBUTE);
+        } else if (ASYNC_WINDOW > 0 && tag == null && sequenced) {
+          getSendWindow().submit(message);
+          MessageAttributes attrs = message.cloneAttributes();
+          attrs.setAttribute(
+              MessageAttributes.DELIVERY_ATTRIBUTE,
+              MessageAttributes.DELIVERY_STATUS_STORE_AND_FORWARD);
+          return attrs;
+        }
         // send remote:
         Object response = sendMessage((URL) remote_ref, message);
         if (response instanceof MessageAttributes) {
@@ -507,22 +2247,270 @@ public class SOAPLinkProtocol extends RPCLinkProtocol {
 
 
     /**
-     * This method streams serialized java objects over SOAP.
+     * Send a message and record the link statistics.
      */
     private Object sendMessage(URL url, AttributedMessage message) 
-      throws IOException, ClassNotFoundException, UnknownHostException {
-        // write object to byte array
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        ObjectOutputStream oos = new ObjectOutputStream(bos);
-        oos.writeObject(message);
-        oos.close();
-        byte[] messageBytes = bos.toByteArray();
-        int messageLength = 
-          (messageBytes == null ? 0 : messageBytes.length);
+      throws Exception {
+        SOAPCircuitBreaker cb = circuitBreaker;
+        if (cb != null) {
+          // fail fast if the target is down
+          cb.check();
+        }
+        long retryAfter = busyUntil - System.currentTimeMillis();
+        if (retryAfter > 0) {
+          // the target's receive queue was recently full
+          throw new SOAPReceiveQueue.BusyException(retryAfter);
+        }
+        int[] length = new int[] {-1};
+        long[] stages = null;
+        if (latencyStats.sample()) {
+          stages = new long[SOAPLatencyStats.SEND_STAGES.length];
+          Arrays.fill(stages, -1);
+        }
+        boolean success = false;
+        linkStats.begin();
+        long t = System.nanoTime();
+        try {
+          Object o;
+          try {
+            o = sendMessage(url, message, length, stages);
+          } catch (SOAPClassCache.ResyncException e) {
+            // the target lost our session, start a new one
+            SOAPClassCache.Sender cc = classCache;
+            if (cc == null) {
+              throw e;
+            }
+            if (logger.isInfoEnabled()) {
+              logger.info(
+                  "Resync class cache with "+getDestination());
+            }
+            cc.reset();
+            o = sendMessage(url, message, length, stages);
+          }
+          success = true;
+          if (stages != null) {
+            stages[SOAPLatencyStats.SEND_TOTAL] = System.nanoTime() - t;
+            latencyStats.recordSend(getDestination(), stages);
+          }
+          return o;
+        } catch (MisdeliveredMessageException e) {
+          // the link works, the target moved
+          success = true;
+          throw e;
+        } catch (Exception e) {
+          if (cb != null) {
+            if (isReached(e)) {
+              cb.success();
+            } else {
+              cb.failure(e);
+            }
+          }
+          throw e;
+        } finally {
+          linkStats.end(length[0], System.nanoTime() - t, success);
+          messageSizes.put(message.getRawMessage(), length[0]);
+          if (cb != null && success) {
+            cb.success();
+          }
+        }
+      }
+
+    /**
+     * @return true if a send failed after it reached the target,
+     * so it shouldn't open our circuit
+     */
+    private boolean isReached(Exception e) {
+      if (e instanceof SOAPReceiveQueue.BusyException ||
+          e instanceof SOAPClassCache.ResyncException ||
+          e instanceof CommFailureException) {
+        return true;
+      }
+      return false;
+    }
+
+    /**
+     * Probe the target for our {@link SOAPCircuitBreaker} and our
+     * warm-up.
+     */
+    public void probe() throws Exception {
+      URL url = remoteURL;
+      if (url == null) {
+        throw new IOException("No remote reference for "+getDestination());
+      }
+      Object o = invoke(url, SOAPCallPool.GET_MESSAGE_ADDRESS, null, null);
+      if (!(o instanceof MessageAddress)) {
+        throw new IOException(
+            "Invalid probe response: "+
+            (o == null ? "null" : o.getClass().getName()));
+      }
+    }
+
+    /**
+     * This method streams serialized java objects over SOAP.
+     *
+     * @param length set to the serialized message length
+     * @param stages optional stage times to fill in, indexed by the
+     *   SOAPLatencyStats SEND_* constants
+     */
+    private Object sendMessage(
+        URL url, AttributedMessage message, int[] length,
+        long[] stages) 
+      throws Exception {
+        SOAPLocalRegistry.Servant local =
+          SOAPLocalRegistry.find(remoteNode, url);
+        if (local != null) {
+          // the target node is in this JVM
+          Object o = local.receive(copyLocal(message, local));
+          return decodeResult(o, message, null, null);
+        }
+
+        SOAPChunker.Transfer tr = chunkTransfer;
+        if (tr != null) {
+          if (tr.getMessage() == message) {
+            // the MTS is retrying our failed chunked send
+            length[0] = tr.getLength();
+            return sendChunks(url, message, tr, true);
+          }
+          // the MTS moved on, e.g. it rerouted or dropped the message,
+          // so don't pin its buffer
+          clearChunkTransfer(tr);
+        }
+
+        SOAPFanout.Entry shared = null;
+        if (fanout && message.getRawMessage() != null) {
+          // another link may have sent the same contents
+          shared = fanoutCache.acquire(message.getRawMessage());
+        }
+        try {
+          return sendMessage(url, message, shared, length, stages);
+        } finally {
+          if (shared != null) {
+            fanoutCache.release(shared);
+          }
+        }
+      }
+
+    /**
+     * Serialize and send a message.
+     *
+     * @param shared optional serialized contents to send in place of
+     *   the message's contents
+     */
+    private Object sendMessage(
+        URL url, AttributedMessage message, SOAPFanout.Entry shared,
+        int[] length, long[] stages) 
+      throws Exception {
+        // write object to a segmented buffer, which avoids the
+        // growth and "toByteArray()" copies of a ByteArrayOutputStream
+        long t0 = (stages == null ? 0 : System.nanoTime());
+        SOAPMessageBuffer buf = new SOAPMessageBuffer();
+        SOAPClassCache.Sender cc = classCache;
+        Object token = null;
+        int headerLength = 0;
+        if (addressed) {
+          // lets the target check and queue the message before it
+          // decodes it
+          SOAPAddressHeader.write(
+              buf, message,
+              (cc == null ? 0 : SOAPAddressHeader.CLASS_CACHE));
+          headerLength = buf.size();
+        }
+        boolean ack = compactAck;
+        if (ack) {
+          message.setAttribute(SOAPAck.REQUEST_ATTRIBUTE, Boolean.TRUE);
+        }
+        try {
+          // copy the attributes, including our ack request
+          AttributedMessage m =
+            (shared == null ? message :
+             new AttributedMessage(shared.getPayload(), message));
+          if (cc != null) {
+            token = cc.writeObject(buf, m);
+          } else {
+            SOAPSerialization.writeObject(buf, m, messageCodec);
+          }
+        } finally {
+          if (ack) {
+            message.removeAttribute(SOAPAck.REQUEST_ATTRIBUTE);
+          }
+        }
+        if (stages != null) {
+          long now = System.nanoTime();
+          stages[SOAPLatencyStats.SEND_SERIALIZE] = now - t0;
+          t0 = now;
+        }
+
+        // compress if the target supports it
+        SOAPCompression.Codec c = codec;
+        if (c != null && buf.size() >= COMPRESSION_THRESHOLD) {
+          long t = SOAPCompression.Stats.now();
+          SOAPMessageBuffer zbuf =
+            SOAPCompression.compress(buf, headerLength, c);
+          compressionStats.add(
+              buf.size(), zbuf.size(), SOAPCompression.Stats.now() - t);
+          if (stages != null) {
+            long now = System.nanoTime();
+            stages[SOAPLatencyStats.SEND_COMPRESS] = now - t0;
+            t0 = now;
+          }
+          if (logger.isDetailEnabled()) {
+            logger.detail(
+                "Compressed "+buf.size()+" to "+zbuf.size()+
+                " bytes for "+getDestination()+
+                ", "+compressionStats);
+          }
+          buf = zbuf;
+        }
+        int messageLength = buf.size();
+        length[0] = messageLength;
+
+        if (chunked && messageLength >= CHUNK_THRESHOLD) {
+          return sendChunks(
+              url, message,
+              new SOAPChunker.Transfer(message, buf, CHUNK_SIZE, cc, token),
+              false);
+        }
+
+        if (oneWay &&
+            messageLength <= MAX_INLINE_LENGTH &&
+            message.getAttribute(ONE_WAY_ATTRIBUTE) != null) {
+          // only wait for the target to queue the message
+          Object o = invoke(
+              url, SOAPCallPool.ONE_WAY_MESSAGE,
+              new SOAPData(buf.toByteArray()), stages);
+          if (o == null) {
+            if (cc != null) {
+              cc.confirm(token);
+            }
+            // the target has taken over the delivery
+            return deliveredAttributes(message);
+          }
+          return decodeResult(o, message, cc, token);
+        }
+
+        if (binary) {
+          // bypass SOAP
+          Object o = binarySender.send(url, buf);
+          if (o != null) {
+            if (stages != null) {
+              stages[SOAPLatencyStats.SEND_HTTP] = System.nanoTime() - t0;
+            }
+            return decodeResult(o, message, cc, token);
+          }
+          // the target rejected our content type, so it must have
+          // been restarted without binary support
+          binary = false;
+          if (logger.isInfoEnabled()) {
+            logger.info(
+                "Binary messages rejected by "+getDestination()+
+                ", falling back to SOAP");
+          }
+        }
 
         // choose to send either inlined or as an attachment
+        boolean[] sample = new boolean[1];
         boolean isBigMessage =
-          (messageLength >= BIG_MESSAGE_LENGTH);
+          pathSelector.isBigMessage(messageLength, sample);
 
         if (logger.isDetailEnabled()) {
           logger.detail(
@@ -530,99 +2518,291 @@ public class SOAPLinkProtocol extends RPCLinkProtocol {
               ") length="+messageLength);
         }
 
+        // a batched send time includes the linger and the other
+        // messages, so we send the selector's samples directly
+        if (!isBigMessage && !sample[0] && batched) {
+          Object o = batcher.send(url, buf.toByteArray(), this);
+          if (stages != null) {
+            stages[SOAPLatencyStats.SEND_SOAP] = System.nanoTime() - t0;
+          }
+          return decodeResult(o, message, cc, token);
+        }
+
         Object sendObj;
+        int operation;
         if (isBigMessage) {
-          // wrap inside DataHandler to send as attachement
-          sendObj = new DataHandler(
-              new OctetStreamDataSource(
-                "source", new OctetStream(messageBytes)));
+          // wrap inside DataHandler to send as attachement, which
+          // Axis streams from our buffer into the HTTP body
+          sendObj = new DataHandler(buf.toDataSource("source"));
+          operation = SOAPCallPool.BIG_MESSAGE;
         } else {
           // send inline as xml encoded binary
-          sendObj = new SOAPData(messageBytes);
+          sendObj = new SOAPData(buf.toByteArray());
+          operation = SOAPCallPool.SMALL_MESSAGE;
         }
 
-        if (service == null) {
-          service = new org.apache.axis.client.Service();
+        long t = System.nanoTime();
+        Object o = invoke(url, operation, sendObj, stages);
+        pathSelector.record(
+            messageLength, isBigMessage, System.nanoTime() - t);
+        if (logger.isDetailEnabled()) {
+          logger.detail("Message path costs: "+pathSelector);
         }
+        return decodeResult(o, message, cc, token);
+      }
 
-        Call call;
-        try {
-          call = (Call) service.createCall();
-        } catch (ServiceException se) {
-          throw new RuntimeException("Unable to create SOAP call", se);
-        }
-
-        // register type mappings
-        QName dataHandlerQN = 
-          (isBigMessage ?
-           (new QName("urn:Cougaar-MTS", "DataHandler")) :
-           null);
-        QName dataQN =
-          new QName("urn:BeanService", "SOAPData");
-        Class cl = SOAPData.class;
-        QName qn = dataQN;
-        call.registerTypeMapping(cl, qn,
-            new BeanSerializerFactory(cl, qn),
-            new BeanDeserializerFactory(cl, qn));
-        if (isBigMessage) {
-          cl = DataHandler.class;
-          qn = dataHandlerQN;
-          call.registerTypeMapping(cl, qn,
-              JAFDataHandlerSerializerFactory.class,
-              JAFDataHandlerDeserializerFactory.class);
-        }
-        call.setTargetEndpointAddress(url);
+    /**
+     * @return a copy of the message for a target node in this JVM,
+     * which the target's MTS may modify
+     */
+    private AttributedMessage copyLocal(
+        AttributedMessage message,
+        SOAPLocalRegistry.Servant local) throws Exception {
+      if (LOCAL_SHARE && isVisible(message.getRawMessage(), local)) {
+        // only the attributes are copied
+        return new AttributedMessage(message);
+      }
+      SOAPMessageBuffer buf = new SOAPMessageBuffer();
+      SOAPSerialization.writeObject(buf, message, null);
+      return (AttributedMessage)
+        SOAPSerialization.readObject(buf.getInputStream(), null);
+    }
 
-        if (isBigMessage) {
-          call.setOperationName(
-              new QName(
-                "urn:Cougaar-MTS",
-                "rerouteMessageAsAttachment"));
-          call.addParameter(
-              "big_message", dataHandlerQN, ParameterMode.IN);
-        } else {
-          call.setOperationName(
-              new QName("urn:Cougaar-MTS", "rerouteMessage"));
-          call.addParameter("small_message", dataQN, ParameterMode.IN);
+    /**
+     * @return true if the target's classloader resolves the same
+     * class as the contents
+     */
+    private boolean isVisible(
+        Object contents, SOAPLocalRegistry.Servant local) {
+      if (contents == null) {
+        return true;
+      }
+      Class cl = contents.getClass();
+      ClassLoader cl_loader = cl.getClassLoader();
+      ClassLoader target = local.getClassLoader();
+      if (cl_loader == null || cl_loader == target) {
+        return true;
+      }
+      try {
+        return (Class.forName(cl.getName(), false, target) == cl);
+      } catch (ClassNotFoundException e) {
+        return false;
+      } catch (LinkageError e) {
+        return false;
+      }
+    }
+
+    /**
+     * Send a huge message as chunks.
+     * <p>
+     * If the send fails then we keep the transfer, so a retry of the
+     * same message resumes from the receiver's first missing chunk.
+     *
+     * @param resume true if the transfer was sent before
+     */
+    private Object sendChunks(
+        final URL url, AttributedMessage message,
+        SOAPChunker.Transfer tr, boolean resume) throws Exception {
+      if (logger.isDetailEnabled()) {
+        logger.detail(
+            (resume ? "Resume" : "Send")+" "+tr+" to "+getDestination());
+      }
+      chunkTransfer = tr;
+      Object o;
+      try {
+        o = tr.send(
+            new SOAPChunker.Sender() {
+              public Object sendChunk(DataHandler chunk) throws Exception {
+                return invoke(url, SOAPCallPool.MESSAGE_CHUNK, chunk, null);
+              }
+            },
+            threadService, CHUNK_PARALLEL, CHUNK_RETRIES, resume);
+      } catch (Exception e) {
+        expireChunkTransfer(tr);
+        throw e;
+      }
+      // the receiver has the whole message
+      clearChunkTransfer(tr);
+      return decodeResult(o, message, tr.getClassCache(), tr.getToken());
+    }
+
+    /**
+     * Drop a failed transfer if the MTS doesn't retry it within our
+     * {@link #CHUNK_TIMEOUT}, after which the receiver has dropped
+     * its spool anyway.
+     */
+    private void expireChunkTransfer(final SOAPChunker.Transfer tr) {
+      Schedulable t;
+      synchronized (this) {
+        if (chunkExpiry != null) {
+          chunkExpiry.cancelTimer();
         }
-        call.setReturnType(dataQN);
+        chunkExpiry = threadService.getThread(
+            SOAPLinkProtocol.this,
+            new Runnable() {
+              public void run() {
+                clearChunkTransfer(tr);
+              }
+            },
+            "SOAP chunk expiry for "+getDestination(),
+            ThreadService.BEST_EFFORT_LANE);
+        t = chunkExpiry;
+      }
+      t.schedule(CHUNK_TIMEOUT);
+    }
 
-        // invoke
-        Object ret;
-        try {
-          SchedulableStatus.beginNetIO("SOAP call");
-          ret = call.invoke(new Object[] {sendObj});
-        } finally {
-          SchedulableStatus.endBlocking();
-        }
-
-        if (ret instanceof SOAPData) {
-          // usual case, MTS works
-          Object o = ((SOAPData) ret).toObject();
-          if (o instanceof MessageAttributes) {
-            // good case, should be typical case
-            return (MessageAttributes) o;
-          } else if (o instanceof MisdeliveredMessageException) {
-            // remote MTS exception, rethrow
-            throw (MisdeliveredMessageException) o;
-          } else {
-            throw new IllegalArgumentException(
-                "Invalid data type: "+
-                (o == null ? "null" : o.getClass().getName()));
+    /** Drop our failed transfer, unless a newer one replaced it. */
+    private synchronized void clearChunkTransfer(SOAPChunker.Transfer tr) {
+      if (chunkTransfer == tr) {
+        chunkTransfer = null;
+      }
+    }
+
+    /**
+     * Send an async message on behalf of our {@link SOAPSendWindow},
+     * looking up the target's address if we don't have it cached.
+     */
+    public MessageAttributes send(
+        AttributedMessage message) throws Exception {
+      return forwardMessage(message);
+    }
+
+    /** Called by our {@link SOAPSendWindow} after a misdelivery. */
+    public void flushRemoteReference() {
+      decache();
+    }
+
+    /**
+     * Send a batch of serialized messages on behalf of the
+     * {@link SOAPMessageBatcher}.
+     */
+    public Object[] sendBatch(
+        URL url, byte[][] messages) throws Exception {
+      if (messages.length == 1) {
+        // no other messages joined the batch
+        Object o = invoke(
+            url, SOAPCallPool.SMALL_MESSAGE, new SOAPData(messages[0]),
+            null);
+        return new Object[] {o};
+      }
+      Object o = invoke(
+          url, SOAPCallPool.MESSAGE_BATCH, new SOAPData(messages), null);
+      if (!(o instanceof Object[])) {
+        throw new IllegalArgumentException(
+            "Invalid batch data type: "+
+            (o == null ? "null" : o.getClass().getName()));
+      }
+      return (Object[]) o;
+    }
+
+    /**
+     * Invoke a pooled Call.
+     *
+     * @param sendObj the parameter, or null if the operation has none
+     * @param stages optional stage times to fill in
+     * @return the object in the returned SOAPData
+     */
+    private Object invoke(
+        URL url, int operation, Object sendObj,
+        long[] stages) throws Exception {
+      SOAPCallPool pool = getCallPool();
+      Call call = pool.take(url, operation);
+
+      // invoke
+      Object ret;
+      try {
+        SchedulableStatus.beginNetIO("SOAP call");
+        long t0 = (stages == null ? 0 : System.nanoTime());
+        ret = call.invoke(
+            (sendObj == null ? new Object[0] : new Object[] {sendObj}));
+        if (stages != null) {
+          long soap = System.nanoTime() - t0;
+          // our KeepAliveHTTPSender measures the HTTP time
+          MessageContext mc = call.getMessageContext();
+          Object o =
+            (mc == null ? null :
+             mc.getProperty(KeepAliveHTTPSender.HTTP_TIME_PROPERTY));
+          if (o instanceof Long) {
+            long http = ((Long) o).longValue();
+            stages[SOAPLatencyStats.SEND_HTTP] = http;
+            soap -= http;
           }
+          stages[SOAPLatencyStats.SEND_SOAP] = soap;
         }
+      } finally {
+        SchedulableStatus.endBlocking();
+        pool.release(call, operation);
+      }
 
-        // check for Axis/SOAP error
-        if (ret instanceof String) {
-          // SOAP failure, e.g. I/O??  Treat as CommFailure
-          throw new IOException("SOAP failure: "+ret);
-        }
+      if (ret instanceof SOAPData) {
+        // usual case, MTS works
+        return ((SOAPData) ret).toObject(null);
+      }
+
+      if (ret == null && operation == SOAPCallPool.ONE_WAY_MESSAGE) {
+        // accepted
+        return null;
+      }
+
+      // check for Axis/SOAP error
+      if (ret instanceof String) {
+        // SOAP failure, e.g. I/O??  Treat as CommFailure
+        throw new IOException("SOAP failure: "+ret);
+      }
+
+      // other case?  error!
+      throw new RuntimeException(
+          "Invalid SOAP return type: "+
+          (ret == null ? "null" : ret.getClass().getName()));
+    }
+
+    /**
+     * Check the remote result of a single message and, if it was
+     * received, confirm its class cache definitions.
+     */
+    private Object decodeResult(
+        Object o, AttributedMessage message,
+        SOAPClassCache.Sender cc, Object token
+        ) throws IOException {
+      if (o instanceof SOAPAck) {
+        o = ((SOAPAck) o).toAttributes();
+      }
+      Object ret = decodeResult(o);
+      if (cc != null) {
+        cc.confirm(token);
+      }
+      return ret;
+    }
 
-        // other case?  error!
-        throw new RuntimeException(
-            "Invalid SOAP return type: "+
-            (ret == null ? "null" : ret.getClass().getName()));
+    /** Check the remote result of a single message. */
+    private Object decodeResult(Object o) throws IOException {
+      if (o == SOAPClassCache.RESYNC) {
+        throw new SOAPClassCache.ResyncException(
+            "Target lost our class cache session");
+      } else if (o instanceof MessageAttributes) {
+        // good case, should be typical case
+        return (MessageAttributes) o;
+      } else if (o instanceof MisdeliveredMessageException) {
+        // remote MTS exception, rethrow
+        throw (MisdeliveredMessageException) o;
+      } else if (o instanceof CommFailureException) {
+        // remote decode failure within a batch
+        throw (CommFailureException) o;
+      } else if (o instanceof SOAPReceiveQueue.BusyException) {
+        // the target's receive queue is full
+        SOAPReceiveQueue.BusyException e =
+          (SOAPReceiveQueue.BusyException) o;
+        busyUntil = System.currentTimeMillis() + e.getRetryAfter();
+        throw e;
+      } else if (o instanceof SOAPSequencer.OutOfOrderException) {
+        // our window retries it after its predecessor
+        throw (SOAPSequencer.OutOfOrderException) o;
+      } else {
+        throw new IllegalArgumentException(
+            "Invalid data type: "+
+            (o == null ? "null" : o.getClass().getName()));
       }
+    }
   }
 
   protected void releaseNodeServant() {
@@ -0,0 +1,172 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 1997-2004 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+
+package org.cougaar.lib.web.axis.mts;
+
+/**
+ * Live statistics for a {@link SOAPLinkProtocol} destination link,
+ * which are used to compute the link's cost.
+ * <p>
+ * We keep exponentially weighted moving averages of the round-trip
+ * time, throughput, message size, and error rate, plus the number
+ * of messages that are currently queued or in flight.
+ */
+final class SOAPLinkStats {
+
+  private static final double ALPHA = 0.125;
+
+  // guarded by "this"
+  private long count;
+  private long errors;
+  private int inFlight;
+  private double rttNanos;
+  private double bytesPerNano;
+  private double meanBytes;
+  private double errorRate;
+  private long lastTime;
+
+  /** Mark the start of a send. */
+  public synchronized void begin() {
+    inFlight++;
+  }
+
+  /**
+   * Mark the end of a send.
+   *
+   * @param bytes the serialized message length, or -1 if unknown
+   * @param nanos the time from serialization to the remote reply
+   * @param success false if the send failed
+   */
+  public synchronized void end(int bytes, long nanos, boolean success) {
+    if (inFlight > 0) {
+      inFlight--;
+    }
+    lastTime = System.currentTimeMillis();
+    double err = (success ? 0.0 : 1.0);
+    if (!success) {
+      errors++;
+    }
+    if (count++ == 0) {
+      errorRate = err;
+    } else {
+      errorRate += ALPHA * (err - errorRate);
+    }
+    if (!success || nanos <= 0) {
+      // failures don't tell us the link speed
+      return;
+    }
+    if (rttNanos == 0.0) {
+      rttNanos = nanos;
+    } else {
+      rttNanos += ALPHA * (nanos - rttNanos);
+    }
+    if (bytes > 0) {
+      double bpn = ((double) bytes) / nanos;
+      if (meanBytes == 0.0) {
+        meanBytes = bytes;
+        bytesPerNano = bpn;
+      } else {
+        meanBytes += ALPHA * (bytes - meanBytes);
+        bytesPerNano += ALPHA * (bpn - bytesPerNano);
+      }
+    }
+  }
+
+  /** @return true if we've measured at least one successful send */
+  public synchronized boolean hasSamples() {
+    return rttNanos > 0.0;
+  }
+
+  /** @return number of sends, including failures */
+  public synchronized long getCount() {
+    return count;
+  }
+  /** @return number of failed sends */
+  public synchronized long getErrors() {
+    return errors;
+  }
+  /** @return number of sends that are in progress */
+  public synchronized int getInFlight() {
+    return inFlight;
+  }
+  /** @return smoothed round-trip time in nanoseconds */
+  public synchronized long getRTT() {
+    return (long) rttNanos;
+  }
+  /** @return smoothed throughput in bytes per second */
+  public synchronized long getThroughput() {
+    return (long) (bytesPerNano * 1000000000L);
+  }
+  /** @return smoothed message length in bytes */
+  public synchronized int getMeanBytes() {
+    return (int) meanBytes;
+  }
+  /** @return smoothed fraction of failed sends, from 0.0 to 1.0 */
+  public synchronized double getErrorRate() {
+    return errorRate;
+  }
+  /** @return time of the most recent completed send, or 0 */
+  public synchronized long getLastTime() {
+    return lastTime;
+  }
+
+  /**
+   * Estimate the time to send a message, including the wait behind
+   * the given number of queued messages.
+   *
+   * @param queued messages queued in addition to those in flight
+   * @param bytes the message's serialized length, or -1 if unknown
+   * @return the estimated nanoseconds, or -1 if we have no samples
+   */
+  public synchronized long estimate(int queued, int bytes) {
+    if (rttNanos <= 0.0) {
+      return -1;
+    }
+    // the rtt is measured from our mean message size, so it already
+    // includes the transfer time of a typical message.  Messages
+    // ahead of us each cost another rtt.
+    double t = rttNanos * (1 + inFlight + queued);
+    if (bytes > meanBytes && bytesPerNano > 0.0) {
+      // a larger message also costs the transfer time of its extra
+      // bytes, while a smaller one is still bound by the latency
+      t += (bytes - meanBytes) / bytesPerNano;
+    }
+    // a failing link costs more, since we'll likely retry
+    double e = Math.min(errorRate, 0.9);
+    return (long) (t / (1.0 - e));
+  }
+
+  public synchronized String toString() {
+    return
+      "(count="+count+
+      " errors="+errors+
+      " inFlight="+inFlight+
+      " rtt="+(long) (rttNanos/1000)+"us"+
+      " throughput="+getThroughput()+"B/s"+
+      " meanBytes="+(long) meanBytes+
+      " errorRate="+((int) (errorRate*1000))/10.0+"%)";
+  }
+}
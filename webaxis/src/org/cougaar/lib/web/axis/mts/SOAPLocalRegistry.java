@@ -0,0 +1,151 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 1997-2004 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+
+package org.cougaar.lib.web.axis.mts;
+
+import java.net.URI;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.cougaar.core.mts.MessageAddress;
+import org.cougaar.mts.base.AttributedMessage;
+
+/**
+ * A JVM-wide registry of the {@link SOAPLinkProtocol} receivers of
+ * the nodes in this JVM, keyed by node address, so a link to a
+ * co-located node can hand a message directly to that node's
+ * receiver instead of calling it through HTTP loopback and Axis.
+ * <p>
+ * A node advertises its address in its WP URI, so a sender can
+ * find the entry, and the entry's URI must match the sender's
+ * remote reference, so a stale WP entry or a node of the same name
+ * in another JVM is never shortcut.
+ */
+final class SOAPLocalRegistry {
+
+  /** A node's receiver. */
+  interface Servant {
+    /**
+     * Receive a message as if it was sent through SOAP.
+     *
+     * @return the delivery result, e.g. MessageAttributes
+     */
+    Object receive(AttributedMessage message);
+
+    /**
+     * @return the classloader of the node's MTS, which decides if
+     *   a sender may share message contents with this node
+     */
+    ClassLoader getClassLoader();
+  }
+
+  // map from node MessageAddress to Entry[], guarded by "servants"
+  private static final Map servants = new HashMap();
+
+  private SOAPLocalRegistry() {}
+
+  /**
+   * Register a node's receiver for its advertised URI, e.g. one
+   * for each of the SOAP and SSL-SOAP link protocols.
+   */
+  public static void register(MessageAddress node, URI uri, Servant s) {
+    Entry e = new Entry(uri, s);
+    synchronized (servants) {
+      Entry[] a = (Entry[]) servants.get(node);
+      int n = (a == null ? 0 : a.length);
+      Entry[] b = new Entry[n + 1];
+      for (int i = 0; i < n; i++) {
+        b[i] = a[i];
+      }
+      b[n] = e;
+      servants.put(node, b);
+    }
+  }
+
+  /** Remove a receiver added by {@link #register}. */
+  public static void unregister(MessageAddress node, Servant s) {
+    synchronized (servants) {
+      Entry[] a = (Entry[]) servants.get(node);
+      int n = (a == null ? 0 : a.length);
+      int j = -1;
+      for (int i = 0; i < n; i++) {
+        if (a[i].servant == s) {
+          j = i;
+        }
+      }
+      if (j < 0) {
+        return;
+      }
+      if (n == 1) {
+        servants.remove(node);
+        return;
+      }
+      Entry[] b = new Entry[n - 1];
+      for (int i = 0, k = 0; i < n; i++) {
+        if (i != j) {
+          b[k++] = a[i];
+        }
+      }
+      servants.put(node, b);
+    }
+  }
+
+  /**
+   * @param node the node address advertised in the remote URI
+   * @param url the remote reference
+   * @return the receiver of the node in this JVM with the same
+   *   endpoint, or null
+   */
+  public static Servant find(MessageAddress node, URL url) {
+    if (node == null || url == null) {
+      return null;
+    }
+    Entry[] a;
+    synchronized (servants) {
+      a = (Entry[]) servants.get(node);
+    }
+    for (int i = 0; a != null && i < a.length; i++) {
+      URI uri = a[i].uri;
+      if (uri.getScheme().equals(url.getProtocol()) &&
+          uri.getPort() == url.getPort() &&
+          uri.getPath().equals(url.getPath()) &&
+          uri.getHost().equalsIgnoreCase(url.getHost())) {
+        return a[i].servant;
+      }
+    }
+    return null;
+  }
+
+  private static final class Entry {
+    private final URI uri;
+    private final Servant servant;
+    public Entry(URI uri, Servant servant) {
+      this.uri = uri;
+      this.servant = servant;
+    }
+  }
+}
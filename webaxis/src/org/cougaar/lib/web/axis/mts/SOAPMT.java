@@ -37,5 +37,33 @@ public interface SOAPMT {
 
   public SOAPData rerouteMessageAsAttachment(DataHandler big_message) throws Exception;
 
+  /**
+   * Deliver a batch of small messages, in order.
+   * <p>
+   * The SOAPData holds a <code>byte[][]</code> of serialized
+   * messages, and the returned SOAPData holds an
+   * <code>Object[]</code> of the per-message results.
+   */
+  public SOAPData rerouteMessages(SOAPData messages) throws Exception;
+
+  /**
+   * Accept a small message for delivery without waiting for the
+   * target agent to receive it.
+   * <p>
+   * The result is null if the message was accepted, otherwise it
+   * holds the failure, e.g. a MisdeliveredMessageException.
+   */
+  public SOAPData rerouteMessageOneWay(
+      SOAPData small_message) throws Exception;
+
+  /**
+   * Receive one chunk of a huge message, or a status request, as
+   * framed by the SOAPLinkProtocol's chunked sender.
+   * <p>
+   * The result holds the Integer index of the first missing chunk
+   * until the message is complete, then the delivery result.
+   */
+  public SOAPData rerouteMessageChunk(DataHandler chunk) throws Exception;
+
   public SOAPData getMessageAddress() throws Exception;
 }
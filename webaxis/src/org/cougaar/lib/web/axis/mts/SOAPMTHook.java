@@ -28,18 +28,22 @@ package org.cougaar.lib.web.axis.mts;
 
 import javax.activation.DataHandler;
 
+import org.cougaar.lib.web.axis.WebServicesHooks;
+
 /**
  * A {@link SOAPMT} implementation that forwards all requests
- * to a static {@link SOAPMT} instance.
+ * to the {@link SOAPMT} registered by the receiving node.
  * <p>
- * The static is used because the WSDD registered in the
+ * The registry is used because the WSDD registered in the
  * {@link org.cougaar.core.service.WebServicesService} specifies
  * the SOAPMT <i>classname</i> instead of our {@link
- * SOAPLinkProtocol} instance.  We use the static to hook
+ * SOAPLinkProtocol} instance.  We use the registry to hook
  * the two together, otherwise the SOAP engine wouldn't have
  * a pointer back into our Cougaar LinkProtocol instance.
- * The static is fine, since link protocols typically have
- * a per-node receiver instance (i.e. a "NodeServant").
+ * Each node's link protocol registers under its node name,
+ * protocol and servlet port, and the {@link WebServicesHooks}
+ * routes each request by its URL, so several nodes can share a
+ * JVM.
  * <p>
  * This is analagous to the webtomcat module's "HookServlet".
  * <p>
@@ -49,27 +53,55 @@ import javax.activation.DataHandler;
  */
 public class SOAPMTHook implements SOAPMT {
 
-  private static SOAPMT mt;
+  /** Our {@link WebServicesHooks} service name. */
+  static final String SERVICE = SOAPCallPool.MTS_NAMESPACE;
+
+  // package-protected so only the SOAPLinkProtocol can call these:
+  static void register(Object[] keys, SOAPMT x) {
+    WebServicesHooks.register(SERVICE, keys, x);
+  }
+  static void unregister(SOAPMT x) {
+    WebServicesHooks.unregister(SERVICE, x);
+  }
 
-  // package-protected so only the SOAPLinkProtocol can call it:
-  static void setStatic(SOAPMT x) {
-    mt = x;
+  private static SOAPMT getMT() {
+    SOAPMT mt = (SOAPMT) WebServicesHooks.find(SERVICE);
+    if (mt == null) {
+      throw new IllegalStateException(
+          "No SOAPMT registered for this request");
+    }
+    return mt;
   }
 
   // forward everything:
 
   public SOAPData rerouteMessage(SOAPData small_message)
     throws Exception{
-      return mt.rerouteMessage(small_message);
+      return getMT().rerouteMessage(small_message);
   }
 
   public SOAPData rerouteMessageAsAttachment(DataHandler big_message)
     throws Exception {
-      return mt.rerouteMessageAsAttachment(big_message);
+      return getMT().rerouteMessageAsAttachment(big_message);
+  }
+
+  public SOAPData rerouteMessages(SOAPData messages)
+    throws Exception {
+      return getMT().rerouteMessages(messages);
+  }
+
+  public SOAPData rerouteMessageOneWay(SOAPData small_message)
+    throws Exception {
+      return getMT().rerouteMessageOneWay(small_message);
+  }
+
+  public SOAPData rerouteMessageChunk(DataHandler chunk)
+    throws Exception {
+      return getMT().rerouteMessageChunk(chunk);
   }
 
   public SOAPData getMessageAddress()
     throws Exception {
-    return mt.getMessageAddress();
+    return getMT().getMessageAddress();
   }
 }
@@ -0,0 +1,223 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 1997-2004 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+
+package org.cougaar.lib.web.axis.mts;
+
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Coalesces concurrent {@link SOAPLinkProtocol} sends to the same
+ * remote node into a single {@link SOAPMT#rerouteMessages} call.
+ * <p>
+ * The MTS sends to each target agent on its own thread, so
+ * messages to different agents on the same node arrive here
+ * concurrently.  The first sender to a node becomes the batch
+ * "leader", waits up to <i>linger</i> milliseconds for other
+ * senders to join, then sends the batch and hands each sender
+ * its own result.  A batch is sent early if it reaches
+ * <i>maxMessages</i> or <i>maxBytes</i>.
+ * <p>
+ * Like Nagle's algorithm, the leader only lingers while another
+ * batch to the same node is in flight, so a lone sender isn't
+ * delayed.
+ * <p>
+ * Each sender's messages are sent in order, since a sender waits
+ * for its result before sending its next message.
+ */
+final class SOAPMessageBatcher {
+
+  /** The leader's callback to send a closed batch. */
+  interface Sender {
+    /**
+     * @return the per-message results, in the same order as the
+     *   messages
+     */
+    Object[] sendBatch(URL url, byte[][] messages) throws Exception;
+  }
+
+  private final int maxMessages;
+  private final int maxBytes;
+  private final long linger;
+
+  // map from URL string to the open Batch, guarded by "this"
+  private final Map openBatches = new HashMap();
+
+  // map from URL string to the int[] count of batches being sent,
+  // guarded by "this"
+  private final Map inFlight = new HashMap();
+
+  public SOAPMessageBatcher(int maxMessages, int maxBytes, long linger) {
+    this.maxMessages = maxMessages;
+    this.maxBytes = maxBytes;
+    this.linger = linger;
+  }
+
+  /**
+   * Add a serialized message to the batch for the URL and wait for
+   * the batch to be sent.
+   *
+   * @param sender the callback used if we become the batch leader
+   * @return the remote result object for this message
+   */
+  public Object send(
+      URL url, byte[] message, Sender sender) throws Exception {
+    String key = url.toString();
+    Batch b;
+    int index;
+    boolean leader;
+    synchronized (this) {
+      b = (Batch) openBatches.get(key);
+      leader = (b == null || !b.canAdd(message.length));
+      if (leader) {
+        b = new Batch();
+        openBatches.put(key, b);
+      }
+      index = b.add(message);
+      if (!leader && b.isFull()) {
+        // wake the leader
+        openBatches.remove(key);
+        b.closed = true;
+        notifyAll();
+      }
+    }
+
+    if (leader) {
+      synchronized (this) {
+        // linger only if other senders are likely to join
+        long deadline =
+          (inFlight.containsKey(key) ?
+           System.currentTimeMillis() + linger :
+           0);
+        while (!b.closed) {
+          long wait = deadline - System.currentTimeMillis();
+          if (wait <= 0) {
+            break;
+          }
+          try {
+            wait(wait);
+          } catch (InterruptedException ie) {
+            break;
+          }
+        }
+        if (openBatches.get(key) == b) {
+          openBatches.remove(key);
+        }
+        b.closed = true;
+        int[] sending = (int[]) inFlight.get(key);
+        if (sending == null) {
+          sending = new int[1];
+          inFlight.put(key, sending);
+        }
+        sending[0]++;
+      }
+      Object[] results = null;
+      Exception failure = null;
+      try {
+        results = sender.sendBatch(url, b.getMessages());
+        if (results == null || results.length != b.size()) {
+          throw new IllegalArgumentException(
+              "Expecting "+b.size()+" results, not "+
+              (results == null ? "null" : ""+results.length));
+        }
+      } catch (Exception e) {
+        failure = e;
+      } finally {
+        synchronized (this) {
+          int[] sending = (int[]) inFlight.get(key);
+          if (--sending[0] == 0) {
+            inFlight.remove(key);
+          }
+        }
+      }
+      b.setResults(results, failure);
+    } else {
+      b.waitForResults();
+    }
+    return b.getResult(index);
+  }
+
+  private final class Batch {
+
+    // guarded by the SOAPMessageBatcher
+    private final List messages = new ArrayList();
+    private int bytes;
+    private boolean closed;
+
+    // guarded by "this"
+    private boolean done;
+    private Object[] results;
+    private Exception failure;
+
+    public boolean canAdd(int length) {
+      return
+        !closed &&
+        messages.size() < maxMessages &&
+        bytes + length <= maxBytes;
+    }
+    public boolean isFull() {
+      return messages.size() >= maxMessages || bytes >= maxBytes;
+    }
+    public int add(byte[] message) {
+      messages.add(message);
+      bytes += message.length;
+      return messages.size() - 1;
+    }
+    public int size() {
+      return messages.size();
+    }
+    public byte[][] getMessages() {
+      return (byte[][]) messages.toArray(new byte[messages.size()][]);
+    }
+    public synchronized void setResults(
+        Object[] results, Exception failure) {
+      this.results = results;
+      this.failure = failure;
+      done = true;
+      notifyAll();
+    }
+    public synchronized void waitForResults() throws Exception {
+      while (!done) {
+        try {
+          wait();
+        } catch (InterruptedException ie) {
+          throw new InterruptedIOException(
+              "Interrupted waiting for batch results");
+        }
+      }
+    }
+    public synchronized Object getResult(int index) throws Exception {
+      if (failure != null) {
+        throw failure;
+      }
+      return results[index];
+    }
+  }
+}
@@ -0,0 +1,238 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 1997-2004 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+
+package org.cougaar.lib.web.axis.mts;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.activation.DataSource;
+
+/**
+ * A growable byte buffer made of separate segments, used to hold a
+ * serialized {@link SOAPLinkProtocol} message.
+ * <p>
+ * Unlike a ByteArrayOutputStream, growing the buffer never copies
+ * the bytes already written, and the content can be read back or
+ * sent as an attachment without a "toByteArray()" copy.  Segments
+ * start small and double up to {@link #MAX_SEGMENT_LENGTH}.
+ */
+final class SOAPMessageBuffer extends OutputStream {
+
+  private static final int MIN_SEGMENT_LENGTH = 512;
+  private static final int MAX_SEGMENT_LENGTH = 1<<16;
+
+  private final List segments = new ArrayList();
+  private byte[] current;
+  private int pos;
+  private int size;
+
+  public SOAPMessageBuffer() {
+    current = new byte[MIN_SEGMENT_LENGTH];
+    segments.add(current);
+  }
+
+  public void write(int b) {
+    if (pos >= current.length) {
+      grow();
+    }
+    current[pos++] = (byte) b;
+    size++;
+  }
+
+  public void write(byte[] b, int off, int len) {
+    while (len > 0) {
+      if (pos >= current.length) {
+        grow();
+      }
+      int n = Math.min(len, current.length - pos);
+      System.arraycopy(b, off, current, pos, n);
+      pos += n;
+      off += n;
+      len -= n;
+      size += n;
+    }
+  }
+
+  /** @return the number of bytes written */
+  public int size() {
+    return size;
+  }
+
+  /** Copy the content into a new array. */
+  public byte[] toByteArray() {
+    byte[] ret = new byte[size];
+    int off = 0;
+    for (int i = 0, n = segments.size(); i < n; i++) {
+      byte[] seg = (byte[]) segments.get(i);
+      int len = Math.min(seg.length, size - off);
+      System.arraycopy(seg, 0, ret, off, len);
+      off += len;
+    }
+    return ret;
+  }
+
+  /** Write the content to the stream. */
+  public void writeTo(OutputStream os) throws IOException {
+    int off = 0;
+    for (int i = 0, n = segments.size(); i < n; i++) {
+      byte[] seg = (byte[]) segments.get(i);
+      int len = Math.min(seg.length, size - off);
+      os.write(seg, 0, len);
+      off += len;
+    }
+  }
+
+  /** Write <i>len</i> bytes of the content, starting at <i>off</i>. */
+  public void writeTo(OutputStream os, int off, int len) throws IOException {
+    if (off == 0 && len == size) {
+      writeTo(os);
+      return;
+    }
+    InputStream in = getInputStream(off, len);
+    byte[] b = new byte[Math.min(len, MAX_SEGMENT_LENGTH)];
+    while (true) {
+      int n = in.read(b, 0, b.length);
+      if (n <= 0) {
+        break;
+      }
+      os.write(b, 0, n);
+    }
+  }
+
+  /**
+   * @return a new stream that reads the content, which shares our
+   * segments
+   */
+  public InputStream getInputStream() {
+    return new Input(0, size);
+  }
+
+  /**
+   * @return a new stream that reads <i>len</i> bytes of the content
+   * starting at <i>off</i>, e.g. one chunk of a huge message
+   */
+  public InputStream getInputStream(int off, int len) {
+    if (off < 0 || len < 0 || off + len > size) {
+      throw new IndexOutOfBoundsException(
+          "Invalid range "+off+".."+(off+len)+" of "+size);
+    }
+    return new Input(off, len);
+  }
+
+  /**
+   * @return an "application/octet-stream" DataSource that reads
+   * the content, which may be read more than once (e.g. by Axis to
+   * compute the content length).
+   */
+  public DataSource toDataSource(final String name) {
+    return new DataSource() {
+      public String getContentType() {
+        return "application/octet-stream";
+      }
+      public InputStream getInputStream() {
+        return SOAPMessageBuffer.this.getInputStream();
+      }
+      public String getName() {
+        return name;
+      }
+      public OutputStream getOutputStream() throws IOException {
+        throw new IOException("read-only");
+      }
+    };
+  }
+
+  private void grow() {
+    int len = Math.min(2*current.length, MAX_SEGMENT_LENGTH);
+    current = new byte[len];
+    segments.add(current);
+    pos = 0;
+  }
+
+  private final class Input extends InputStream {
+    private int segment;
+    private int offset;
+    private int remaining;
+
+    public Input(int off, int len) {
+      // find the segment that holds "off"
+      while (segment < segments.size() - 1) {
+        int n = ((byte[]) segments.get(segment)).length;
+        if (off < n) {
+          break;
+        }
+        off -= n;
+        segment++;
+      }
+      offset = off;
+      remaining = len;
+    }
+
+    public int read() {
+      if (remaining <= 0) {
+        return -1;
+      }
+      byte[] seg = next();
+      remaining--;
+      return seg[offset++] & 0xff;
+    }
+
+    public int read(byte[] b, int off, int len) {
+      if (remaining <= 0) {
+        return -1;
+      }
+      int count = 0;
+      while (len > 0 && remaining > 0) {
+        byte[] seg = next();
+        int n = Math.min(Math.min(len, seg.length - offset), remaining);
+        System.arraycopy(seg, offset, b, off, n);
+        offset += n;
+        off += n;
+        len -= n;
+        remaining -= n;
+        count += n;
+      }
+      return count;
+    }
+
+    public int available() {
+      return remaining;
+    }
+
+    // the segment with unread bytes
+    private byte[] next() {
+      byte[] seg = (byte[]) segments.get(segment);
+      if (offset >= seg.length) {
+        seg = (byte[]) segments.get(++segment);
+        offset = 0;
+      }
+      return seg;
+    }
+  }
+}
@@ -0,0 +1,77 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 1997-2004 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+
+package org.cougaar.lib.web.axis.mts;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.cougaar.core.mts.Message;
+
+/**
+ * The serialized lengths of recently sent message contents, which
+ * a {@link SOAPLinkProtocol} uses to cost a message that it has
+ * already serialized, e.g. an MTS retry or a multicast to another
+ * node.
+ * <p>
+ * Only the lengths are kept, keyed by a {@link SOAPContentsKey}, so
+ * the cache doesn't keep sent contents in memory.
+ */
+final class SOAPMessageSizes {
+
+  private final int maxEntries;
+
+  // map from SOAPContentsKey to Integer length, in access order, guarded by "this"
+  private final Map sizes;
+
+  public SOAPMessageSizes(final int maxEntries) {
+    this.maxEntries = maxEntries;
+    sizes = new LinkedHashMap(16, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry eldest) {
+        return size() > SOAPMessageSizes.this.maxEntries;
+      }
+    };
+  }
+
+  /** Record the serialized length of the contents. */
+  public synchronized void put(Message contents, int bytes) {
+    if (contents != null && bytes > 0) {
+      sizes.put(new SOAPContentsKey(contents), new Integer(bytes));
+    }
+  }
+
+  /** @return the last serialized length of the contents, or -1 */
+  public synchronized int get(Message contents) {
+    Integer i =
+      (contents == null ? null :
+       (Integer) sizes.get(new SOAPContentsKey(contents)));
+    return (i == null ? -1 : i.intValue());
+  }
+
+  public synchronized String toString() {
+    return "(sizes entries="+sizes.size()+")";
+  }
+}
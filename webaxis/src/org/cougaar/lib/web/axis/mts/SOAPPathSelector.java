@@ -0,0 +1,202 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 1997-2004 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+
+package org.cougaar.lib.web.axis.mts;
+
+/**
+ * Chooses between sending a {@link SOAPLinkProtocol} message
+ * inline as SOAPData or as an attachment, based on the measured
+ * cost of each path for similarly-sized messages.
+ * <p>
+ * Message sizes are grouped into power-of-two buckets.  For each
+ * bucket we keep a moving average of the send time, from encoding
+ * through the remote reply, of both paths.  Until both paths have
+ * {@link #MIN_SAMPLES} samples in a bucket we alternate between
+ * them, after which we pick the cheaper path and still try the
+ * other path once every {@link #EXPLORE_INTERVAL} messages in case
+ * the costs have changed.
+ * <p>
+ * Messages smaller than {@link #MIN_ADAPTIVE_LENGTH} are always
+ * sent inline, and messages of at least <i>maxInlineLength</i> are
+ * always sent as attachments, since the XML parser runs out of
+ * memory for large inline messages.
+ * <p>
+ * Each destination link has its own selector, so the send times
+ * of fast and slow targets aren't mixed.
+ */
+final class SOAPPathSelector {
+
+  static final int MIN_ADAPTIVE_LENGTH = 1<<10;
+
+  private static final int MIN_SAMPLES = 4;
+  private static final int EXPLORE_INTERVAL = 16;
+  private static final double ALPHA = 0.1;
+
+  private final int defaultLength;
+  private final int maxInlineLength;
+  private final boolean adaptive;
+
+  // indexed by log2(size), guarded by "this"
+  private final Bucket[] buckets = new Bucket[32];
+
+  /**
+   * @param fixedLength if non-negative, always use this threshold
+   *   and disable the adaptive selection
+   * @param defaultLength the threshold to report until we have
+   *   measurements
+   * @param maxInlineLength the size at which messages must be
+   *   sent as attachments
+   */
+  public SOAPPathSelector(
+      int fixedLength, int defaultLength, int maxInlineLength) {
+    this.adaptive = (fixedLength < 0);
+    this.defaultLength = (adaptive ? defaultLength : fixedLength);
+    this.maxInlineLength = maxInlineLength;
+  }
+
+  /** @return true if the message should be sent as an attachment */
+  public boolean isBigMessage(int length) {
+    return isBigMessage(length, null);
+  }
+
+  /**
+   * @param sample if not null, set to true if the send time of
+   *   the selected path must be {@link #record}ed, since we're
+   *   still learning or are trying the other path
+   * @return true if the message should be sent as an attachment
+   */
+  public boolean isBigMessage(int length, boolean[] sample) {
+    if (!adaptive) {
+      return length >= defaultLength;
+    }
+    if (length < MIN_ADAPTIVE_LENGTH) {
+      return false;
+    }
+    if (length >= maxInlineLength) {
+      return true;
+    }
+    synchronized (this) {
+      Bucket b = getBucket(length);
+      b.selections++;
+      int nsmall = b.count[0];
+      int nbig = b.count[1];
+      if (nsmall < MIN_SAMPLES || nbig < MIN_SAMPLES) {
+        // learning, try the path with fewer samples
+        if (sample != null) {
+          sample[0] = true;
+        }
+        return nbig < nsmall;
+      }
+      boolean big = (b.mean[1] < b.mean[0]);
+      if ((b.selections % EXPLORE_INTERVAL) == 0) {
+        // occasionally try the other path
+        big = !big;
+        if (sample != null) {
+          sample[0] = true;
+        }
+      }
+      return big;
+    }
+  }
+
+  /**
+   * Record the time in nanoseconds to send a message of the given
+   * length.
+   */
+  public void record(int length, boolean isBigMessage, long nanos) {
+    if (!adaptive ||
+        length < MIN_ADAPTIVE_LENGTH ||
+        length >= maxInlineLength) {
+      return;
+    }
+    synchronized (this) {
+      Bucket b = getBucket(length);
+      int i = (isBigMessage ? 1 : 0);
+      if (b.count[i]++ == 0) {
+        b.mean[i] = nanos;
+      } else {
+        b.mean[i] += ALPHA * (nanos - b.mean[i]);
+      }
+    }
+  }
+
+  /**
+   * @return the learned cutover size, which is the smallest size
+   * bucket where attachments are measured to be cheaper than inline
+   * messages, or the default threshold if we haven't learned it yet.
+   */
+  public synchronized int getCutover() {
+    if (!adaptive) {
+      return defaultLength;
+    }
+    for (int i = 0; i < buckets.length; i++) {
+      Bucket b = buckets[i];
+      if (b != null &&
+          b.count[0] >= MIN_SAMPLES &&
+          b.count[1] >= MIN_SAMPLES &&
+          b.mean[1] < b.mean[0]) {
+        return (1 << i);
+      }
+    }
+    return Math.min(defaultLength, maxInlineLength);
+  }
+
+  public synchronized String toString() {
+    StringBuffer buf = new StringBuffer();
+    buf.append("(cutover=").append(getCutover());
+    for (int i = 0; i < buckets.length; i++) {
+      Bucket b = buckets[i];
+      if (b == null) {
+        continue;
+      }
+      buf.append(" ").append(1 << i).append("={inline=");
+      buf.append((long) b.mean[0]/1000).append("us/").append(b.count[0]);
+      buf.append(", attachment=");
+      buf.append((long) b.mean[1]/1000).append("us/").append(b.count[1]);
+      buf.append("}");
+    }
+    buf.append(")");
+    return buf.toString();
+  }
+
+  // guarded by "this"
+  private Bucket getBucket(int length) {
+    int i = 31 - Integer.numberOfLeadingZeros(length);
+    Bucket b = buckets[i];
+    if (b == null) {
+      b = new Bucket();
+      buckets[i] = b;
+    }
+    return b;
+  }
+
+  private static final class Bucket {
+    // indexed by 0 for inline, 1 for attachment
+    public final int[] count = new int[2];
+    public final double[] mean = new double[2];
+    public int selections;
+  }
+}
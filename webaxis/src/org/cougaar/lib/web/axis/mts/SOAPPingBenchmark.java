@@ -0,0 +1,559 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 1997-2004 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+
+package org.cougaar.lib.web.axis.mts;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import javax.net.ssl.SSLServerSocketFactory;
+
+import org.apache.axis.EngineConfiguration;
+import org.apache.axis.WSDDEngineConfiguration;
+import org.apache.axis.deployment.wsdd.WSDDDocument;
+import org.apache.axis.server.AxisServer;
+import org.apache.axis.transport.http.SimpleAxisServer;
+import org.apache.axis.utils.XMLUtils;
+import org.cougaar.core.component.ServiceBroker;
+import org.cougaar.core.mts.Message;
+import org.cougaar.core.mts.MessageAddress;
+import org.cougaar.core.mts.MessageAttributes;
+import org.cougaar.core.service.LoggingService;
+import org.cougaar.core.service.ThreadService;
+import org.cougaar.core.service.WebServicesService;
+import org.cougaar.core.thread.Schedulable;
+import org.cougaar.mts.base.AttributedMessage;
+import org.cougaar.mts.base.MessageDeliverer;
+import org.cougaar.mts.base.MessageTransportRegistryService;
+import org.cougaar.mts.base.NameSupport;
+
+/**
+ * A command-line two-node localhost ping benchmark for the
+ * {@link SOAPLinkProtocol}, reporting throughput and latency
+ * percentiles.
+ * <p>
+ * Starting two full nodes requires a society configuration, so
+ * here two instances of the real link protocol play both nodes in
+ * one JVM, bound to stand-in node services: a ThreadService, the
+ * MTS registry, name support and deliverer, and the servlet and
+ * web services of an Axis SimpleAxisServer on a localhost socket.
+ * The receiving node registers its real {@link SOAPMT} and deploys
+ * our MT_WSDD into that server, and the sending node sends each
+ * {@link AttributedMessage} through its real destination link, so
+ * the link's path selection, codecs, class cache, batching,
+ * one-way and chunked sends, call pools and circuit breaker are
+ * all measured.  These are configured with the usual
+ * "org.cougaar.lib.web.axis.mts.*" system properties, except for
+ * the "binary" transport, which needs the node's servlet, and the
+ * "asyncWindow", whose retries look up the target in the WP.
+ * <p>
+ * Each timed send is one message plus its acknowledgement, so a
+ * ping and its reply in the two-node test is two sends.  With
+ * "-ssl=1" the nodes use the {@link SSLSOAPLinkProtocol} and the
+ * receiver uses the JSSE default SSLServerSocket, which requires the
+ * usual "javax.net.ssl.keyStore" and "javax.net.ssl.trustStore"
+ * system properties.  With "-oneWay=1" each message asks for
+ * one-way delivery.
+ * <p>
+ * One line of comma-separated results is appended to the
+ * "-out" file, with a header line if the file is new, so runs
+ * can be compared.
+ * <p>
+ * To run:<pre>
+ *   CP="$CIP/lib/webaxis.jar:$CIP/lib/core.jar:$CIP/lib/util.jar:$CIP/lib/bootstrap.jar:$CIP/sys/axis_1_2_beta.jar:..."
+ *   CL="org.cougaar.lib.web.axis.mts.SOAPPingBenchmark"
+ *   java -classpath $CP [-Dorg.cougaar.lib.web.axis.mts.*=..] $CL
+ *     [-size=BYTES] [-warmup=N] [-iterations=N] [-threads=N]
+ *     [-ssl=0|1] [-keepAlive=0|1] [-oneWay=0|1]
+ *     [-bigMessageLength=BYTES] [-out=FILE]
+ * </pre>
+ */
+public class SOAPPingBenchmark {
+
+  private static final String HEADER =
+    "time,protocol,size,threads,keepAlive,iterations,"+
+    "msgs_per_sec,bytes_per_sec,p50_us,p99_us,max_us";
+
+  private static final MessageAddress SOURCE =
+    MessageAddress.getMessageAddress("PingSender");
+  private static final MessageAddress TARGET =
+    MessageAddress.getMessageAddress("PingReceiver");
+
+  public static void main(String[] args) throws Exception {
+    int size = SOAPBenchmark.getInt(args, "size", 2048);
+    int warmup = SOAPBenchmark.getInt(args, "warmup", 200);
+    int iterations = SOAPBenchmark.getInt(args, "iterations", 2000);
+    int threads = SOAPBenchmark.getInt(args, "threads", 1);
+    boolean ssl = (SOAPBenchmark.getInt(args, "ssl", 0) != 0);
+    boolean keepAlive = (SOAPBenchmark.getInt(args, "keepAlive", 0) != 0);
+    final boolean oneWay = (SOAPBenchmark.getInt(args, "oneWay", 0) != 0);
+    int bigMessageLength =
+      SOAPBenchmark.getInt(args, "bigMessageLength", -1);
+    String out =
+      SOAPBenchmark.getString(args, "out", "soap-ping-benchmark.csv");
+
+    // our link protocol reads these when its class is loaded
+    if (keepAlive) {
+      System.setProperty("org.cougaar.lib.web.axis.mts.keepAlive", "true");
+    }
+    if (bigMessageLength >= 0) {
+      System.setProperty(
+          "org.cougaar.lib.web.axis.mts.bigMessageLength",
+          Integer.toString(bigMessageLength));
+    }
+
+    // start the receiving node
+    ServerSocket ss =
+      (ssl ?
+       SSLServerSocketFactory.getDefault().createServerSocket(0) :
+       new ServerSocket(0));
+    SimpleAxisServer server = new SimpleAxisServer();
+    server.setServerSocket(ss);
+    server.start(true);
+    Timer timer = new Timer(true);
+    SOAPLinkProtocol receiver = createProtocol(ssl);
+    receiver.setServiceBroker(
+        new Node(TARGET, server, ss.getLocalPort(), ssl, timer).sb);
+    receiver.initialize();
+    receiver.load();
+    receiver.start();
+    // as if an agent registered on the node
+    receiver.ensureNodeServant();
+    URI uri = receiver.getLocalURI();
+    if (uri == null) {
+      throw new RuntimeException("Receiver didn't register");
+    }
+
+    // create the sending node's link to the receiver, as if the MTS
+    // had found the receiver's URI in the WP
+    SOAPLinkProtocol sender = createProtocol(ssl);
+    sender.setServiceBroker(new Node(SOURCE, null, -1, ssl, timer).sb);
+    sender.initialize();
+    sender.load();
+    sender.start();
+    final SOAPLinkProtocol.SOAPDestinationLink link =
+      (SOAPLinkProtocol.SOAPDestinationLink)
+      sender.createDestinationLink(TARGET);
+    final URL url = (URL) link.decodeRemoteRef(uri);
+
+    final byte[] payload = new byte[size];
+    new Random(size).nextBytes(payload);
+
+    // warm up
+    for (int i = 0; i < warmup; i++) {
+      send(link, url, payload, oneWay);
+    }
+
+    // run
+    final long[] latencies = new long[iterations];
+    int perThread = iterations / threads;
+    Thread[] workers = new Thread[threads];
+    final Exception[] failure = new Exception[1];
+    long start = System.nanoTime();
+    for (int t = 0; t < threads; t++) {
+      final int offset = t * perThread;
+      final int count = (t == threads - 1 ? iterations - offset : perThread);
+      workers[t] = new Thread("ping-"+t) {
+        public void run() {
+          try {
+            for (int i = 0; i < count; i++) {
+              long t0 = System.nanoTime();
+              send(link, url, payload, oneWay);
+              latencies[offset + i] = System.nanoTime() - t0;
+            }
+          } catch (Exception e) {
+            synchronized (failure) {
+              failure[0] = e;
+            }
+          }
+        }
+      };
+      workers[t].start();
+    }
+    for (int t = 0; t < threads; t++) {
+      workers[t].join();
+    }
+    long elapsed = System.nanoTime() - start;
+    sender.unload();
+    receiver.unload();
+    server.stop();
+    timer.cancel();
+    if (failure[0] != null) {
+      throw failure[0];
+    }
+
+    // report
+    Arrays.sort(latencies);
+    double seconds = elapsed / 1e9;
+    double msgsPerSec = iterations / seconds;
+    long p50 = latencies[iterations * 50 / 100] / 1000;
+    long p99 = latencies[Math.min(iterations - 1, iterations * 99 / 100)] / 1000;
+    long max = latencies[iterations - 1] / 1000;
+    String protocol = (ssl ? "SSLSOAP" : "SOAP");
+    System.out.println(
+        protocol+" size="+size+" threads="+threads+
+        " keepAlive="+keepAlive+" oneWay="+oneWay+
+        " iterations="+iterations+
+        " msgs/sec="+((long) msgsPerSec)+
+        " p50="+p50+"us p99="+p99+"us max="+max+"us");
+    System.out.println(
+        "Link stats: "+link.getLinkStats()+
+        ", big message cutover="+sender.getBigMessageCutover());
+
+    File f = new File(out);
+    boolean isNew = !f.exists();
+    PrintWriter pw = new PrintWriter(new FileWriter(f, true));
+    if (isNew) {
+      pw.println(HEADER);
+    }
+    pw.println(
+        System.currentTimeMillis()+","+protocol+","+size+","+
+        threads+","+keepAlive+","+iterations+","+
+        ((long) msgsPerSec)+","+((long) (msgsPerSec * size))+","+
+        p50+","+p99+","+max);
+    pw.close();
+    System.out.println("Appended results to "+f.getAbsolutePath());
+  }
+
+  private static SOAPLinkProtocol createProtocol(boolean ssl) {
+    return (ssl ? new SSLSOAPLinkProtocol() : new SOAPLinkProtocol());
+  }
+
+  /** Send a ping through the link, as the MTS does. */
+  private static void send(
+      SOAPLinkProtocol.SOAPDestinationLink link, URL url,
+      byte[] payload, boolean oneWay) throws Exception {
+    AttributedMessage message =
+      new AttributedMessage(new PingMessage(SOURCE, TARGET, payload));
+    if (oneWay) {
+      message.setAttribute(
+          SOAPLinkProtocol.ONE_WAY_ATTRIBUTE, Boolean.TRUE);
+    }
+    MessageAttributes result = link.forwardByProtocol(url, message);
+    if (result == null) {
+      throw new RuntimeException("Ping failed");
+    }
+  }
+
+  /**
+   * The services of one stand-in node, which answers each service
+   * request with a proxy that dispatches on the method name.
+   */
+  private static final class Node implements InvocationHandler {
+
+    private final MessageAddress addr;
+    private final SimpleAxisServer server;
+    private final int port;
+    private final boolean ssl;
+    private final Timer timer;
+    private final ServiceBroker sb;
+
+    public Node(
+        MessageAddress addr, SimpleAxisServer server, int port,
+        boolean ssl, Timer timer) {
+      this.addr = addr;
+      this.server = server;
+      this.port = port;
+      this.ssl = ssl;
+      this.timer = timer;
+      this.sb = (ServiceBroker) proxy(ServiceBroker.class, this);
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) {
+      String name = method.getName();
+      if (method.getDeclaringClass() == Object.class) {
+        return (name.equals("equals") ? Boolean.valueOf(proxy == args[0]) :
+                name.equals("hashCode") ?
+                new Integer(System.identityHashCode(proxy)) :
+                "(node "+addr+")");
+      }
+      Object ret = null;
+      if (name.equals("getService")) {
+        ret = getService((Class) args[1]);
+      } else if (name.equals("hasService")) {
+        ret = Boolean.valueOf(
+            WebServicesService.class.equals(args[0]) && server != null);
+      } else if (name.equals("addService")) {
+        ret = Boolean.TRUE;
+      }
+      return (ret == null ? getDefault(method.getReturnType()) : ret);
+    }
+
+    private Object getService(Class cl) {
+      if (cl.equals(LoggingService.class)) {
+        return proxy(cl, new InvocationHandler() {
+          public Object invoke(Object p, Method m, Object[] a) {
+            String s = m.getName();
+            if (s.startsWith("is")) {
+              // warnings and errors
+              return Boolean.valueOf(
+                  s.equals("isWarnEnabled") || s.equals("isErrorEnabled"));
+            }
+            if (a != null && a.length > 0 &&
+                (s.equals("warn") || s.equals("error") ||
+                 s.equals("shout"))) {
+              System.err.println(addr+" "+s+": "+a[0]);
+              if (a.length > 1 && a[1] instanceof Throwable) {
+                ((Throwable) a[1]).printStackTrace();
+              }
+            }
+            return getDefault(m.getReturnType());
+          }
+        });
+      }
+      if (cl.equals(ThreadService.class)) {
+        return proxy(cl, new InvocationHandler() {
+          public Object invoke(Object p, Method m, Object[] a) {
+            if (m.getName().equals("getThread")) {
+              Runnable r = (Runnable) a[1];
+              return proxy(
+                  Schedulable.class,
+                  new Task(r, (a.length > 2 ? (String) a[2] : "task")));
+            }
+            return getDefault(m.getReturnType());
+          }
+        });
+      }
+      if (cl.equals(NameSupport.class)) {
+        return proxy(cl, new InvocationHandler() {
+          public Object invoke(Object p, Method m, Object[] a) {
+            return
+              (m.getName().equals("getNodeMessageAddress") ?
+               addr : getDefault(m.getReturnType()));
+          }
+        });
+      }
+      if (cl.equals(MessageTransportRegistryService.class)) {
+        return proxy(cl, new InvocationHandler() {
+          public Object invoke(Object p, Method m, Object[] a) {
+            String s = m.getName();
+            if (s.equals("isLocalClient")) {
+              MessageAddress target = (MessageAddress) a[0];
+              return Boolean.valueOf(
+                  addr.equals(target == null ? null : target.getPrimary()));
+            }
+            if (s.equals("getLocalAddress")) {
+              return addr;
+            }
+            return getDefault(m.getReturnType());
+          }
+        });
+      }
+      if (cl.equals(MessageDeliverer.class)) {
+        return proxy(cl, new InvocationHandler() {
+          public Object invoke(Object p, Method m, Object[] a) {
+            if (m.getName().equals("deliverMessage")) {
+              MessageAttributes attrs =
+                ((AttributedMessage) a[0]).cloneAttributes();
+              attrs.setAttribute(
+                  MessageAttributes.DELIVERY_ATTRIBUTE,
+                  MessageAttributes.DELIVERY_STATUS_DELIVERED);
+              return attrs;
+            }
+            return getDefault(m.getReturnType());
+          }
+        });
+      }
+      if (server == null) {
+        // the sender doesn't receive
+        return null;
+      }
+      if (cl.equals(WebServicesService.class)) {
+        return proxy(cl, new InvocationHandler() {
+          public Object invoke(Object p, Method m, Object[] a) {
+            if (m.getName().equals("processWSDD") &&
+                a[0] instanceof String) {
+              deploy((String) a[0]);
+            }
+            return getDefault(m.getReturnType());
+          }
+        });
+      }
+      if (cl.getName().endsWith("ServletService")) {
+        // our server's port, e.g. "getHttpPort()"
+        final String getPort =
+          "get"+(ssl ? "Https" : "Http")+"Port";
+        return proxy(cl, new InvocationHandler() {
+          public Object invoke(Object p, Method m, Object[] a) {
+            String s = m.getName();
+            if (s.endsWith("Port")) {
+              return new Integer(s.equals(getPort) ? port : -1);
+            }
+            return getDefault(m.getReturnType());
+          }
+        });
+      }
+      return null;
+    }
+
+    /** Deploy a WSDD into our server, as the WebServicesProvider does. */
+    private void deploy(String wsdd) {
+      try {
+        AxisServer engine = server.getAxisServer();
+        WSDDDocument wsddDoc = new WSDDDocument(
+            XMLUtils.newDocument(
+              new ByteArrayInputStream(wsdd.getBytes())));
+        EngineConfiguration config = engine.getConfig();
+        if (!(config instanceof WSDDEngineConfiguration)) {
+          throw new RuntimeException(
+              "Unable to deploy into Axis config "+config);
+        }
+        wsddDoc.deploy(((WSDDEngineConfiguration) config).getDeployment());
+        engine.refreshGlobalOptions();
+      } catch (RuntimeException e) {
+        throw e;
+      } catch (Exception e) {
+        throw new RuntimeException("Unable to deploy WSDD", e);
+      }
+    }
+
+    /**
+     * A minimal Schedulable: each "start" runs the task once more
+     * on its own thread, and "schedule" starts it after a delay.
+     */
+    private final class Task implements InvocationHandler {
+      private final Runnable r;
+      private final String name;
+      // guarded by "this"
+      private boolean pending;
+      private boolean running;
+      private boolean cancelled;
+      private TimerTask timerTask;
+
+      public Task(Runnable r, String name) {
+        this.r = r;
+        this.name = name;
+      }
+
+      public Object invoke(Object p, Method m, Object[] a) {
+        String s = m.getName();
+        if (s.equals("start")) {
+          start();
+        } else if (s.equals("schedule")) {
+          schedule(((Long) a[0]).longValue());
+        } else if (s.equals("cancel")) {
+          return Boolean.valueOf(cancel());
+        } else if (s.equals("cancelTimer")) {
+          cancelTimer();
+        }
+        return getDefault(m.getReturnType());
+      }
+
+      private void start() {
+        synchronized (this) {
+          cancelled = false;
+          if (pending) {
+            return;
+          }
+          pending = true;
+          if (running) {
+            // our thread runs again
+            return;
+          }
+          running = true;
+        }
+        Thread t = new Thread(name) {
+          public void run() {
+            while (true) {
+              synchronized (Task.this) {
+                if (!pending || cancelled) {
+                  pending = false;
+                  running = false;
+                  return;
+                }
+                pending = false;
+              }
+              r.run();
+            }
+          }
+        };
+        t.setDaemon(true);
+        t.start();
+      }
+
+      private synchronized void schedule(long delay) {
+        cancelTimer();
+        timerTask = new TimerTask() {
+          public void run() {
+            start();
+          }
+        };
+        timer.schedule(timerTask, Math.max(0, delay));
+      }
+
+      private synchronized boolean cancel() {
+        cancelled = true;
+        pending = false;
+        cancelTimer();
+        return !running;
+      }
+
+      private synchronized void cancelTimer() {
+        if (timerTask != null) {
+          timerTask.cancel();
+          timerTask = null;
+        }
+      }
+    }
+
+    private static Object proxy(Class cl, InvocationHandler h) {
+      return Proxy.newProxyInstance(
+          SOAPPingBenchmark.class.getClassLoader(), new Class[] {cl}, h);
+    }
+
+    private static Object getDefault(Class cl) {
+      if (cl == Boolean.TYPE) {
+        return Boolean.FALSE;
+      } else if (cl == Integer.TYPE) {
+        return new Integer(0);
+      } else if (cl == Long.TYPE) {
+        return new Long(0);
+      }
+      return null;
+    }
+  }
+
+  private static final class PingMessage extends Message {
+    private final byte[] payload;
+    public PingMessage(
+        MessageAddress source, MessageAddress target, byte[] payload) {
+      super(source, target);
+      this.payload = payload;
+    }
+  }
+}
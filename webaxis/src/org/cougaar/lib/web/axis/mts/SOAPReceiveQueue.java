@@ -0,0 +1,271 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 1997-2004 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+
+package org.cougaar.lib.web.axis.mts;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.cougaar.core.mts.MessageAddress;
+import org.cougaar.core.service.LoggingService;
+import org.cougaar.core.service.ThreadService;
+import org.cougaar.core.thread.Schedulable;
+import org.cougaar.mts.base.AttributedMessage;
+
+/**
+ * A bounded receive pipeline that decouples the delivery of
+ * received messages from the web server threads.
+ * <p>
+ * Each accepted message is added to the queue of its target
+ * agent, and the web server thread returns as soon as the message
+ * is queued.  A queued message may still be encoded, in which case
+ * the deliverer decodes it on the queue's thread.  Each queue is drained in order by its own
+ * {@link Schedulable}, so the ThreadService lane bounds the
+ * number of concurrent deliveries, and a slow agent only delays
+ * its own messages.  Since a sender's messages are queued in the
+ * order they were received, and the {@link SOAPSequencer} orders
+ * async messages before they are queued, per-sender order is
+ * preserved.
+ * <p>
+ * If the target's queue or the total of all queues is full, the
+ * message is rejected and the receiver replies with a
+ * {@link BusyException}, which the sender treats as a retryable
+ * failure.
+ * <p>
+ * A queued message has already been acknowledged, so {@link #stop}
+ * delivers the remaining messages instead of dropping them.
+ */
+final class SOAPReceiveQueue {
+
+  // maximum deliveries per run, so other lanes get a turn
+  private static final int MAX_BATCH = 32;
+
+  /** The receiver's callback to deliver a message. */
+  interface Deliverer {
+    /**
+     * @param message the queued message, e.g. an AttributedMessage
+     * @return the delivery result, which is MessageAttributes if
+     *   the message was delivered
+     */
+    Object deliver(Object message);
+  }
+
+  /**
+   * The result returned to a sender if the message was rejected
+   * because the queues are full.
+   */
+  static final class BusyException extends IOException {
+    private final long retryAfter;
+    public BusyException(long retryAfter) {
+      super("Target is busy, retry after "+retryAfter+" millis");
+      this.retryAfter = retryAfter;
+    }
+    /** @return the suggested retry delay in milliseconds */
+    public long getRetryAfter() {
+      return retryAfter;
+    }
+  }
+
+  private final Deliverer deliverer;
+  private final ThreadService threadService;
+  private final LoggingService logger;
+  private final int maxPerTarget;
+  private final int maxTotal;
+
+  // map from target MessageAddress to Queue, guarded by "this"
+  private final Map queues = new HashMap();
+  private int total;
+  private boolean stopped;
+
+  public SOAPReceiveQueue(
+      Deliverer deliverer,
+      ThreadService threadService,
+      LoggingService logger,
+      int maxPerTarget,
+      int maxTotal) {
+    this.deliverer = deliverer;
+    this.threadService = threadService;
+    this.logger = logger;
+    this.maxPerTarget = maxPerTarget;
+    this.maxTotal = maxTotal;
+    if (maxPerTarget <= 0 || maxTotal <= 0) {
+      throw new IllegalArgumentException(
+          "Invalid queue limits: "+maxPerTarget+", "+maxTotal);
+    }
+  }
+
+  /**
+   * Queue a message for delivery.
+   *
+   * @return false if the queues are full
+   */
+  public boolean offer(AttributedMessage message) {
+    return offer(message.getTarget(), message);
+  }
+
+  /**
+   * Queue a message for delivery, e.g. a message that hasn't been
+   * decoded yet.
+   *
+   * @param target the message's target
+   * @return false if the queues are full
+   */
+  public boolean offer(MessageAddress target, Object message) {
+    target = target.getPrimary();
+    Queue q;
+    synchronized (this) {
+      if (stopped || total >= maxTotal) {
+        return false;
+      }
+      q = (Queue) queues.get(target);
+      if (q == null) {
+        q = new Queue(target);
+        queues.put(target, q);
+      } else if (q.messages.size() >= maxPerTarget) {
+        return false;
+      }
+      q.messages.add(message);
+      total++;
+    }
+    // a no-op if the queue's thread is already pending, otherwise
+    // it runs again after its current run
+    q.thread.start();
+    return true;
+  }
+
+  /** @return the total number of queued messages */
+  public synchronized int size() {
+    return total;
+  }
+
+  /**
+   * Stop accepting messages and deliver the queued messages in the
+   * caller's thread.
+   */
+  public void stop() {
+    List l;
+    synchronized (this) {
+      stopped = true;
+      l = new ArrayList(queues.values());
+      queues.clear();
+    }
+    int n = 0;
+    for (int i = 0; i < l.size(); i++) {
+      Queue q = (Queue) l.get(i);
+      q.thread.cancel();
+      List messages;
+      synchronized (this) {
+        // wait for the queue's current delivery, to keep the order
+        while (q.busy) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            break;
+          }
+        }
+        messages = new ArrayList(q.messages);
+        q.messages.clear();
+        total -= messages.size();
+      }
+      for (int j = 0; j < messages.size(); j++) {
+        q.deliver(messages.get(j));
+      }
+      n += messages.size();
+    }
+    if (n > 0 && logger.isInfoEnabled()) {
+      logger.info("Delivered "+n+" queued received messages on stop");
+    }
+  }
+
+  public synchronized String toString() {
+    return
+      "(receive-queue targets="+queues.size()+
+      " total="+total+"/"+maxTotal+")";
+  }
+
+  private final class Queue implements Runnable {
+
+    private final MessageAddress target;
+    // guarded by the SOAPReceiveQueue
+    private final LinkedList messages = new LinkedList();
+    private boolean busy;
+    private final Schedulable thread;
+
+    public Queue(MessageAddress target) {
+      this.target = target;
+      this.thread = threadService.getThread(
+          SOAPReceiveQueue.this, this, "SOAP receive for "+target,
+          ThreadService.WILL_BLOCK_LANE);
+    }
+
+    public void run() {
+      for (int i = 0; i < MAX_BATCH; i++) {
+        Object message;
+        synchronized (SOAPReceiveQueue.this) {
+          if (stopped || messages.isEmpty()) {
+            // idle, a later message will create a new queue, or
+            // "stop" delivers the rest
+            if (queues.get(target) == this) {
+              queues.remove(target);
+            }
+            return;
+          }
+          message = messages.removeFirst();
+          total--;
+          busy = true;
+        }
+        try {
+          deliver(message);
+        } finally {
+          synchronized (SOAPReceiveQueue.this) {
+            busy = false;
+            SOAPReceiveQueue.this.notifyAll();
+          }
+        }
+      }
+      // yield to other queues
+      thread.start();
+    }
+
+    private void deliver(Object message) {
+      Object result = deliverer.deliver(message);
+      if (result instanceof Exception) {
+        // we've already acknowledged the message, and the deliverer
+        // has already tried to forward it
+        if (logger.isErrorEnabled()) {
+          logger.error(
+              "Unable to deliver queued message "+message+
+              " to "+target,
+              (Exception) result);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,323 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 1997-2004 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+
+package org.cougaar.lib.web.axis.mts;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.cougaar.core.mts.AttributeConstants;
+import org.cougaar.core.mts.MessageAttributes;
+import org.cougaar.core.service.LoggingService;
+import org.cougaar.core.service.ThreadService;
+import org.cougaar.core.thread.Schedulable;
+import org.cougaar.core.thread.SchedulableStatus;
+import org.cougaar.mts.base.AttributedMessage;
+import org.cougaar.mts.base.MisdeliveredMessageException;
+
+/**
+ * A bounded window of asynchronous, pipelined sends for a single
+ * {@link SOAPLinkProtocol} destination link.
+ * <p>
+ * The MTS calls our link with one message at a time per target,
+ * and normally blocks for the full SOAP round trip.  In async mode
+ * the link instead hands each message to this window and returns
+ * immediately, so up to <i>window</i> messages are in flight at
+ * once.  The caller blocks only while the window is full.
+ * <p>
+ * Once accepted, a message is owned by the window, which retries
+ * it with exponential backoff until the remote node returns
+ * {@link MessageAttributes}.  Each attempt looks up the target's
+ * address, so a {@link MisdeliveredMessageException} is retried
+ * at the agent's new address after the sender has flushed its
+ * cached address.  A message is dropped after <i>maxAttempts</i>
+ * or once its send deadline has passed.
+ * <p>
+ * Concurrent sends may arrive out of order, so each message is
+ * tagged with a {@link #SEQUENCE_ATTRIBUTE} that the receiver's
+ * {@link SOAPSequencer} uses to deliver in order.  A message that
+ * the receiver rejected as out of order is retried after the
+ * minimum backoff, without counting as a failed attempt.  The attribute
+ * value is "<i>stream:seq:base</i>", where <i>base</i> is the
+ * lowest sequence number that is still in flight, so a receiver
+ * can skip sequence numbers that were dropped or delivered
+ * elsewhere.
+ */
+final class SOAPSendWindow {
+
+  /** The message attribute that holds our sequence tag. */
+  static final String SEQUENCE_ATTRIBUTE =
+    "org.cougaar.lib.web.axis.mts.SOAPSequence";
+
+  /** The link's callback to send a message. */
+  interface Sender {
+    /**
+     * Send the message, which has its sequence attribute set, to
+     * the target's current address.
+     *
+     * @return the remote attributes
+     */
+    MessageAttributes send(AttributedMessage message) throws Exception;
+
+    /** Flush the cached remote address after a misdelivery. */
+    void flushRemoteReference();
+  }
+
+  private final String name;
+  private final Sender sender;
+  private final ThreadService threadService;
+  private final LoggingService logger;
+  private final int window;
+  private final long minRetry;
+  private final long maxRetry;
+  private final int maxAttempts;
+
+  // our unique stream identifier
+  private final String streamId;
+
+  // guarded by "this"
+  private long nextSeq;
+  private final List inFlight = new ArrayList();
+  private boolean stopped;
+
+  public SOAPSendWindow(
+      String name,
+      Sender sender,
+      ThreadService threadService,
+      LoggingService logger,
+      int window,
+      long minRetry,
+      long maxRetry,
+      int maxAttempts) {
+    this.name = name;
+    this.sender = sender;
+    this.threadService = threadService;
+    this.logger = logger;
+    this.window = window;
+    this.minRetry = minRetry;
+    this.maxRetry = maxRetry;
+    this.maxAttempts = maxAttempts;
+    if (window <= 0 || maxAttempts <= 0) {
+      throw new IllegalArgumentException(
+          "Invalid window: "+window+", max attempts: "+maxAttempts);
+    }
+    this.streamId =
+      Long.toString(System.currentTimeMillis(), 36)+"-"+
+      Integer.toString(System.identityHashCode(this), 36);
+  }
+
+  /**
+   * Accept a message for asynchronous delivery, blocking while the
+   * window is full.
+   *
+   * @throws IOException if the window is stopped
+   */
+  public void submit(AttributedMessage message) throws IOException {
+    Entry e;
+    synchronized (this) {
+      if (!stopped && inFlight.size() >= window) {
+        SchedulableStatus.beginWait("SOAP send window full");
+        try {
+          while (!stopped && inFlight.size() >= window) {
+            try {
+              wait();
+            } catch (InterruptedException ie) {
+              throw new InterruptedIOException(
+                  "Interrupted waiting for SOAP send window");
+            }
+          }
+        } finally {
+          SchedulableStatus.endBlocking();
+        }
+      }
+      if (stopped) {
+        throw new IOException("SOAP send window to "+name+" is stopped");
+      }
+      e = new Entry(message, nextSeq++);
+      // set before "stop" can see the entry
+      e.thread = threadService.getThread(
+          this, e, "SOAP async send to "+name,
+          ThreadService.WILL_BLOCK_LANE);
+      inFlight.add(e);
+    }
+    e.thread.start();
+  }
+
+  /** @return the number of messages in flight */
+  public synchronized int size() {
+    return inFlight.size();
+  }
+
+  /**
+   * Cancel our sends, e.g. because our protocol is unloaded, and
+   * reject further messages.
+   */
+  public void stop() {
+    List l;
+    synchronized (this) {
+      stopped = true;
+      l = new ArrayList(inFlight);
+      inFlight.clear();
+      notifyAll();
+    }
+    for (int i = 0; i < l.size(); i++) {
+      Schedulable t = ((Entry) l.get(i)).thread;
+      t.cancelTimer();
+      t.cancel();
+    }
+    if (!l.isEmpty() && logger.isWarnEnabled()) {
+      logger.warn(
+          "Stopped SOAP send window to "+name+", dropped "+l.size()+
+          " undelivered messages");
+    }
+  }
+
+  // lowest in-flight sequence number, guarded by "this"
+  private long getBase() {
+    return
+      (inFlight.isEmpty() ?
+       nextSeq :
+       ((Entry) inFlight.get(0)).seq);
+  }
+
+  private void complete(Entry e) {
+    synchronized (this) {
+      inFlight.remove(e);
+      notifyAll();
+    }
+  }
+
+  private final class Entry implements Runnable {
+
+    private final AttributedMessage message;
+    private final long seq;
+    private long retryDelay;
+    private int attempts;
+    private Schedulable thread;
+
+    public Entry(AttributedMessage message, long seq) {
+      this.message = message;
+      this.seq = seq;
+    }
+
+    public void run() {
+      // compute our tag each time, since the base may have moved
+      long base;
+      synchronized (SOAPSendWindow.this) {
+        if (stopped) {
+          return;
+        }
+        base = getBase();
+      }
+      String tag = streamId+":"+seq+":"+base;
+
+      MessageAttributes result = null;
+      Exception failure = null;
+      message.setAttribute(SEQUENCE_ATTRIBUTE, tag);
+      try {
+        result = sender.send(message);
+      } catch (Exception ex) {
+        failure = ex;
+      } finally {
+        message.removeAttribute(SEQUENCE_ATTRIBUTE);
+      }
+
+      if (failure == null) {
+        if (logger.isDetailEnabled()) {
+          logger.detail(
+              "Async send "+tag+" to "+name+" returned "+result);
+        }
+        complete(this);
+        return;
+      }
+
+      if (isMisdelivered(failure)) {
+        sender.flushRemoteReference();
+      }
+      boolean early = isOutOfOrder(failure);
+      if (early) {
+        // our predecessor is still in flight
+        retryDelay = minRetry;
+      } else {
+        retryDelay =
+          (retryDelay <= 0 ? minRetry : Math.min(2*retryDelay, maxRetry));
+      }
+      String reason = null;
+      Object deadline = message.getAttribute(
+          AttributeConstants.MESSAGE_SEND_DEADLINE_ATTRIBUTE);
+      if (!early && ++attempts >= maxAttempts) {
+        reason = "after "+attempts+" attempts";
+      } else if (deadline instanceof Long &&
+          System.currentTimeMillis() + retryDelay >
+          ((Long) deadline).longValue()) {
+        reason = "since its send deadline has passed";
+      }
+      if (reason != null) {
+        complete(this);
+        if (logger.isErrorEnabled()) {
+          logger.error(
+              "Dropped async send "+tag+" from "+
+              message.getOriginator()+" to "+name+" "+reason,
+              failure);
+        }
+        return;
+      }
+      if (logger.isInfoEnabled()) {
+        logger.info(
+            "Async send "+tag+" to "+name+" failed, will retry in "+
+            retryDelay+" millis: "+failure);
+      }
+      synchronized (SOAPSendWindow.this) {
+        if (stopped) {
+          return;
+        }
+        thread.schedule(retryDelay);
+      }
+    }
+  }
+
+  /** @return true if the receiver got the message too early */
+  private static boolean isOutOfOrder(Throwable t) {
+    for (; t != null; t = t.getCause()) {
+      if (t instanceof SOAPSequencer.OutOfOrderException) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** @return true if the failure or its cause is a misdelivery */
+  private static boolean isMisdelivered(Throwable t) {
+    for (; t != null; t = t.getCause()) {
+      if (t instanceof MisdeliveredMessageException) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,156 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 1997-2004 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+
+package org.cougaar.lib.web.axis.mts;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * The receiving side of the {@link SOAPSendWindow}, which delivers
+ * the pipelined messages of each sending stream in sequence order.
+ * <p>
+ * A message that arrives ahead of its predecessor is rejected at
+ * once with an {@link OutOfOrderException}, which the sender's
+ * window retries shortly, so an early message doesn't hold a web
+ * server thread.  A message that was already delivered is
+ * acknowledged without being delivered again.
+ * <p>
+ * Only targets that advertise the sequence feature are sent
+ * sequenced messages.
+ */
+final class SOAPSequencer {
+
+  /** The receiver's callback to deliver a message. */
+  interface Deliverer {
+    /**
+     * @return the delivery result, which is MessageAttributes if
+     *   the message was delivered
+     */
+    Object deliver() throws Exception;
+  }
+
+  /**
+   * The result returned to a sender if a message arrived ahead of
+   * its predecessor, which the sender should retry.
+   */
+  static final class OutOfOrderException extends IOException {
+    public OutOfOrderException(String msg) {
+      super(msg);
+    }
+  }
+
+  private final long idleTimeout;
+
+  // map from stream id to Stream, guarded by "this"
+  private final Map streams = new HashMap();
+  private long lastSweep;
+
+  public SOAPSequencer(long idleTimeout) {
+    this.idleTimeout = idleTimeout;
+  }
+
+  /**
+   * Deliver a message in sequence.
+   *
+   * @param tag the {@link SOAPSendWindow#SEQUENCE_ATTRIBUTE} value
+   * @param d the delivery callback
+   * @param duplicate the result to return if the message was
+   *   already delivered
+   * @return the delivery result, or an {@link OutOfOrderException}
+   *   if the message's predecessor hasn't been delivered yet
+   */
+  public Object deliver(
+      String tag, Deliverer d, Object duplicate) throws Exception {
+    int i = tag.indexOf(':');
+    int j = tag.indexOf(':', i+1);
+    if (i <= 0 || j <= i) {
+      throw new IllegalArgumentException("Invalid sequence tag: "+tag);
+    }
+    String id = tag.substring(0, i);
+    long seq = Long.parseLong(tag.substring(i+1, j));
+    long base = Long.parseLong(tag.substring(j+1));
+
+    Stream s;
+    synchronized (this) {
+      long now = System.currentTimeMillis();
+      sweep(now);
+      s = (Stream) streams.get(id);
+      if (s == null) {
+        s = new Stream(base);
+        streams.put(id, s);
+      }
+      s.lastUsed = now;
+    }
+
+    synchronized (s) {
+      if (base > s.next) {
+        // the sender gave up on or delivered elsewhere everything
+        // below the base
+        s.next = base;
+      }
+      if (seq < s.next) {
+        return duplicate;
+      }
+      if (seq > s.next) {
+        return new OutOfOrderException(
+            "Received "+id+":"+seq+" before "+id+":"+s.next);
+      }
+      // deliver in order
+      Object result = d.deliver();
+      if (!(result instanceof Exception)) {
+        s.next = seq + 1;
+      }
+      return result;
+    }
+  }
+
+  // forget idle streams, guarded by "this"
+  private void sweep(long now) {
+    if (now - lastSweep < idleTimeout) {
+      return;
+    }
+    lastSweep = now;
+    for (Iterator iter = streams.values().iterator(); iter.hasNext(); ) {
+      Stream s = (Stream) iter.next();
+      if (now - s.lastUsed >= idleTimeout) {
+        iter.remove();
+      }
+    }
+  }
+
+  private static final class Stream {
+    // guarded by "this"
+    public long next;
+    // guarded by the SOAPSequencer
+    public long lastUsed;
+    public Stream(long next) {
+      this.next = next;
+    }
+  }
+}
@@ -0,0 +1,362 @@
+/*
+ * <copyright>
+ *  
+ *  Copyright 1997-2004 BBNT Solutions, LLC
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ * 
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ * 
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright>
+ */
+
+package org.cougaar.lib.web.axis.mts;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Pluggable serialization of {@link SOAPLinkProtocol} messages.
+ * <p>
+ * By default messages are written with Java object serialization,
+ * which is unchanged on the wire and is always accepted.  A
+ * message written by any other {@link Codec} starts with a two
+ * byte header: the {@link #MAGIC} byte followed by the codec id.
+ * A sender only uses a codec if the target node lists the codec
+ * name in the "#" fragment of its WP URI, the same way as the
+ * {@link SOAPCompression} codecs.
+ * <p>
+ * The built-in "compact" codec replaces the class descriptors of
+ * the common MTS message types with registered ids.  Additional
+ * codecs can be plugged in by listing their class names in the
+ * "org.cougaar.lib.web.axis.mts.codecs" system property.
+ */
+public final class SOAPSerialization {
+
+  /**
+   * The first byte of a codec-encoded message, distinct from
+   * 0xAC (Java serialization), {@link SOAPCompression#MAGIC} and
+   * {@link SOAPClassCache#MAGIC}.
+   */
+  static final int MAGIC = 0x5B;
+
+  /** A message serialization format. */
+  public interface Codec {
+    /**
+     * @return the name advertised in the WP URI, which must change
+     *   if the wire format changes
+     */
+    String getName();
+    /** @return the header id byte, between 1 and 255 */
+    int getId();
+    /** Write an object, without our header, and close the stream. */
+    void writeObject(OutputStream os, Object obj) throws IOException;
+    /** Read an object written by {@link #writeObject}. */
+    Object readObject(InputStream is) throws Exception;
+  }
+
+  /**
+   * Extra class names appended to the "compact" codec's
+   * registered classes, which must match on both nodes.
+   */
+  private static final String[] COMPACT_CLASSES =
+    split(System.getProperty("org.cougaar.lib.web.axis.mts.codec.classes"));
+
+  /**
+   * The classes that the "compact" codec writes as ids, in id
+   * order, which includes the superclasses of the message and
+   * address types since their descriptors are also written.
+   */
+  private static final String[] DEFAULT_COMPACT_CLASSES = {
+    "org.cougaar.core.mts.Message",
+    "org.cougaar.mts.base.AttributedMessage",
+    "org.cougaar.core.mts.SimpleMessageAttributes",
+    "org.cougaar.core.mts.MessageAddress",
+    "org.cougaar.core.mts.SimpleMessageAddress",
+    "org.cougaar.core.mts.MulticastMessageAddress",
+    "org.cougaar.core.mts.MessageAddressWithAttributes",
+    "org.cougaar.core.mts.GroupMessageAddress",
+    "org.cougaar.core.util.UID",
+    "java.lang.Number",
+    "java.lang.Integer",
+    "java.lang.Long",
+    "java.lang.Boolean",
+    "java.util.HashMap",
+    "java.util.ArrayList",
+    "java.util.Vector",
+    "[Ljava.lang.Object;",
+    "[B",
+  };
+
+  static final Codec COMPACT = new CompactCodec(
+      concat(DEFAULT_COMPACT_CLASSES, COMPACT_CLASSES));
+
+  // all codecs that we can read, guarded by the class lock
+  private static Codec[] codecs = {COMPACT};
+
+  private SOAPSerialization() {}
+
+  /**
+   * Add a codec.
+   *
+   * @throws IllegalArgumentException if a different codec has the
+   *   same name or id
+   */
+  public static synchronized void addCodec(Codec codec) {
+    int id = codec.getId();
+    String name = codec.getName();
+    if (id < 1 || id > 255) {
+      throw new IllegalArgumentException(
+          "Invalid codec id "+id+" for "+name);
+    }
+    for (int i = 0; i < codecs.length; i++) {
+      Codec c = codecs[i];
+      if (c.getId() == id || c.getName().equals(name)) {
+        if (c.getClass() == codec.getClass() &&
+            c.getId() == id && c.getName().equals(name)) {
+          // already added, e.g. by another link protocol
+          return;
+        }
+        throw new IllegalArgumentException(
+            "Codec "+name+" ("+id+") conflicts with "+
+            c.getName()+" ("+c.getId()+")");
+      }
+    }
+    Codec[] a = new Codec[codecs.length + 1];
+    System.arraycopy(codecs, 0, a, 0, codecs.length);
+    a[codecs.length] = codec;
+    codecs = a;
+  }
+
+  /**
+   * @return the codec with the given name, or with the given name
+   *   followed by a "-" suffix (e.g. "compact-1f2e3d"), or null
+   */
+  static synchronized Codec getCodec(String name) {
+    for (int i = 0; i < codecs.length; i++) {
+      if (codecs[i].getName().equals(name)) {
+        return codecs[i];
+      }
+    }
+    for (int i = 0; i < codecs.length; i++) {
+      if (codecs[i].getName().startsWith(name+"-")) {
+        return codecs[i];
+      }
+    }
+    return null;
+  }
+
+  /** @return the codec with the given id, or null */
+  private static synchronized Codec getCodec(int id) {
+    for (int i = 0; i < codecs.length; i++) {
+      if (codecs[i].getId() == id) {
+        return codecs[i];
+      }
+    }
+    return null;
+  }
+
+  /** @return the comma-separated names of our codecs */
+  static synchronized String getCodecNames() {
+    StringBuffer buf = new StringBuffer();
+    for (int i = 0; i < codecs.length; i++) {
+      if (i > 0) {
+        buf.append(',');
+      }
+      buf.append(codecs[i].getName());
+    }
+    return buf.toString();
+  }
+
+  /**
+   * Write an object with our header, or with plain Java
+   * serialization if the codec is null.
+   */
+  static void writeObject(
+      OutputStream os, Object obj, Codec codec) throws IOException {
+    if (codec == null) {
+      ObjectOutputStream oos = new ObjectOutputStream(os);
+      oos.writeObject(obj);
+      oos.close();
+      return;
+    }
+    os.write(MAGIC);
+    os.write(codec.getId());
+    codec.writeObject(os, obj);
+  }
+
+  /**
+   * Read an object written by any of our codecs, by a
+   * {@link SOAPClassCache} session, or an inline {@link SOAPAck}.
+   *
+   * @param receiver the class cache tables, or null if class
+   *   cache sessions are not accepted
+   */
+  static Object readObject(
+      InputStream in, SOAPClassCache.Receiver receiver) throws Exception {
+    PushbackInputStream pis = new PushbackInputStream(in, 1);
+    int b = pis.read();
+    if (b == SOAPAck.MAGIC) {
+      return SOAPAck.read(pis);
+    }
+    if (b != MAGIC) {
+      if (b >= 0) {
+        pis.unread(b);
+      }
+      return SOAPClassCache.readObject(pis, receiver);
+    }
+    int id = pis.read();
+    Codec codec = getCodec(id);
+    if (codec == null) {
+      throw new IOException("Unknown serialization codec: "+id);
+    }
+    return codec.readObject(pis);
+  }
+
+  private static String[] split(String s) {
+    if (s == null || s.trim().length() == 0) {
+      return new String[0];
+    }
+    String[] a = s.split(",");
+    for (int i = 0; i < a.length; i++) {
+      a[i] = a[i].trim();
+    }
+    return a;
+  }
+
+  private static String[] concat(String[] a, String[] b) {
+    String[] ret = new String[a.length + b.length];
+    System.arraycopy(a, 0, ret, 0, a.length);
+    System.arraycopy(b, 0, ret, a.length, b.length);
+    return ret;
+  }
+
+  /**
+   * A registration-based codec, which writes each registered
+   * class descriptor as a two-byte id and omits the stream header.
+   * <p>
+   * Externalizable types, such as the MTS addresses, have no field
+   * descriptors, so once their class is registered they only cost
+   * the bytes written by their "writeExternal".  Unregistered
+   * classes are written in full, so any message can be sent.
+   * <p>
+   * The registered names are appended to the codec name as a hash
+   * if they differ from the default list, so two nodes only
+   * negotiate this codec if their registrations match.
+   */
+  private static final class CompactCodec implements Codec {
+
+    // tags
+    private static final int UNREGISTERED = 0;
+    private static final int REGISTERED = 1;
+
+    private final String name;
+    private final ObjectStreamClass[] descs;
+    // map from Class to Integer id
+    private final Map ids = new HashMap();
+
+    public CompactCodec(String[] classNames) {
+      String s = "compact";
+      if (classNames.length != DEFAULT_COMPACT_CLASSES.length) {
+        s += "-"+Integer.toHexString(
+            Arrays.asList(classNames).hashCode());
+      }
+      name = s;
+      descs = new ObjectStreamClass[classNames.length];
+      for (int i = 0; i < classNames.length; i++) {
+        // skip classes that aren't loaded in this node, which
+        // keeps the ids in step with nodes that have them
+        ObjectStreamClass desc;
+        try {
+          Class cl = Class.forName(classNames[i]);
+          desc = ObjectStreamClass.lookup(cl);
+        } catch (ClassNotFoundException e) {
+          desc = null;
+        } catch (LinkageError e) {
+          desc = null;
+        }
+        if (desc != null) {
+          descs[i] = desc;
+          ids.put(desc.forClass(), new Integer(i));
+        }
+      }
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public int getId() {
+      return 1;
+    }
+
+    public void writeObject(OutputStream os, Object obj) throws IOException {
+      ObjectOutputStream oos = new ObjectOutputStream(os) {
+        protected void writeStreamHeader() {
+        }
+        protected void writeClassDescriptor(
+            ObjectStreamClass desc) throws IOException {
+          Integer id = (Integer) ids.get(desc.forClass());
+          if (id == null) {
+            write(UNREGISTERED);
+            super.writeClassDescriptor(desc);
+          } else {
+            write(REGISTERED);
+            writeShort(id.intValue());
+          }
+        }
+      };
+      oos.writeObject(obj);
+      oos.close();
+    }
+
+    public Object readObject(InputStream is) throws Exception {
+      ObjectInputStream ois = new ObjectInputStream(is) {
+        protected void readStreamHeader() {
+        }
+        protected ObjectStreamClass readClassDescriptor()
+          throws IOException, ClassNotFoundException {
+          int tag = read();
+          if (tag == UNREGISTERED) {
+            return super.readClassDescriptor();
+          }
+          if (tag != REGISTERED) {
+            throw new IOException("Invalid descriptor tag: "+tag);
+          }
+          int id = readUnsignedShort();
+          ObjectStreamClass desc = (id < descs.length ? descs[id] : null);
+          if (desc == null) {
+            throw new ClassNotFoundException(
+                "Unknown registered class id: "+id);
+          }
+          return desc;
+        }
+      };
+      Object obj = ois.readObject();
+      ois.close();
+      return obj;
+    }
+  }
+}
@@ -26,16 +26,10 @@
 package org.cougaar.lib.web.axis.mts;
 
 import org.cougaar.core.service.ServletService;
-import org.cougaar.mts.base.AttributedMessage;
 
 /**
  * SSL variation of {@link SOAPLinkProtocol}, which registers
  * in the WP as HTTPS.
- * <p>
- * <b>Known bugs:</b> This is broken if both the HTTP-based {@link
- * SOAPLinkProtocol} and this HTTPS-based SSLSOAPLinkProtocol are
- * loaded, since both attempt to register the same WSDD and attach
- * to the same {@link SOAPMTHook}.
  */
 public class SSLSOAPLinkProtocol extends SOAPLinkProtocol {
   public SSLSOAPLinkProtocol() {
@@ -50,8 +44,8 @@ public class SSLSOAPLinkProtocol extends SOAPLinkProtocol {
   protected Boolean usesEncryptedSocket() {
     return Boolean.TRUE;
   }
-  protected int computeCost(AttributedMessage message) {
-    return super.computeCost(message) * 3;
+  protected int getDefaultCost() {
+    return super.getDefaultCost() * 3;
   }
   public Class getProtocolClass() {
     return SSLSOAPLinkProtocol.class;